@@ -0,0 +1,33 @@
+package net.kamradtfamily.blockchain;
+
+import lombok.extern.slf4j.Slf4j;
+import net.kamradtfamily.blockchain.api.Blockchain;
+import net.kamradtfamily.blockchain.api.Message;
+import org.apache.kafka.clients.consumer.ConsumerRecord;
+import org.springframework.kafka.core.reactive.ReactiveKafkaConsumerTemplate;
+import org.springframework.stereotype.Component;
+import reactor.core.publisher.Flux;
+
+/**
+ * The messages other nodes and processes put on the topic. A Kafka receiver
+ * can only be subscribed to once, so the messages are shared by everything
+ * here that watches them. The mempool is kept in step with them as they arrive.
+ */
+@Slf4j
+@Component
+public class Announcements {
+    private final Flux<Message> messages;
+
+    public Announcements(ReactiveKafkaConsumerTemplate<String, Message> consumer,
+                         Blockchain blockchain) {
+        this.messages = consumer.receiveAutoAck()
+                .map(ConsumerRecord::value)
+                .share();
+        messages.subscribe(blockchain::receive,
+                e -> log.error("error watching announcements", e));
+    }
+
+    public Flux<Message> getMessages() {
+        return messages;
+    }
+}
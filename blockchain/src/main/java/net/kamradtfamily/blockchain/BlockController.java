@@ -4,14 +4,20 @@ import com.fasterxml.jackson.databind.ObjectMapper;
 import lombok.extern.slf4j.Slf4j;
 import net.kamradtfamily.blockchain.api.Block;
 import net.kamradtfamily.blockchain.api.Blockchain;
+import net.kamradtfamily.blockchain.api.MerkleProof;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.http.HttpStatus;
+import org.springframework.core.io.buffer.DataBufferFactory;
 import org.springframework.http.MediaType;
+import org.springframework.http.server.reactive.ServerHttpRequest;
+import org.springframework.http.server.reactive.ServerHttpResponse;
 import org.springframework.web.bind.annotation.*;
 import org.springframework.web.server.ResponseStatusException;
 import reactor.core.publisher.Flux;
 import reactor.core.publisher.Mono;
 
-import java.time.Instant;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
 import java.util.Random;
 
 @Slf4j
@@ -19,16 +25,65 @@ import java.util.Random;
 @RequestMapping("/block")
 public class BlockController {
     private static final ObjectMapper objectMapper = new ObjectMapper();
+    private static final byte[] LINE_END = "\n".getBytes(StandardCharsets.UTF_8);
+    private static final byte[] EVENT_DATA = "data:".getBytes(StandardCharsets.UTF_8);
+    private static final byte[] EVENT_END = "\n\n".getBytes(StandardCharsets.UTF_8);
     private final Blockchain blockchain;
+    private final Miner miner;
+    private final int blockVersion;
+    private final int maximumLimit;
     final Random random = new Random();
 
-    public BlockController(Blockchain blockchain) {
+    public BlockController(Blockchain blockchain,
+                           Miner miner,
+                           @Value("${blockchain.block.version:2}") int blockVersion,
+                           @Value("${blockchain.block.range.limit:1000}") int maximumLimit) {
         this.blockchain = blockchain;
+        this.miner = miner;
+        this.blockVersion = blockVersion;
+        this.maximumLimit = maximumLimit;
     }
 
-    @GetMapping(path = "", produces = MediaType.TEXT_EVENT_STREAM_VALUE)
-    public Flux<Block> getBlocks() {
-        return blockchain.getAllBlocks();
+    /**
+     *
+     * Stream a range of blocks as server sent events, or as lines of JSON
+     * when application/stream+json is asked for. The JSON of each block is
+     * written as the store has it, for the segment store straight from the
+     * mapped file, so syncing peers don't cost a decode and encode per block.
+     */
+    @GetMapping(path = "", produces = {MediaType.TEXT_EVENT_STREAM_VALUE, MediaType.APPLICATION_STREAM_JSON_VALUE})
+    public Mono<Void> getBlocks(@RequestParam(name = "fromIndex", defaultValue = "0") long fromIndex,
+                                @RequestParam(name = "toIndex", required = false) Long toIndex,
+                                @RequestParam(name = "limit", required = false) Integer limit,
+                                ServerHttpRequest request,
+                                ServerHttpResponse response) {
+        int count = limit == null ? maximumLimit : Math.min(limit, maximumLimit);
+        if(fromIndex < 0 || count <= 0 || (toIndex != null && toIndex < fromIndex)) {
+            return Mono.error(new ResponseStatusException(
+                    HttpStatus.BAD_REQUEST, "Invalid block range"));
+        }
+        long lastIndex = fromIndex > Long.MAX_VALUE - count ? Long.MAX_VALUE : fromIndex + count - 1;
+        boolean lines = request.getHeaders().getAccept().stream()
+                .anyMatch(MediaType.APPLICATION_STREAM_JSON::equalsTypeAndSubtype);
+        response.getHeaders().setContentType(lines ? MediaType.APPLICATION_STREAM_JSON : MediaType.TEXT_EVENT_STREAM);
+        DataBufferFactory buffers = response.bufferFactory();
+        return response.writeWith(blockchain.getEncodedBlocks(fromIndex, toIndex == null ? lastIndex : Math.min(toIndex, lastIndex))
+                .concatMapIterable(json -> lines
+                        ? List.of(buffers.wrap(json), buffers.wrap(LINE_END))
+                        : List.of(buffers.wrap(EVENT_DATA), buffers.wrap(json), buffers.wrap(EVENT_END))));
+    }
+
+    @GetMapping(path = "headers", produces = MediaType.APPLICATION_STREAM_JSON_VALUE)
+    public Flux<Block> getHeaders(@RequestParam(name = "fromIndex", defaultValue = "0") long fromIndex,
+                                  @RequestParam(name = "toIndex", required = false) Long toIndex,
+                                  @RequestParam(name = "limit", required = false) Integer limit) {
+        int count = limit == null ? maximumLimit : Math.min(limit, maximumLimit);
+        if(fromIndex < 0 || count <= 0 || (toIndex != null && toIndex < fromIndex)) {
+            return Flux.error(new ResponseStatusException(
+                    HttpStatus.BAD_REQUEST, "Invalid block range"));
+        }
+        long lastIndex = fromIndex > Long.MAX_VALUE - count ? Long.MAX_VALUE : fromIndex + count - 1;
+        return blockchain.getHeaders(fromIndex, toIndex == null ? lastIndex : Math.min(toIndex, lastIndex));
 
     }
 
@@ -39,11 +94,18 @@ public class BlockController {
 
     @GetMapping(path = "blocks/transaction/{transactionId}", produces = MediaType.APPLICATION_JSON_VALUE)
     public Mono<Block> getTransaction(@PathVariable("transactionId") Long transactionId) {
-        return blockchain.findTransactionInChain(transactionId, blockchain.getAllBlocks())
-                .last() // assume there's only one
+        return blockchain.findTransactionInChain(transactionId)
+                .next() // assume there's only one
                 .switchIfEmpty(Mono.error(new ResponseStatusException(
                         HttpStatus.NOT_FOUND, "Transaction Not Found in Blockchain")));
 
+    }
+    @GetMapping(path = "blocks/transaction/{transactionId}/proof", produces = MediaType.APPLICATION_JSON_VALUE)
+    public Mono<MerkleProof> getTransactionProof(@PathVariable("transactionId") Long transactionId) {
+        return blockchain.getTransactionProof(transactionId)
+                .switchIfEmpty(Mono.error(new ResponseStatusException(
+                        HttpStatus.NOT_FOUND, "No Proof Found for Transaction")));
+
     }
     @GetMapping(path = "{blockHash}", produces = MediaType.APPLICATION_JSON_VALUE)
     public Mono<Block> getBlock(@PathVariable("blockHash") String blockHash) {
@@ -59,16 +121,10 @@ public class BlockController {
     @PostMapping(path = "mine/{address}", produces = MediaType.APPLICATION_JSON_VALUE)
     @ResponseStatus(code = HttpStatus.CREATED, reason = "Block created")
     Mono<Block> mine(@PathVariable("address") String address) {
-        return blockchain.getAllTransactions().collectList()
-                .flatMap(ts -> blockchain.getLastBlock()
-                    .map(b -> Block.builder()
-                            .transactions(ts)
-                            .nonce(0)
-                            .previousHash(b.getHash())
-                            .timestamp(Instant.now().getEpochSecond())
-                            .index(b.getIndex() + 1)
-                            .build()
-                            .withHash())
-                    .flatMap(b -> blockchain.addBlock(b, true)));
+        return blockchain.getBlockTemplate(blockVersion)
+                .flatMap(b -> miner.mine(b)
+                        .switchIfEmpty(Mono.error(() -> new ResponseStatusException(
+                                HttpStatus.CONFLICT, "Block " + b.getIndex() + " was added while mining"))))
+                .flatMap(b -> blockchain.addBlock(b, true));
     }
 }
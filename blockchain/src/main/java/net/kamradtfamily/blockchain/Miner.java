@@ -0,0 +1,302 @@
+package net.kamradtfamily.blockchain;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import lombok.extern.slf4j.Slf4j;
+import net.kamradtfamily.blockchain.api.Block;
+import net.kamradtfamily.blockchain.api.Blockchain;
+import net.kamradtfamily.blockchain.api.CryptoUtil;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+import reactor.core.publisher.Mono;
+import reactor.core.publisher.MonoSink;
+import reactor.core.scheduler.Scheduler;
+import reactor.core.scheduler.Schedulers;
+
+import javax.annotation.PreDestroy;
+import java.io.ByteArrayOutputStream;
+import java.security.DigestException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * The proof of work search. The nonce space is split into one range per worker
+ * and every worker hashes the same precomputed encoding of the block with its
+ * own nonce appended, until one of them finds a hash with enough leading zero
+ * bits. A job is abandoned as soon as the chain tip is no longer the block
+ * it builds on, or a block for that index is announced on the topic by
+ * another node.
+ */
+@Slf4j
+@Component
+public class Miner {
+    private static final int REPORT_INTERVAL = 1 << 12;
+    private final int threads;
+    private final Scheduler workers;
+    private final Set<Job> jobs = ConcurrentHashMap.newKeySet();
+    private final Counter hashes;
+    private final Timer jobTimer;
+    private final AtomicLong hashRate = new AtomicLong();
+
+    public Miner(@Value("${blockchain.miner.threads:0}") int threads,
+                 Blockchain blockchain,
+                 Announcements announcements,
+                 MeterRegistry registry) {
+        this.threads = threads > 0 ? threads : Runtime.getRuntime().availableProcessors();
+        this.workers = Schedulers.newParallel("miner", this.threads, true);
+        this.hashes = Counter.builder("blockchain.miner.hashes")
+                .description("block hashes computed while mining")
+                .register(registry);
+        this.jobTimer = Timer.builder("blockchain.miner.job")
+                .description("time to mine a block")
+                .register(registry);
+        Gauge.builder("blockchain.miner.hashrate", hashRate, AtomicLong::get)
+                .description("hashes per second of the last mining job")
+                .baseUnit("hashes/s")
+                .register(registry);
+        blockchain.getTipChanges()
+                .subscribe(this::cancelStale,
+                        e -> log.error("error watching the chain tip", e));
+        announcements.getMessages()
+                .filter(m -> "addedBlock".equals(m.getMessage()) && m.getBlock() != null)
+                .subscribe(m -> cancel(m.getBlock().getIndex()),
+                        e -> log.error("error watching for competing blocks", e));
+    }
+
+    /**
+     *
+     * Find a nonce that gives the block a hash with at least the number of leading
+     * zero bits set as its difficulty. The block passed in is not changed. Legacy
+     * blocks carry no proof of work, their template has no difficulty and the
+     * first nonce is taken without starting the workers.
+     *
+     * @param template the block to mine, everything but the nonce and hash set
+     * @return A Mono of the mined block, empty if the job was cancelled
+     */
+    public Mono<Block> mine(Block template) {
+        final long difficulty = template.getDifficulty();
+        if(difficulty == 0) {
+            return Mono.fromSupplier(() -> withNonce(template, 0));
+        }
+        return Mono.create(sink -> {
+            Job job = new Job(template, (int) difficulty, sink);
+            jobs.add(job);
+            sink.onDispose(() -> {
+                job.cancelled.set(true);
+                jobs.remove(job);
+            });
+            log.info("mining block {} at difficulty {} on {} threads", template.getIndex(), difficulty, threads);
+            long range = Long.MAX_VALUE / threads;
+            for(int i = 0; i < threads; i++) {
+                long from = i * range;
+                long to = i == threads - 1 ? Long.MAX_VALUE : from + range;
+                workers.schedule(() -> job.search(from, to));
+            }
+        });
+    }
+
+    /**
+     *
+     * Stop mining every block at or below an index, because the chain already has one
+     *
+     * @param index the index of the new tip
+     */
+    public void cancel(long index) {
+        jobs.stream()
+                .filter(job -> job.template.getIndex() <= index)
+                .forEach(job -> {
+                    if(!job.cancelled.getAndSet(true)) {
+                        log.info("cancelling mining of block {}, chain is at {}", job.template.getIndex(), index);
+                        job.sink.success();
+                    }
+                });
+    }
+
+    /**
+     *
+     * Stop mining every block that doesn't build on the tip, either because
+     * the chain moved past it or because the chain switched to another branch
+     *
+     * @param tip the new tip
+     */
+    public void cancelStale(Block tip) {
+        jobs.stream()
+                .filter(job -> !job.template.getPreviousHash().equals(tip.getHash()))
+                .forEach(job -> {
+                    if(!job.cancelled.getAndSet(true)) {
+                        log.info("cancelling mining of block {}, chain tip is now {}", job.template.getIndex(), tip.getHash());
+                        job.sink.success();
+                    }
+                });
+    }
+
+    @PreDestroy
+    void shutdown() {
+        workers.dispose();
+    }
+
+    private class Job {
+        final Block template;
+        final int difficulty;
+        final MonoSink<Block> sink;
+        final byte[] prefix;
+        final AtomicBoolean cancelled = new AtomicBoolean();
+        final AtomicInteger remaining = new AtomicInteger(threads);
+        final AtomicLong attempts = new AtomicLong();
+        final long started = System.nanoTime();
+
+        Job(Block template, int difficulty, MonoSink<Block> sink) {
+            this.template = template;
+            this.difficulty = difficulty;
+            this.sink = sink;
+            this.prefix = template.getVersion() == Block.LEGACY_VERSION ? null : encodePrefix(template);
+        }
+
+        void search(long from, long to) {
+            long count = 0;
+            try {
+                NonceHasher hasher = prefix == null ? new LegacyHasher(template) : new PrefixHasher(prefix);
+                for(long nonce = from; nonce < to; nonce++) {
+                    if(hasher.zeroBits(nonce) >= difficulty) {
+                        found(nonce);
+                        return;
+                    }
+                    if(++count == REPORT_INTERVAL) {
+                        report(count);
+                        count = 0;
+                        if(cancelled.get()) {
+                            return;
+                        }
+                    }
+                }
+            } catch (RuntimeException e) {
+                if(!cancelled.getAndSet(true)) {
+                    sink.error(e);
+                }
+                return;
+            } finally {
+                report(count);
+                if(remaining.decrementAndGet() == 0) {
+                    finished();
+                }
+            }
+            if(!cancelled.getAndSet(true)) {
+                sink.error(new IllegalStateException("nonce space exhausted for block " + template.getIndex()));
+            }
+        }
+
+        void found(long nonce) {
+            if(cancelled.getAndSet(true)) {
+                return;
+            }
+            Block mined = withNonce(template, nonce);
+            log.info("mined block {} with nonce {} after {} hashes", mined.getIndex(), nonce, attempts.get());
+            sink.success(mined);
+        }
+
+        void report(long count) {
+            attempts.addAndGet(count);
+            hashes.increment(count);
+        }
+
+        void finished() {
+            long elapsed = System.nanoTime() - started;
+            jobTimer.record(elapsed, TimeUnit.NANOSECONDS);
+            if(elapsed > 0) {
+                hashRate.set(attempts.get() * TimeUnit.SECONDS.toNanos(1) / elapsed);
+            }
+        }
+    }
+
+    private static Block withNonce(Block template, long nonce) {
+        return Block.builder()
+                .version(template.getVersion())
+                .index(template.getIndex())
+                .previousHash(template.getPreviousHash())
+                .timestamp(template.getTimestamp())
+                .difficulty(template.getDifficulty())
+                .merkleRoot(template.getMerkleRoot())
+                .transactions(template.getTransactions())
+                .nonce(nonce)
+                .build()
+                .withHash();
+    }
+
+    private static byte[] encodePrefix(Block template) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        template.encodeWithoutNonce(CryptoUtil.recordingHasher(out));
+        return out.toByteArray();
+    }
+
+    private interface NonceHasher {
+        int zeroBits(long nonce);
+    }
+
+    /**
+     * Hashes the shared encoding prefix with the nonce written little-endian
+     * into the last 8 bytes of a per worker buffer, no allocation per attempt
+     */
+    private static class PrefixHasher implements NonceHasher {
+        final byte[] buffer;
+        final byte[] out = new byte[CryptoUtil.HASH_LENGTH];
+        final int offset;
+        final MessageDigest digest;
+
+        PrefixHasher(byte[] prefix) {
+            this.offset = prefix.length;
+            this.buffer = Arrays.copyOf(prefix, prefix.length + Long.BYTES);
+            try {
+                this.digest = MessageDigest.getInstance("SHA-256");
+            } catch (NoSuchAlgorithmException e) {
+                throw new RuntimeException("cypto error", e);
+            }
+        }
+
+        @Override
+        public int zeroBits(long nonce) {
+            for(int i = 0; i < Long.BYTES; i++) {
+                buffer[offset + i] = (byte) (nonce >>> (8 * i));
+            }
+            digest.update(buffer);
+            try {
+                digest.digest(out, 0, out.length);
+            } catch (DigestException e) {
+                throw new RuntimeException("cypto error", e);
+            }
+            return CryptoUtil.leadingZeroBits(out);
+        }
+    }
+
+    /**
+     * Legacy blocks hash a string with the nonce at the end, so the whole
+     * block has to be hashed for each attempt
+     */
+    private static class LegacyHasher implements NonceHasher {
+        final Block block;
+
+        LegacyHasher(Block template) {
+            this.block = Block.builder()
+                    .version(template.getVersion())
+                    .index(template.getIndex())
+                    .previousHash(template.getPreviousHash())
+                    .timestamp(template.getTimestamp())
+                    .transactions(template.getTransactions())
+                    .build();
+        }
+
+        @Override
+        public int zeroBits(long nonce) {
+            block.setNonce(nonce);
+            return CryptoUtil.leadingZeroBits(block.toHash());
+        }
+    }
+}
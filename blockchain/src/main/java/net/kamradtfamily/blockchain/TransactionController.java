@@ -1,10 +1,11 @@
 package net.kamradtfamily.blockchain;
 
-import com.fasterxml.jackson.databind.ObjectMapper;
 import lombok.extern.slf4j.Slf4j;
 import net.kamradtfamily.blockchain.api.Block;
 import net.kamradtfamily.blockchain.api.Blockchain;
 import net.kamradtfamily.blockchain.api.Transaction;
+import net.kamradtfamily.blockchain.api.TransactionResult;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.http.HttpStatus;
 import org.springframework.http.MediaType;
 import org.springframework.web.bind.annotation.*;
@@ -19,12 +20,14 @@ import java.util.Random;
 @RestController
 @RequestMapping("/transaction")
 public class TransactionController {
-    private static final ObjectMapper objectMapper = new ObjectMapper();
     private final Blockchain blockchain;
+    private final int batchSize;
     final Random random = new Random();
 
-    public TransactionController(Blockchain blockchain) {
+    public TransactionController(Blockchain blockchain,
+                                 @Value("${blockchain.transaction.batch.size:1000}") int batchSize) {
         this.blockchain = blockchain;
+        this.batchSize = batchSize;
     }
 
     @GetMapping(path = "", produces = MediaType.TEXT_EVENT_STREAM_VALUE)
@@ -46,4 +49,15 @@ public class TransactionController {
 
     }
 
+    @PostMapping(path = "batch",
+            consumes = { MediaType.APPLICATION_JSON_VALUE, MediaType.APPLICATION_STREAM_JSON_VALUE },
+            produces = { MediaType.APPLICATION_JSON_VALUE, MediaType.APPLICATION_STREAM_JSON_VALUE })
+    Flux<TransactionResult> addTransactions(@RequestBody Flux<Transaction> transactions,
+                                            @RequestParam(name = "emit", defaultValue = "true") boolean emit) {
+        // a JSON array or newline delimited JSON, read and added a batch at a time
+        return transactions
+                .buffer(batchSize)
+                .concatMap(batch -> blockchain.addTransactions(batch, emit));
+    }
+
 }
@@ -0,0 +1,48 @@
+package net.kamradtfamily.blockchain;
+
+import net.kamradtfamily.blockchain.api.Block;
+import net.kamradtfamily.blockchain.api.TestChain;
+import net.kamradtfamily.blockchain.api.Transaction;
+import net.kamradtfamily.blockchain.api.TransactionResult;
+import org.junit.jupiter.api.Test;
+import reactor.core.publisher.Flux;
+
+import java.util.List;
+import java.util.stream.Collectors;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+class TransactionControllerTest {
+
+    @Test
+    void batchReportsEachTransaction() {
+        TestChain chain = new TestChain();
+        chain.blockchain.addTransaction(transaction(2), false).block(TestChain.TIMEOUT);
+        chain.add(chain.mineNext(Block.HEADER_VERSION));
+        chain.blockchain.addTransaction(transaction(3), false).block(TestChain.TIMEOUT);
+        TransactionController controller = new TransactionController(chain.blockchain, 2);
+
+        List<TransactionResult> results = controller.addTransactions(Flux.just(
+                        transaction(1), transaction(1),
+                        transaction(2), transaction(3),
+                        transaction(1)), false)
+                .collectList()
+                .block(TestChain.TIMEOUT);
+
+        assertEquals(List.of(1L, 1L, 2L, 3L, 1L), results.stream()
+                .map(TransactionResult::getTransactionId)
+                .collect(Collectors.toList()));
+        assertEquals(List.of(TransactionResult.ADDED,
+                TransactionResult.REPEATED,
+                TransactionResult.CONFIRMED,
+                TransactionResult.PENDING,
+                TransactionResult.PENDING), results.stream()
+                .map(TransactionResult::getStatus)
+                .collect(Collectors.toList()));
+        assertEquals(transaction(1), chain.blockchain.getTransactionById(1).block(TestChain.TIMEOUT));
+    }
+
+    private static Transaction transaction(long id) {
+        return Transaction.builder().transactionId(id).build().withHash();
+    }
+}
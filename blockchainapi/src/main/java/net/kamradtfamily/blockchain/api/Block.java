@@ -8,8 +8,10 @@ import lombok.Builder;
 import lombok.Data;
 import lombok.NoArgsConstructor;
 import org.springframework.data.annotation.Id;
+import org.springframework.data.mongodb.core.index.Indexed;
 import org.springframework.data.mongodb.core.mapping.Document;
 
+import java.math.BigInteger;
 import java.time.Instant;
 import java.util.Collections;
 import java.util.List;
@@ -29,6 +31,15 @@ import java.util.List;
 @JsonIgnoreProperties(ignoreUnknown = true)
 @Document
 public class Block {
+    /**
+     * Version 0 hashes the header fields and the JSON of the transactions
+     * concatenated as a string, version 1 hashes the canonical binary
+     * encoding of the header and transactions, version 2 hashes only the
+     * header which carries the merkle root of the transactions.
+     */
+    public static final int LEGACY_VERSION = 0;
+    public static final int CANONICAL_VERSION = 1;
+    public static final int HEADER_VERSION = 2;
     static ObjectMapper mapper = new ObjectMapper();
     public static Block genesis = Block.builder()
             .index(0)
@@ -40,10 +51,15 @@ public class Block {
             .withHash();
     @Id
     private String id;
+    private int version;
+    @Indexed(unique = true)
     private long index;
     private String previousHash;
     private long timestamp;
     private long nonce;
+    private long difficulty;
+    private String merkleRoot;
+    @Indexed(unique = true)
     private String hash;
     private List<Transaction> transactions;
 
@@ -60,25 +76,138 @@ public class Block {
 
     /**
      *
-     * create a hash value from the index, previousHash, timestamp, nonce, and transactions
+     * Add a 'wither' for the merkle root, it must be set before the hash
+     * of a header version block is calculated
      *
-     * @return the hash value
+     * @return the block with the merkle root added
      */
-    public String toHash() {
+    public Block withMerkleRoot() {
+        merkleRoot = MerkleTree.root(transactions);
+        return this;
+    }
+
+    /**
+     *
+     * A copy of the block without its transactions. For header version
+     * blocks this is enough to check the hash.
+     *
+     * @return the header
+     */
+    public Block toHeader() {
+        return Block.builder()
+                .version(version)
+                .index(index)
+                .previousHash(previousHash)
+                .timestamp(timestamp)
+                .nonce(nonce)
+                .difficulty(difficulty)
+                .merkleRoot(merkleRoot)
+                .hash(hash)
+                .build();
+    }
+
+    /**
+     *
+     * The JSON of the block as it goes over the wire to peers and clients
+     *
+     * @return the JSON as UTF-8 bytes
+     */
+    public byte[] toJson() {
         try {
-            return CryptoUtil.hash(this.index + this.previousHash + this.timestamp + mapper.writeValueAsString(this.transactions) + this.nonce);
+            return mapper.writeValueAsBytes(this);
         } catch (JsonProcessingException e) {
-            throw new RuntimeException("Json decoding error", e);
+            throw new RuntimeException("Json encoding error", e);
+        }
+    }
+
+    /**
+     *
+     * create a hash value from the index, previousHash, timestamp, nonce, and transactions.
+     * Header version blocks use the merkle root in place of the transactions, so
+     * the cost doesn't depend on the number of transactions.
+     *
+     * @return the hash value
+     */
+    public String toHash() {
+        if(version == LEGACY_VERSION) {
+            try {
+                return CryptoUtil.hash(this.index + this.previousHash + this.timestamp + mapper.writeValueAsString(this.transactions) + this.nonce);
+            } catch (JsonProcessingException e) {
+                throw new RuntimeException("Json decoding error", e);
+            }
+        } else if(version == CANONICAL_VERSION || version == HEADER_VERSION) {
+            return encode(CryptoUtil.hasher()).hex();
         }
+        throw new IllegalStateException("unknown block version " + version);
     }
 
     /**
      *
-     * The difficulty measure, always return -1 to make it easy to mine
+     * Write the canonical encoding of the block to a hasher. The order of
+     * fields is fixed and must never change for a given version.
      *
-     * @return the value must be less than the
+     * @param hasher the hasher to write to
+     * @return the hasher
+     */
+    public CryptoUtil.Hasher encode(CryptoUtil.Hasher hasher) {
+        return encodeWithoutNonce(hasher)
+                .update(nonce);
+    }
+
+    /**
+     *
+     * Write everything in the canonical encoding up to the nonce, which is
+     * always last. Mining computes this once and appends each nonce to it.
+     *
+     * @param hasher the hasher to write to
+     * @return the hasher
+     */
+    public CryptoUtil.Hasher encodeWithoutNonce(CryptoUtil.Hasher hasher) {
+        hasher.update(version)
+                .update(index)
+                .update(previousHash)
+                .update(timestamp);
+        if(version >= HEADER_VERSION) {
+            return hasher.update(merkleRoot);
+        }
+        if(transactions == null) {
+            return hasher.update(-1);
+        }
+        hasher.update(transactions.size());
+        transactions.forEach(t -> t.encode(hasher));
+        return hasher;
+    }
+
+    /**
+     *
+     * @param version a block version
+     * @return true if blocks of that version can be hashed
+     */
+    public static boolean isSupportedVersion(int version) {
+        return version >= LEGACY_VERSION && version <= HEADER_VERSION;
+    }
+
+    /**
+     *
+     * The difficulty measure, the number of leading zero bits in the hash
+     *
+     * @return the value must be at least the difficulty required for the index
      */
     public long calculateDifficulty() {
-        return -1l;
+        return hash == null ? 0 : CryptoUtil.leadingZeroBits(hash);
+    }
+
+    /**
+     *
+     * The expected number of hashes it took to mine the block, used to
+     * compare the total work of two branches of the chain. Blocks from
+     * before retargeting don't carry a difficulty and count as one hash.
+     * The difficulty isn't part of the hash, so this can only be trusted
+     * for a block whose difficulty has been checked against its branch.
+     *
+     * @return two to the power of the difficulty
+     */
+    public BigInteger work() {
+        return BigInteger.ONE.shiftLeft((int) difficulty);
     }
 }
@@ -0,0 +1,60 @@
+package net.kamradtfamily.blockchain.api;
+
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.util.List;
+
+/**
+ * The size limits of a block. This is part of consensus, a block with more
+ * transactions or more bytes of transactions than the limits is invalid, so
+ * every node has to use the same values. Size is measured on the canonical
+ * encoding of the transactions, which doesn't depend on how the block is
+ * stored or sent, and the limits keep blocks well under the largest
+ * document the database will store.
+ */
+@Component
+public class BlockLimits {
+    private final int maximumTransactions;
+    private final long maximumBytes;
+
+    public BlockLimits(@Value("${blockchain.block.max-transactions:1000}") int maximumTransactions,
+                       @Value("${blockchain.block.max-bytes:1048576}") long maximumBytes) {
+        this.maximumTransactions = maximumTransactions;
+        this.maximumBytes = maximumBytes;
+    }
+
+    public int getMaximumTransactions() {
+        return maximumTransactions;
+    }
+
+    public long getMaximumBytes() {
+        return maximumBytes;
+    }
+
+    /**
+     *
+     * Check the transactions of a block against the limits. The encodings
+     * of all the transactions are counted in one pass by one counter, and
+     * counting stops as soon as the limit is passed.
+     *
+     * @param transactions the transactions of the block
+     * @return why the block is too big, null if it isn't
+     */
+    public String check(List<Transaction> transactions) {
+        if(transactions == null) {
+            return null;
+        }
+        if(transactions.size() > maximumTransactions) {
+            return "Too many transactions: " + transactions.size()
+                    + " is more than " + maximumTransactions;
+        }
+        CryptoUtil.Hasher bytes = CryptoUtil.counter();
+        for(Transaction t : transactions) {
+            if(t.encode(bytes).length() > maximumBytes) {
+                return "Transactions too large: more than " + maximumBytes + " bytes";
+            }
+        }
+        return null;
+    }
+}
@@ -1,11 +1,24 @@
 package net.kamradtfamily.blockchain.api;
 
+import org.springframework.data.mongodb.repository.Query;
 import org.springframework.data.mongodb.repository.ReactiveMongoRepository;
 import org.springframework.stereotype.Repository;
+import reactor.core.publisher.Flux;
 import reactor.core.publisher.Mono;
 
+import java.util.Collection;
+
 @Repository
 public interface BlockRepository extends ReactiveMongoRepository<Block, String> {
     Mono<Block> findByIndex(Long index);
     Mono<Block> findByHash(String hash);
+    Mono<Block> findTopByOrderByIndexDesc();
+    Flux<Block> findByTransactionsTransactionId(long transactionId);
+    Flux<Block> findByTransactionsTransactionIdIn(Collection<Long> transactionIds);
+    @Query(value = "{ 'index': { $gte: ?0, $lte: ?1 } }", sort = "{ 'index': 1 }")
+    Flux<Block> findByIndexRange(long fromIndex, long toIndex);
+    @Query(value = "{ 'index': { $gte: ?0, $lte: ?1 } }", sort = "{ 'index': 1 }", fields = "{ 'transactions': 0 }")
+    Flux<Block> findHeadersByIndexRange(long fromIndex, long toIndex);
+    @Query(value = "{}", fields = "{ 'index': 1, 'transactions.transactionId': 1 }")
+    Flux<Block> findAllTransactionIds();
 }
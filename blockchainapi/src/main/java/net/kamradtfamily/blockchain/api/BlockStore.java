@@ -0,0 +1,106 @@
+package net.kamradtfamily.blockchain.api;
+
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+
+import java.nio.ByteBuffer;
+import java.util.Collection;
+import java.util.List;
+
+/**
+ * Where the blocks of the chain are kept. The chain only grows at the top,
+ * and only shrinks at the top when a reorganization rolls blocks back, so
+ * a store can be anything from a database collection to append-only files.
+ * Which store is used is picked with the blockchain.store property, mongo
+ * (the default) or segment.
+ */
+public interface BlockStore {
+    Mono<Block> findByIndex(long index);
+
+    Mono<Block> findByHash(String hash);
+
+    /**
+     *
+     * Get the block with the highest index
+     *
+     * @return A Mono of the last block, empty if nothing is stored
+     */
+    Mono<Block> findLast();
+
+    Flux<Block> findByTransactionId(long transactionId);
+
+    Flux<Block> findByTransactionIdIn(Collection<Long> transactionIds);
+
+    /**
+     *
+     * Get the blocks with an index in a range
+     *
+     * @param fromIndex the first index
+     * @param toIndex the last index
+     * @return A Flux of the blocks in index order
+     */
+    Flux<Block> findRange(long fromIndex, long toIndex);
+
+    /**
+     *
+     * Get the JSON of the blocks with an index in a range, as it is sent
+     * to peers. A store that keeps blocks as JSON hands out what it has
+     * stored without decoding it, the buffers must not be changed.
+     *
+     * @param fromIndex the first index
+     * @param toIndex the last index
+     * @return A Flux of the JSON of each block in index order
+     */
+    default Flux<ByteBuffer> findEncodedRange(long fromIndex, long toIndex) {
+        return findRange(fromIndex, toIndex)
+                .map(block -> ByteBuffer.wrap(block.toJson()));
+    }
+
+    /**
+     *
+     * Get the headers of the blocks with an index in a range, the blocks
+     * without their transactions
+     *
+     * @param fromIndex the first index
+     * @param toIndex the last index
+     * @return A Flux of the headers in index order
+     */
+    Flux<Block> findHeaders(long fromIndex, long toIndex);
+
+    /**
+     *
+     * Get the ids of every transaction in the chain, as blocks with only
+     * the transaction ids filled in, in no particular order
+     *
+     * @return A Flux of partial blocks
+     */
+    Flux<Block> findAllTransactionIds();
+
+    /**
+     *
+     * Store a block. Storing a block at an index that is already taken fails
+     * with a DuplicateKeyException.
+     *
+     * @param block the block
+     * @return A Mono of the stored block
+     */
+    Mono<Block> save(Block block);
+
+    /**
+     *
+     * Store blocks together, as one write where the store allows it
+     *
+     * @param blocks the blocks in index order
+     * @return A Flux of the stored blocks
+     */
+    Flux<Block> saveAll(List<Block> blocks);
+
+    /**
+     *
+     * Remove a block, blocks are only ever removed from the top down
+     *
+     * @param block the block
+     * @return A Mono that completes when the block is removed
+     */
+    Mono<Void> delete(Block block);
+}
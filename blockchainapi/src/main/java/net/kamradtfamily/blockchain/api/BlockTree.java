@@ -0,0 +1,165 @@
+package net.kamradtfamily.blockchain.api;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.DistributionSummary;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+import reactor.core.publisher.Mono;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The side branches of the chain: valid blocks that link to a block in the
+ * chain, or to another side block, but are not part of the chain. They are
+ * kept in memory, keyed by hash, so that a branch that ends up with more work
+ * than the chain can replace it. The oldest blocks are dropped when the tree
+ * is full, and blocks too far below the tip to ever be switched to are pruned
+ * as the tip moves.
+ */
+@Component
+public class BlockTree {
+    private static final String METRIC = "blockchain.reorg";
+    private final HeaderCache headers;
+    private final int maximumDepth;
+    private final Map<String, Block> blocks;
+    private final Counter applied;
+    private final Counter tooDeep;
+    private final Counter failed;
+    private final DistributionSummary depth;
+
+    public BlockTree(HeaderCache headers,
+                     @Value("${blockchain.fork.tree.size:1024}") int capacity,
+                     @Value("${blockchain.fork.max-depth:100}") int maximumDepth,
+                     MeterRegistry registry) {
+        this.headers = headers;
+        this.maximumDepth = maximumDepth;
+        this.blocks = new LinkedHashMap<String, Block>() {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Block> eldest) {
+                return size() > capacity;
+            }
+        };
+        this.applied = reorgs(registry, "applied");
+        this.tooDeep = reorgs(registry, "too_deep");
+        this.failed = reorgs(registry, "failed");
+        this.depth = DistributionSummary.builder(METRIC + ".depth")
+                .description("blocks rolled back by a reorganization")
+                .baseUnit("blocks")
+                .register(registry);
+        Gauge.builder("blockchain.fork.tree.size", this, BlockTree::size)
+                .description("side branch blocks held in memory")
+                .register(registry);
+    }
+
+    /**
+     *
+     * Add a block that is not part of the chain
+     *
+     * @param block the block
+     */
+    public synchronized void add(Block block) {
+        blocks.put(block.getHash(), block);
+    }
+
+    /**
+     *
+     * Get a side block by hash
+     *
+     * @param hash the hash of the block
+     * @return the block, null if it isn't in the tree
+     */
+    public synchronized Block get(String hash) {
+        return blocks.get(hash);
+    }
+
+    public synchronized boolean contains(String hash) {
+        return blocks.containsKey(hash);
+    }
+
+    public synchronized void remove(Block block) {
+        blocks.remove(block.getHash());
+    }
+
+    public synchronized int size() {
+        return blocks.size();
+    }
+
+    /**
+     *
+     * Drop the blocks that are too far below the tip to be switched to
+     *
+     * @param tip the tip of the chain
+     */
+    public synchronized void prune(Block tip) {
+        blocks.values().removeIf(b -> b.getIndex() < tip.getIndex() - maximumDepth);
+    }
+
+    /**
+     *
+     * Follow a branch back from a block to the first block that isn't in
+     * the tree, the parent of that block is where the branch leaves the chain
+     *
+     * @param tip the last block of the branch
+     * @return the side blocks of the branch in index order
+     */
+    public synchronized List<Block> branch(Block tip) {
+        List<Block> branch = new ArrayList<>();
+        for(Block b = tip; b != null; b = blocks.get(b.getPreviousHash())) {
+            branch.add(b);
+        }
+        Collections.reverse(branch);
+        return branch;
+    }
+
+    /**
+     *
+     * Get the header at an index on the branch a block is on. Below the
+     * side blocks the branch is the chain itself.
+     *
+     * @param block a block on the branch, in the tree or in the chain
+     * @param index the index of the header
+     * @return A Mono of the header
+     */
+    public Mono<Block> ancestor(Block block, long index) {
+        Block b = block;
+        synchronized(this) {
+            while(b != null && b.getIndex() > index) {
+                b = blocks.get(b.getPreviousHash());
+            }
+        }
+        if(b != null && b.getIndex() == index) {
+            return Mono.just(b);
+        }
+        return headers.get(index);
+    }
+
+    public int getMaximumDepth() {
+        return maximumDepth;
+    }
+
+    void reorganized(int rolledBack) {
+        applied.increment();
+        depth.record(rolledBack);
+    }
+
+    void rejectedTooDeep() {
+        tooDeep.increment();
+    }
+
+    void failed() {
+        failed.increment();
+    }
+
+    private static Counter reorgs(MeterRegistry registry, String result) {
+        return Counter.builder(METRIC)
+                .description("chain reorganizations by result")
+                .tag("result", result)
+                .register(registry);
+    }
+}
@@ -1,61 +1,417 @@
 package net.kamradtfamily.blockchain.api;
 
 import lombok.extern.slf4j.Slf4j;
-import org.springframework.kafka.core.reactive.ReactiveKafkaProducerTemplate;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.dao.DuplicateKeyException;
 import org.springframework.stereotype.Component;
+import reactor.core.publisher.DirectProcessor;
 import reactor.core.publisher.Flux;
+import reactor.core.publisher.FluxSink;
 import reactor.core.publisher.Mono;
+import reactor.core.publisher.MonoSink;
+import reactor.core.publisher.UnicastProcessor;
+import reactor.util.retry.Retry;
 
+import java.math.BigInteger;
+import java.nio.ByteBuffer;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
 import java.util.Random;
-import java.util.concurrent.atomic.AtomicLong;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.BiFunction;
+import java.util.function.LongFunction;
+import java.util.function.Supplier;
+import java.util.stream.Collectors;
 
 /**
  * This class holds the methods associated with blocks and transaction
- * including verifying correctness, and adding to the distributed ledger
+ * including verifying correctness, and adding to the distributed ledger.
+ * Blocks are written by a single writer, which only serializes the writes
+ * of this process. The node writes the blocks it syncs on its own, and the
+ * two are kept apart only by the unique index on the block index, so the
+ * loser of a race gets a duplicate key and catches up from the store.
  */
 @Slf4j
 @Component
 public class Blockchain {
     public static final String TOPIC = "blockchain";
-    final ReactiveKafkaProducerTemplate<String, Message> emitter;
-    final BlockRepository blocks;
+    private static final int POOL_WRITE_RETRIES = 3;
+    private static final Duration POOL_WRITE_BACKOFF = Duration.ofMillis(100);
+    final Broadcaster broadcaster;
+    final BlockStore blocks;
     final TransactionRepository transactions;
+    final CheckpointRepository checkpoints;
+    final Mempool mempool;
+    final ConfirmedTransactions confirmed;
+    final Difficulty difficulty;
+    final BlockLimits limits;
+    final SignatureVerifier verifier;
+    final HeaderCache headers;
+    final BlockTree forks;
+    final int pageSize;
     final Random random = new Random();
+    final AtomicReference<Block> tip = new AtomicReference<>();
+    final DirectProcessor<Block> tipChanges = DirectProcessor.create();
+    final FluxSink<Block> tipSink = tipChanges.sink();
+    final BlockingQueue<Write> writes;
+    final int writeBatch;
+    final AtomicBoolean writing = new AtomicBoolean();
+    final UnicastProcessor<PoolChange> poolChanges = UnicastProcessor.create();
+    final FluxSink<PoolChange> poolSink = poolChanges.sink();
+    // ids whose delete failed, only touched by the pool change writer
+    final Set<Long> undeleted = new LinkedHashSet<>();
+    volatile boolean ready = false;
 
     /**
      *
      * Create a new Blockchain object. When first created, it will inspect the local
      * database, create a genesis block if it is empty of blocks, or if it has blocks
      * ensure that the transaction database does not have any transactions that are
-     * already associated with existing blocks.
+     * already associated with existing blocks. Only the blocks after the last
+     * reconciled checkpoint are inspected, so startup doesn't grow with the chain.
      *
-     * @param blocks The database of blocks
+     * @param blocks The store of blocks
      * @param transactionRepository The database of 'loose' transactions
-     * @param emitter An emitter of signals to ensure building consensus.
+     * @param checkpoints The database of how far reconciliation has got
+     * @param mempool The 'loose' transactions in memory
+     * @param confirmed A filter of the transactions already in the chain
+     * @param difficulty The proof of work rule
+     * @param limits The size limits of a block
+     * @param verifier The checker of transaction signatures
+     * @param headers The headers of the most recent blocks
+     * @param forks The side branches of the chain
+     * @param pageSize The number of blocks read from the database at a time
+     * @param writeQueue The number of blocks that can wait to be added
+     * @param writeBatch The most blocks validated and stored together
+     * @param persistBatch The most loose transactions saved together
+     * @param persistDelay The longest a loose transaction waits to be saved, in milliseconds
+     * @param broadcaster Announces changes to the chain to build consensus.
      */
-    public Blockchain(BlockRepository blocks,
+    public Blockchain(BlockStore blocks,
                       TransactionRepository transactionRepository,
-                      ReactiveKafkaProducerTemplate<String, Message> emitter) {
-        // Some places uses the emitter to act after some data is changed
+                      CheckpointRepository checkpoints,
+                      Mempool mempool,
+                      ConfirmedTransactions confirmed,
+                      Difficulty difficulty,
+                      BlockLimits limits,
+                      SignatureVerifier verifier,
+                      HeaderCache headers,
+                      BlockTree forks,
+                      @Value("${blockchain.block.page.size:100}") int pageSize,
+                      @Value("${blockchain.block.write.queue:256}") int writeQueue,
+                      @Value("${blockchain.block.write.batch:32}") int writeBatch,
+                      @Value("${blockchain.mempool.persist.batch:500}") int persistBatch,
+                      @Value("${blockchain.mempool.persist.delay:200}") long persistDelay,
+                      Broadcaster broadcaster) {
         this.blocks = blocks;
         this.transactions = transactionRepository;
-        this.emitter = emitter;
-        blocks.findAll()
-                .flatMap(this::removeBlockTransactionsFromTransactions)
-                .switchIfEmpty(Mono.from(blocks.save(Block.genesis))
-                        .map(result -> Block.genesis))
-                .subscribe(b -> log.info("inspecting block {} on startup", b),
-                e -> log.error("error inspecting blocks on startup", e));
+        this.checkpoints = checkpoints;
+        this.mempool = mempool;
+        this.confirmed = confirmed;
+        this.difficulty = difficulty;
+        this.limits = limits;
+        this.verifier = verifier;
+        this.headers = headers;
+        this.forks = forks;
+        this.pageSize = pageSize;
+        this.writes = new ArrayBlockingQueue<>(writeQueue);
+        this.writeBatch = writeBatch;
+        this.broadcaster = broadcaster;
+        checkpoints.findById(Checkpoint.RECONCILED)
+                .filterWhen(cp -> blocks.findByIndex(cp.getIndex())
+                        .map(b -> b.getHash().equals(cp.getHash())))
+                .doOnNext(cp -> log.info("reconciled up to block {} on last run", cp.getIndex()))
+                .map(cp -> cp.getIndex() + 1)
+                .defaultIfEmpty(0L)
+                .flatMap(from -> blocks.findLast()
+                        .switchIfEmpty(Mono.defer(() -> blocks.save(Block.genesis)))
+                        .doOnNext(this::advanceTip)
+                        .flatMap(last -> reconcile(from, last)))
+                .then(Mono.defer(this::warmHeaders))
+                .then(Mono.defer(this::loadMempool))
+                .subscribe(null,
+                        e -> log.error("error inspecting blocks on startup", e),
+                        () -> {
+                            ready = true;
+                            log.info("blockchain ready");
+                        });
+        // the filter needs every transaction id in the chain, it is filled in the
+        // background from a projection of just the ids and lookups go to the
+        // database until it is done
+        blocks.findAllTransactionIds()
+                .doOnNext(confirmed::add)
+                .doOnComplete(confirmed::markReady)
+                .subscribe(null, e -> log.error("error filling confirmed transaction filter", e));
+        // the database copy of the loose transactions is written behind the mempool
+        poolChanges
+                .bufferTimeout(persistBatch, Duration.ofMillis(persistDelay))
+                .concatMap(this::writePoolChanges)
+                .subscribe(null, e -> log.error("error writing loose transactions", e));
+        mempool.setEvictionListener(t -> poolSink.next(new PoolChange(null, t.getTransactionId())));
+    }
+
+    /**
+     *
+     * Write a batch of mempool changes to the database in the order they
+     * were made, each run of saves or deletes in one bulk call. A run that
+     * fails doesn't stop the ones after it. The ids of a failed delete are
+     * kept and deleted again before the next checkpoint, and the checkpoint
+     * doesn't move until they are gone, so a restart reconciles them.
+     *
+     * @param changes the changes
+     * @return A Mono that completes when the changes are written
+     */
+    private Mono<Void> writePoolChanges(List<PoolChange> changes) {
+        List<Mono<Void>> runs = new ArrayList<>();
+        int start = 0;
+        while (start < changes.size()) {
+            int kind = changes.get(start).kind();
+            int end = start;
+            while (end < changes.size() && changes.get(end).kind() == kind) {
+                end++;
+            }
+            List<PoolChange> run = changes.subList(start, end);
+            if (kind == PoolChange.SAVE) {
+                List<Transaction> saved = run.stream()
+                        .map(c -> c.saved)
+                        .collect(Collectors.toList());
+                runs.add(Mono.defer(() -> {
+                            // saved again since, the failed delete no longer applies
+                            saved.forEach(t -> undeleted.remove(t.getTransactionId()));
+                            return saveLooseTransactions(saved);
+                        })
+                        .onErrorResume(e -> {
+                            log.error("error saving {} loose transactions", saved.size(), e);
+                            return Mono.empty();
+                        }));
+            } else if (kind == PoolChange.DELETE) {
+                List<Long> deleted = run.stream()
+                        .map(c -> c.deleted)
+                        .collect(Collectors.toList());
+                runs.add(deleteLooseTransactions(deleted)
+                        .onErrorResume(e -> {
+                            log.error("error deleting {} loose transactions, holding the checkpoint", deleted.size(), e);
+                            undeleted.addAll(deleted);
+                            return Mono.empty();
+                        }));
+            } else {
+                // only the latest checkpoint matters
+                Block reconciled = run.get(run.size() - 1).reconciled;
+                runs.add(Mono.defer(() -> {
+                            List<Long> retried = new ArrayList<>(undeleted);
+                            return deleteLooseTransactions(retried)
+                                    .then(Mono.fromRunnable(() -> retried.forEach(undeleted::remove)));
+                        })
+                        .then(Mono.defer(() -> saveCheckpoint(reconciled)))
+                        .onErrorResume(e -> {
+                            log.error("error reconciling loose transactions up to block {}", reconciled.getIndex(), e);
+                            return Mono.empty();
+                        }));
+            }
+            start = end;
+        }
+        return Flux.concat(runs)
+                .then();
+    }
+
+    private Mono<Void> saveLooseTransactions(List<Transaction> saved) {
+        return transactions.saveAll(saved)
+                .then()
+                .retryWhen(Retry.backoff(POOL_WRITE_RETRIES, POOL_WRITE_BACKOFF))
+                .doOnSuccess(ignore -> log.debug("saved {} loose transactions", saved.size()));
     }
 
     /**
      *
-     * Return all the blocks currently stored in the database
+     * Delete loose transactions from the database with one deleteMany on the
+     * transactionId index, retried if it fails
+     *
+     * @param transactionIds the ids to delete
+     * @return A Mono that completes when they are deleted
+     */
+    private Mono<Void> deleteLooseTransactions(Collection<Long> transactionIds) {
+        if (transactionIds.isEmpty()) {
+            return Mono.empty();
+        }
+        return transactions.deleteByTransactionIdIn(transactionIds)
+                .retryWhen(Retry.backoff(POOL_WRITE_RETRIES, POOL_WRITE_BACKOFF))
+                .doOnNext(n -> log.info("removed {} of {} transactions from loose transactions", n, transactionIds.size()))
+                .then();
+    }
+
+    /**
+     * A change to the database copy of the mempool, a transaction to save,
+     * the id of one to delete, or a block whose transactions have all been
+     * deleted before it, which moves the checkpoint
+     */
+    private static class PoolChange {
+        static final int SAVE = 0;
+        static final int DELETE = 1;
+        static final int CHECKPOINT = 2;
+        final Transaction saved;
+        final Long deleted;
+        final Block reconciled;
+
+        PoolChange(Transaction saved, Long deleted) {
+            this(saved, deleted, null);
+        }
+
+        PoolChange(Transaction saved, Long deleted, Block reconciled) {
+            this.saved = saved;
+            this.deleted = deleted;
+            this.reconciled = reconciled;
+        }
+
+        int kind() {
+            return saved != null ? SAVE : deleted != null ? DELETE : CHECKPOINT;
+        }
+    }
+
+    /**
+     *
+     * Remove the transactions of the blocks after the checkpoint from the loose
+     * transaction database, a page of blocks at a time, moving the checkpoint
+     * after each page so a restart part way through carries on from there
+     *
+     * @param from the first block to reconcile
+     * @param last the tip
+     * @return A Mono that completes when every block is reconciled
+     */
+    private Mono<Void> reconcile(long from, Block last) {
+        log.info("reconciling blocks {} to {}", from, last.getIndex());
+        return getBlocks(from, last.getIndex())
+                .buffer(pageSize)
+                .concatMap(page -> deleteLooseTransactions(page.stream()
+                                .flatMap(b -> b.getTransactions().stream())
+                                .map(Transaction::getTransactionId)
+                                .collect(Collectors.toList()))
+                        .then(saveCheckpoint(page.get(page.size() - 1))), 1)
+                .then();
+    }
+
+    private Mono<Void> saveCheckpoint(Block block) {
+        return checkpoints.save(Checkpoint.builder()
+                        .id(Checkpoint.RECONCILED)
+                        .index(block.getIndex())
+                        .hash(block.getHash())
+                        .build())
+                .retryWhen(Retry.backoff(POOL_WRITE_RETRIES, POOL_WRITE_BACKOFF))
+                .then();
+    }
+
+    private Mono<Void> warmHeaders() {
+        Block last = tip.get();
+        if (last == null) {
+            return Mono.empty();
+        }
+        return getHeaders(Math.max(0, last.getIndex() - headers.getCapacity() + 1), last.getIndex())
+                .doOnNext(headers::add)
+                .then();
+    }
+
+    private Mono<Void> loadMempool() {
+        return transactions.findAll()
+                .filter(mempool::add)
+                .count()
+                .doOnNext(n -> log.info("loaded {} loose transactions", n))
+                .then();
+    }
+
+    /**
+     *
+     * Whether startup is done: the blocks since the last checkpoint are
+     * reconciled, and the tip, recent headers and mempool are in memory
+     *
+     * @return true when ready to serve
+     */
+    public boolean isReady() {
+        return ready;
+    }
+
+    /**
+     *
+     * Return all the blocks currently in the chain, in index order,
+     * read a page at a time
      *
      * @return a Flux of Blocks
      */
     public Flux<Block> getAllBlocks() {
-        return blocks.findAll();
+        return getBlocks(0, Long.MAX_VALUE);
+    }
+
+    /**
+     *
+     * Return the blocks with an index in a range, in index order. The blocks
+     * are read from the store by index range, one page at a time, and the
+     * next page isn't read until the subscriber has asked for it.
+     *
+     * @param fromIndex the first index to return
+     * @param toIndex the last index to return, past the tip means up to the tip
+     * @return a Flux of Blocks
+     */
+    public Flux<Block> getBlocks(long fromIndex, long toIndex) {
+        return getRange(fromIndex, toIndex, blocks::findRange);
+    }
+
+    /**
+     *
+     * Return the headers of the blocks with an index in a range, in index
+     * order. The transactions are left out by the store, so this is much
+     * cheaper than getBlocks when only the chain of hashes is needed, like
+     * when a peer is looking for where its chain and ours split.
+     *
+     * @param fromIndex the first index to return
+     * @param toIndex the last index to return, past the tip means up to the tip
+     * @return a Flux of Blocks without transactions
+     */
+    public Flux<Block> getHeaders(long fromIndex, long toIndex) {
+        return getRange(fromIndex, toIndex, blocks::findHeaders);
+    }
+
+    /**
+     *
+     * Return the JSON of the blocks with an index in a range, in index order,
+     * as the store has it. This is what peers and clients are sent, so a
+     * range can be written to them without decoding and encoding each block.
+     *
+     * @param fromIndex the first index to return
+     * @param toIndex the last index to return, past the tip means up to the tip
+     * @return a Flux of read only buffers, one per block
+     */
+    public Flux<ByteBuffer> getEncodedBlocks(long fromIndex, long toIndex) {
+        return getRange(fromIndex, toIndex, blocks::findEncodedRange);
+    }
+
+    private <T> Flux<T> getRange(long fromIndex, long toIndex, BiFunction<Long, Long, Flux<T>> query) {
+        final long from = Math.max(0, fromIndex);
+        return getLastBlock()
+                .flatMapMany(last -> getPages(from, Math.min(toIndex, last.getIndex()), query));
+    }
+
+    private <T> Flux<T> getPages(long from, long to, BiFunction<Long, Long, Flux<T>> query) {
+        return Flux.<Long, Long>generate(() -> from, (start, sink) -> {
+                    if(start > to) {
+                        sink.complete();
+                    } else {
+                        sink.next(start);
+                    }
+                    return start + pageSize;
+                })
+                .concatMap(start -> query.apply(start,
+                        Math.min(to, start + pageSize - 1)), 1);
     }
 
     /**
@@ -71,30 +427,62 @@ public class Blockchain {
 
     /**
      *
-     * Get the last block in the blockchain. Finds the max index and
-     * then returns that value.
+     * Get the last block in the blockchain. The tip is kept in memory
+     * as blocks are added, so normally this doesn't touch the database.
+     * If the tip isn't known yet the block with the highest index is read
+     * from the store. Blocks stored by another process sharing the store
+     * are picked up when they are announced, see catchUp.
      *
      * @return A Mono of Block
      */
     public Mono<Block> getLastBlock() {
-        // todo figure out a better way to get max from mongo
-        AtomicLong max = new AtomicLong(-1L);
-        return blocks.findAll()
-                .doOnNext(b -> max.getAndUpdate(i -> Math.max(i, b.getIndex())))
-                .last()
-                .flatMap(b -> blocks.findByIndex(max.get()));
+        Block last = tip.get();
+        if(last != null) {
+            return Mono.just(last);
+        }
+        return blocks.findLast()
+                .doOnNext(this::advanceTip);
+    }
+
+    /**
+     *
+     * Move the in memory tip forward to the block if it is past
+     * the current tip. Never moves the tip backward.
+     *
+     * @param block the block that was just stored or read
+     */
+    void advanceTip(Block block) {
+        Block current = tip.accumulateAndGet(block, (last, candidate) ->
+                last == null || candidate.getIndex() > last.getIndex() ? candidate : last);
+        if(current == block) {
+            headers.add(block);
+            forks.prune(block);
+            tipSink.next(block);
+        }
+    }
+
+    /**
+     *
+     * A stream of the tip of the chain each time it moves forward, used
+     * to stop work that is based on an old tip
+     *
+     * @return A Flux of Block
+     */
+    public Flux<Block> getTipChanges() {
+        return tipChanges;
     }
 
     /**
      *
-     * Get the difficulty level. Always returns 0 because our
-     * transactions have no value and so mining should be easy
+     * Get the difficulty level, the number of leading zero bits
+     * the hash of a block at the index must have.
      *
-     * @param index
-     * @return A number to be less then to prove work
+     * @param index the index of the block
+     * @param version the version of the block
+     * @return A Mono of the minimum number of leading zero bits
      */
-    public long getDifficulty(long index) {
-        return 0L;
+    public Mono<Long> getDifficulty(long index, int version) {
+        return difficulty.getDifficulty(index, version);
     }
 
     /**
@@ -102,12 +490,61 @@ public class Blockchain {
      * Get all 'loose' transaction, that is transactions
      * that have been created by the user, but are not part
      * af a block. Loose transactions will eventually be
-     * put into a block by a mining operation
+     * put into a block by a mining operation. Served from
+     * the mempool, oldest first.
      *
      * @return A Flux of Transactions
      */
     public Flux<Transaction> getAllTransactions() {
-        return transactions.findAll();
+        return Flux.fromIterable(mempool.getAll());
+    }
+
+    /**
+     *
+     * Build the next block to mine on the tip: everything but the nonce and
+     * hash. The mempool fills it oldest first up to the block limits, and
+     * whatever doesn't fit waits for the next block. Transactions that turn
+     * out to be in the chain already, because another node mined them, are
+     * dropped from the mempool instead. The difficulty is worked out by the
+     * same rule blocks are checked with, so legacy blocks get none and the
+     * first versioned block on a legacy tip starts the series. Once the tip
+     * is versioned a legacy block would be rejected, so the tip's version is
+     * built instead.
+     *
+     * @param version the block version to build
+     * @return A Mono of the block template
+     */
+    public Mono<Block> getBlockTemplate(int version) {
+        List<Transaction> selected = mempool.select(limits.getMaximumTransactions(), limits.getMaximumBytes());
+        Mono<List<Transaction>> fresh = selected.isEmpty()
+                ? Mono.just(selected)
+                : findTransactionsInChain(selected.stream()
+                        .map(Transaction::getTransactionId)
+                        .collect(Collectors.toList()))
+                .map(inChain -> {
+                    if(inChain.isEmpty()) {
+                        return selected;
+                    }
+                    inChain.forEach(mempool::remove);
+                    return selected.stream()
+                            .filter(t -> !inChain.contains(t.getTransactionId()))
+                            .collect(Collectors.toList());
+                });
+        return fresh.flatMap(ts -> getLastBlock()
+                .flatMap(b -> {
+                    int blockVersion = version == Block.LEGACY_VERSION ? b.getVersion() : version;
+                    return getDifficulty(b.getIndex() + 1, blockVersion)
+                        .map(d -> Block.builder()
+                                .version(blockVersion)
+                                .transactions(ts)
+                                .nonce(0)
+                                .difficulty(d)
+                                .previousHash(b.getHash())
+                                .timestamp(Instant.now().getEpochSecond())
+                                .index(b.getIndex() + 1)
+                                .build()
+                                .withMerkleRoot());
+                }));
     }
 
     /**
@@ -118,7 +555,7 @@ public class Blockchain {
      * @return A Mono of Transaction
      */
     public Mono<Transaction> getTransactionById(long id) {
-        return transactions.findByTransactionId(id);
+        return Mono.justOrEmpty(mempool.get(id));
     }
 
     /**
@@ -126,17 +563,45 @@ public class Blockchain {
      * Return a flux of blocks that contain the transaction. Used
      * mainly to see if a transaction is already part of the block
      * chain. Since a transaction should only exist once, there
-     * should ever only be 0 or 1 blocks returned
+     * should ever only be 0 or 1 blocks returned. This is a point
+     * lookup on the transactions.transactionId index of the block
+     * collection rather than a scan of the chain, and is skipped
+     * entirely when the confirmed transaction filter knows the
+     * transaction isn't in the chain.
      *
      * @param transactionId the transaction id we're looking for
      * @return a flux of blocks that contain the transaction
      */
-    public Flux<Block> findTransactionInChain(long transactionId, Flux<Block> referenceBlockchain) {
-        return referenceBlockchain
-            .filter(b -> b.getTransactions()
-                .stream()
-                .anyMatch(t -> t.getTransactionId() == transactionId)
-            );
+    public Flux<Block> findTransactionInChain(long transactionId) {
+        return confirmed.lookup(transactionId,
+                blocks.findByTransactionId(transactionId));
+    }
+
+    /**
+     *
+     * Build a proof that a transaction is in the chain that can be checked
+     * without the rest of the block. Only header version blocks commit to a
+     * merkle root, so transactions in older blocks have no proof.
+     *
+     * @param transactionId the transaction id we're looking for
+     * @return A Mono of MerkleProof, empty if the transaction isn't in a header version block
+     */
+    public Mono<MerkleProof> getTransactionProof(long transactionId) {
+        return findTransactionInChain(transactionId)
+                .next()
+                .filter(b -> b.getVersion() >= Block.HEADER_VERSION)
+                .map(b -> {
+                    List<Transaction> blockTransactions = b.getTransactions();
+                    int position = 0;
+                    while(blockTransactions.get(position).getTransactionId() != transactionId) {
+                        position++;
+                    }
+                    return MerkleProof.builder()
+                            .header(b.toHeader())
+                            .transaction(blockTransactions.get(position))
+                            .path(MerkleTree.path(blockTransactions, position))
+                            .build();
+                });
     }
 
     /**
@@ -144,7 +609,11 @@ public class Blockchain {
      * Add a new block to the block chain. This happens as a result
      * of a mining operation. The block is verified for correctness
      * and all of the transactions contained are removed from the 'loose'
-     * transaction database.
+     * transaction database. Blocks are validated and stored by a single
+     * writer, one at a time in the order they were added, so two blocks
+     * from this process can never both be checked against the same tip.
+     * Another process sharing the store is only held off by its unique
+     * index on the block index.
      *
      * @param newBlock the block to add
      * @param emit true to emit (set to false when replacing the block chain)
@@ -152,28 +621,168 @@ public class Blockchain {
      */
     public Mono<Block> addBlock(Block newBlock, boolean emit) {
         log.info("adding block {}", newBlock);
-        return getLastBlock()
-                .doOnNext(b -> log.info("in addBlock last block = {}", b))
-                .flatMap(l -> checkBlock(newBlock, l, getAllBlocks())
-                                .map(t -> newBlock))
-                .flatMap(ignore -> blocks.save(newBlock))
-                .map(ignore -> newBlock)
+        return Mono.<Block>create(sink -> submit(new Write(newBlock, null, sink)))
                 .flatMap(this::removeBlockTransactionsFromTransactions)
-                .flatMap(b -> emit
-                        ? emitter.send(TOPIC, Message.builder()
-                                    .type("block")
-                                    .message("addedBlock")
-                                    .block(b)
-                                    .build())
-                        .doOnNext(sr -> log.info("sent message addedBlock send result {}", sr))
-                        .doOnError(ex -> log.error("error sending message addedBlock send result {}", ex))
-                        .map(ignore -> b)
-                        : Mono.just(b))
+                .flatMap(b -> emit ? emitAddedBlock(b) : Mono.just(b))
                 .doOnNext(b -> {
                     log.info("Block added: {}", b);
                 });
     }
 
+    private void submit(Write write) {
+        if (!writes.offer(write)) {
+            write.fail(new BlockAssertionError("Too many blocks waiting to be added"));
+            return;
+        }
+        drain();
+    }
+
+    /**
+     *
+     * Start the writer on the waiting writes unless it is already running.
+     * The writer runs one batch at a time and calls this again when the
+     * batch is done, so writes that arrive while it is busy are picked up.
+     */
+    private void drain() {
+        while (!writes.isEmpty() && writing.compareAndSet(false, true)) {
+            List<Write> batch = nextBatch();
+            if (batch.isEmpty()) {
+                writing.set(false);
+                continue;
+            }
+            write(batch)
+                    .doFinally(s -> {
+                        writing.set(false);
+                        drain();
+                    })
+                    .subscribe(null, e -> log.error("error writing blocks", e));
+            return;
+        }
+    }
+
+    /**
+     *
+     * Take the next blocks to append, up to the batch size. A task that
+     * changes the chain some other way always runs on its own.
+     *
+     * @return the writes to do together
+     */
+    private List<Write> nextBatch() {
+        List<Write> batch = new ArrayList<>();
+        Write next;
+        while (batch.size() < writeBatch && (next = writes.peek()) != null) {
+            if (next.task != null && !batch.isEmpty()) {
+                break;
+            }
+            batch.add(writes.poll());
+            if (next.task != null) {
+                break;
+            }
+        }
+        return batch;
+    }
+
+    /**
+     *
+     * Check a batch of blocks in order, each against the one before it
+     * starting from the in memory tip, and store the good ones together.
+     * A bad block fails on its own, the ones after it are checked against
+     * the last good block. The good blocks aren't stored until the whole
+     * batch is checked, so a block whose parent is earlier in the batch
+     * finds its ancestors among the good blocks before looking in the chain.
+     *
+     * @param batch the writes to do
+     * @return A Mono that completes when every write in the batch is finished
+     */
+    private Mono<Void> write(List<Write> batch) {
+        if (batch.get(0).task != null) {
+            Write task = batch.get(0);
+            return Mono.defer(task.task)
+                    .doOnSuccess(task::succeed)
+                    .doOnError(task::fail)
+                    .onErrorResume(e -> Mono.empty())
+                    .then();
+        }
+        List<Write> accepted = new ArrayList<>();
+        Map<Long, Block> batched = new HashMap<>();
+        Set<Long> pending = new HashSet<>();
+        LongFunction<Mono<Block>> ancestors = index -> batched.containsKey(index)
+                ? Mono.just(batched.get(index))
+                : headers.get(index);
+        return getLastBlock()
+                .doOnNext(b -> log.info("writing {} blocks on last block = {}", batch.size(), b))
+                .flatMap(last -> {
+                    AtomicReference<Block> previous = new AtomicReference<>(last);
+                    return Flux.fromIterable(batch)
+                            .concatMap(w -> checkBlock(w.block, previous.get(), pending, ancestors)
+                                    .switchIfEmpty(Mono.error(() -> new BlockAssertionError("Block "
+                                            + w.block.getIndex() + " could not be checked")))
+                                    .doOnNext(b -> {
+                                        previous.set(b);
+                                        batched.put(b.getIndex(), b);
+                                        b.getTransactions().forEach(t -> pending.add(t.getTransactionId()));
+                                        accepted.add(w);
+                                    })
+                                    .onErrorResume(e -> {
+                                        w.fail(e);
+                                        return Mono.empty();
+                                    }))
+                            .then(Mono.defer(() -> accepted.isEmpty()
+                                    ? Mono.<Void>empty()
+                                    : blocks.saveAll(accepted.stream()
+                                            .map(w -> w.block)
+                                            .collect(Collectors.toList()))
+                                    .then()));
+                })
+                .doOnSuccess(ignore -> accepted.forEach(w -> {
+                    advanceTip(w.block);
+                    confirmed.add(w.block);
+                    w.succeed(w.block);
+                }))
+                .doOnError(DuplicateKeyException.class, ex -> {
+                    // another writer got to this index first, our tip is stale
+                    log.warn("block index already stored, refreshing tip");
+                    refreshTip();
+                })
+                .onErrorResume(e -> {
+                    batch.forEach(w -> w.fail(e));
+                    return Mono.empty();
+                });
+    }
+
+    /**
+     * A block waiting to be appended, or a task that changes the chain
+     * and has to run with nothing else writing
+     */
+    private static class Write {
+        final Block block;
+        final Supplier<Mono<Block>> task;
+        final MonoSink<Block> sink;
+        final AtomicBoolean done = new AtomicBoolean();
+
+        Write(Block block, Supplier<Mono<Block>> task, MonoSink<Block> sink) {
+            this.block = block;
+            this.task = task;
+            this.sink = sink;
+        }
+
+        void succeed(Block result) {
+            if (!done.getAndSet(true)) {
+                sink.success(result);
+            }
+        }
+
+        void fail(Throwable e) {
+            if (!done.getAndSet(true)) {
+                sink.error(e);
+            }
+        }
+    }
+
+    private Mono<Block> emitAddedBlock(Block b) {
+        return broadcaster.addedBlock(b);
+    }
+
     /**
      *
      * Add a loose transaction. The transaction is verified for correctness and
@@ -185,45 +794,237 @@ public class Blockchain {
      * @return a Mono of Transaction which is always the new transaction if it was added.
      */
     public Mono<Transaction> addTransaction(Transaction newTransaction, boolean emit) {
-        return checkTransaction(newTransaction, getAllBlocks())
+        return checkTransaction(newTransaction)
                 .map(b -> newTransaction)
-                .flatMap(t -> transactions.findByTransactionId(t.getTransactionId()))
+                .flatMap(t -> getTransactionById(t.getTransactionId()))
                 .doOnNext(t -> log.info("transaction is already present"))
-                .switchIfEmpty(transactions.save(newTransaction)
-                        .doOnNext(t -> log.info("saved transaction {}", t))
-                        .flatMap(t -> emit
-                                ? emitter.send(TOPIC, Message.builder()
-                                    .type("transaction")
-                                    .message("addedTransaction")
-                                    .transaction(t)
-                                    .build())
-                                .doOnNext(sr -> log.info("sent message addedTransaction send result {}", sr))
-                                .doOnError(ex -> log.error("error sending message addedTransaction send result {}", ex))
-                                .map(ignore -> t)
-                                : Mono.just(t))
+                .switchIfEmpty(Mono.fromSupplier(() -> newTransaction)
+                        .filter(this::pool)
+                        .doOnNext(t -> log.info("pooled transaction {}", t))
+                        .flatMap(t -> emit ? broadcaster.addedTransaction(t) : Mono.just(t))
                         .doOnNext(t1 -> log.info("Transaction added: {}", t1)));
     }
 
     /**
      *
-     * Remove transaction from the database of loose transactions
+     * Put a transaction in the mempool and queue it to be saved
+     *
+     * @param transaction the transaction
+     * @return true if it wasn't already in the mempool
+     */
+    private boolean pool(Transaction transaction) {
+        if(!mempool.add(transaction)) {
+            return false;
+        }
+        poolSink.next(new PoolChange(transaction, null));
+        return true;
+    }
+
+    /**
+     *
+     * Keep the mempool in step with what other nodes and processes sharing the
+     * database announce: their transactions are added, and the transactions
+     * of their blocks are removed. Nothing is saved, the sender has done that.
+     * A block that isn't on our chain was stored by someone else, so the tip
+     * is caught up with the store.
+     *
+     * @param m the announcement
+     */
+    public void receive(Message m) {
+        if("addedBlock".equals(m.getMessage()) && m.getBlock() != null) {
+            mempool.removeAll(m.getBlock().getTransactions());
+            confirmed.add(m.getBlock());
+            if(!isOnChain(m.getBlock())) {
+                refreshTip();
+            }
+        } else if("addedTransaction".equals(m.getMessage()) && m.getTransaction() != null) {
+            mempool.add(m.getTransaction());
+        } else if("addedTransactions".equals(m.getMessage()) && m.getTransactions() != null) {
+            m.getTransactions().forEach(mempool::add);
+        }
+    }
+
+    private boolean isOnChain(Block block) {
+        Block header = headers.peek(block.getIndex());
+        return header != null && header.getHash().equals(block.getHash());
+    }
+
+    /**
+     *
+     * Queue a catch up with the store behind the writes already waiting.
+     * Until it is done the store has blocks the confirmed transaction
+     * filter hasn't seen, so it isn't trusted.
+     */
+    private void refreshTip() {
+        confirmed.fellBehind();
+        Mono.<Block>create(sink -> submit(new Write(null, this::catchUp, sink)))
+                .doFinally(s -> confirmed.caughtUp())
+                .subscribe(null, e -> log.error("error catching up with the block store", e));
+    }
+
+    /**
+     *
+     * Bring the in memory tip and headers up to the store. Another process
+     * sharing the store can append blocks or reorganize the chain, so the
+     * last block we share with the store is found among the recent headers
+     * and the stored blocks after it replace ours, their transactions going
+     * into the confirmed transaction filter. Runs as a writer task so
+     * nothing is appended while the tip moves.
+     *
+     * @return A Mono of the tip
+     */
+    Mono<Block> catchUp() {
+        return blocks.findLast()
+                .flatMap(last -> {
+                    Block current = tip.get();
+                    if(current == null) {
+                        advanceTip(last);
+                        return Mono.just(last);
+                    }
+                    if(current.getHash().equals(last.getHash())) {
+                        return Mono.just(current);
+                    }
+                    return findStoredForkPoint(current, last)
+                            .flatMap(fork -> applyStoredBlocks(fork, last));
+                });
+    }
+
+    /**
+     *
+     * Find the highest index where the store and our headers have the same
+     * block, looking no deeper than a reorganization could go
+     *
+     * @param current our tip
+     * @param last the stored tip
+     * @return A Mono of the index of the last block in common
+     */
+    private Mono<Long> findStoredForkPoint(Block current, Block last) {
+        long top = Math.min(current.getIndex(), last.getIndex());
+        long from = Math.max(0, top - forks.getMaximumDepth());
+        return blocks.findHeaders(from, top)
+                .filter(this::isOnChain)
+                .takeLast(1)
+                .next()
+                .map(Block::getIndex)
+                .defaultIfEmpty(from - 1);
+    }
+
+    private Mono<Block> applyStoredBlocks(long fork, Block last) {
+        headers.truncate(fork + 1);
+        return getPages(fork + 1, last.getIndex(), blocks::findRange)
+                .doOnNext(b -> {
+                    headers.add(b);
+                    confirmed.add(b);
+                    forks.remove(b);
+                    mempool.removeAll(b.getTransactions());
+                })
+                .count()
+                .map(n -> {
+                    log.info("caught up with {} stored blocks after {}, tip is now {}", n, fork, last.getIndex());
+                    tip.set(last);
+                    forks.prune(last);
+                    tipSink.next(last);
+                    return last;
+                });
+    }
+
+    /**
+     *
+     * Add a batch of loose transactions together. Each transaction is checked,
+     * repeats within the batch are dropped, the signatures are verified in
+     * parallel, the ids are looked up in the mempool and then in the chain
+     * with one query. The new transactions are
+     * pooled, saved in bulk behind the mempool, and emitted in one message.
+     *
+     * @param batch the new transactions
+     * @param emit emit to build consensus
+     * @return a Flux of the result for each transaction, in batch order
+     */
+    public Flux<TransactionResult> addTransactions(List<Transaction> batch, boolean emit) {
+        if(batch.isEmpty()) {
+            return Flux.empty();
+        }
+        Map<Long, TransactionResult> results = new HashMap<>();
+        Map<Long, Transaction> candidates = new LinkedHashMap<>();
+        List<TransactionResult> ordered = new ArrayList<>(batch.size());
+        for(Transaction t : batch) {
+            TransactionResult result = TransactionResult.builder()
+                    .transactionId(t.getTransactionId())
+                    .build();
+            ordered.add(result);
+            if(candidates.containsKey(t.getTransactionId())) {
+                result.setStatus(TransactionResult.REPEATED);
+                result.setReason("repeated in batch");
+                continue;
+            }
+            try {
+                t.check(t);
+            } catch (RuntimeException e) {
+                result.setStatus(TransactionResult.INVALID);
+                result.setReason(e.getMessage());
+                continue;
+            }
+            candidates.put(t.getTransactionId(), t);
+            results.put(t.getTransactionId(), result);
+        }
+        log.info("adding {} transactions, {} distinct and valid", batch.size(), candidates.size());
+        candidates.keySet().removeIf(id -> {
+            if(mempool.contains(id)) {
+                results.get(id).setStatus(TransactionResult.PENDING);
+                return true;
+            }
+            return false;
+        });
+        return verifier.findInvalid(candidates.values())
+                .flatMap(rejected -> {
+                    rejected.forEach((id, reason) -> {
+                        candidates.remove(id);
+                        results.get(id).setStatus(TransactionResult.INVALID);
+                        results.get(id).setReason(reason);
+                    });
+                    return findTransactionsInChain(candidates.keySet());
+                })
+                .flatMap(inChain -> {
+                    inChain.forEach(id -> {
+                        candidates.remove(id);
+                        results.get(id).setStatus(TransactionResult.CONFIRMED);
+                        results.get(id).setReason("block found with transaction");
+                    });
+                    List<Transaction> added = new ArrayList<>(candidates.size());
+                    candidates.values().forEach(t -> {
+                        TransactionResult result = results.get(t.getTransactionId());
+                        if(pool(t)) {
+                            result.setStatus(TransactionResult.ADDED);
+                            added.add(t);
+                        } else {
+                            // added by another request since the check
+                            result.setStatus(TransactionResult.PENDING);
+                        }
+                    });
+                    return Mono.just(added);
+                })
+                .flatMap(added -> emit && !added.isEmpty()
+                        ? broadcaster.addedTransactions(added)
+                        : Mono.just(added))
+                .doOnNext(added -> log.info("Transactions added: {}", added.size()))
+                .flatMapIterable(ignore -> ordered);
+    }
+
+    /**
+     *
+     * Remove transaction from the mempool and the database of loose transactions.
+     * The mempool is updated right away, the database behind it in bulk, and
+     * the checkpoint moves to the block once its transactions are deleted.
      *
      * @param newBlock the new block with the transaction to remove
      * @return a Mono of Block which is always the newBlock
      */
     public Mono<Block> removeBlockTransactionsFromTransactions(Block newBlock) {
-        if(newBlock.getTransactions().isEmpty()) {
-            return Mono.just(newBlock);
-        }
-        return Flux.fromStream(newBlock.getTransactions().stream())
-                .flatMap(t -> transactions.findByTransactionId(t.getTransactionId()))
-                .doOnNext(t -> log.info("removing transaction {} from loose transactions", t))
-                .onErrorReturn(Transaction.builder().transactionId(0).build())
-                .filter(t -> t.getTransactionId() != 0)
-                .flatMap(t -> transactions.delete(t))
-                .map(ignore -> newBlock)
-                .switchIfEmpty(Flux.just(newBlock))
-                .last();
+        mempool.removeAll(newBlock.getTransactions());
+        newBlock.getTransactions()
+                .forEach(t -> poolSink.next(new PoolChange(null, t.getTransactionId())));
+        poolSink.next(new PoolChange(null, null, newBlock));
+        return Mono.just(newBlock);
     }
 
     /**
@@ -232,14 +1033,50 @@ public class Blockchain {
      *
      * @param newBlock the block to add
      * @param previousBlock the last block (always add to the end)
-     * @param referenceBlockchain The full blockchain
      * @return A Mono of Block which is always newBlock
      */
-    public Mono<Block> checkBlock(Block newBlock, Block previousBlock, Flux<Block> referenceBlockchain) {
+    public Mono<Block> checkBlock(Block newBlock, Block previousBlock) {
+        return checkBlock(newBlock, previousBlock, Collections.emptySet(), headers::get);
+    }
+
+    private Mono<Block> checkBlock(Block newBlock,
+                                   Block previousBlock,
+                                   Set<Long> pending,
+                                   LongFunction<Mono<Block>> ancestors) {
+        return checkHeader(newBlock, previousBlock, ancestors)
+                .flatMap(b -> checkTransactions(b.getTransactions(), Collections.emptySet(), pending))
+                .map(ignore -> newBlock);
+    }
+
+    /**
+     *
+     * Check everything about a block that doesn't depend on the rest of the
+     * chain's transactions: that it links to the previous block, commits to
+     * its transactions, hashes correctly and has the proof of work required
+     * on its branch.
+     *
+     * @param newBlock the block to check
+     * @param previousBlock the block it builds on
+     * @param ancestors gets the header at an index on the branch of the block
+     * @return A Mono of Block which is always newBlock
+     */
+    Mono<Block> checkHeader(Block newBlock, Block previousBlock, LongFunction<Mono<Block>> ancestors) {
         log.info("checking block {}", newBlock);
+        if (!Block.isSupportedVersion(newBlock.getVersion())) {
+            return Mono.error(() -> new BlockAssertionError("Invalid version: "
+                    + newBlock.getVersion()));
+        } else if (newBlock.getVersion() == Block.LEGACY_VERSION
+                && previousBlock.getVersion() != Block.LEGACY_VERSION) { // Unmined legacy blocks can't follow mined ones
+            return Mono.error(() -> new BlockAssertionError("Invalid version: legacy block after version "
+                    + previousBlock.getVersion()));
+        }
+        final String tooBig = limits.check(newBlock.getTransactions());
+        if (tooBig != null) { // Check the block is within the size limits
+            return Mono.error(() -> new BlockAssertionError(tooBig));
+        }
         final String blockHash = newBlock.toHash();
 
-        if (previousBlock.getIndex() + 1 != newBlock.getIndex()) { // Check if the block is the last onelog.error("Invalid index: expected {} got {}", previousBlock.getIndex() + 1, newBlock.getIndex());
+        if (previousBlock.getIndex() + 1 != newBlock.getIndex()) { // Check if the block is the next one
             return Mono.error(() -> new BlockAssertionError("Invalid index: expected "
                     + (previousBlock.getIndex() + 1)
                     + " got "
@@ -249,22 +1086,115 @@ public class Blockchain {
                     + previousBlock.getHash()
                     + " got "
                     + newBlock.getPreviousHash()));
+        } else if (newBlock.getVersion() >= Block.HEADER_VERSION
+                && !MerkleTree.root(newBlock.getTransactions()).equals(newBlock.getMerkleRoot())) { // Check the header commits to the transactions
+            return Mono.error(() -> new BlockAssertionError("Invalid merkle root: expected "
+                    + MerkleTree.root(newBlock.getTransactions())
+                    + " got "
+                    + newBlock.getMerkleRoot()));
         } else if (!blockHash.equals(newBlock.getHash())) { // Check if the hash is correct
             return Mono.error(() -> new BlockAssertionError("Invalid hash: expected "
                     + blockHash
                     + " got "
                     + newBlock.getHash()));
-        } else if (newBlock.calculateDifficulty() >= getDifficulty(newBlock.getIndex())) { // If the difficulty level of the proof-of-work challenge is correct
-            return Mono.error(() ->  new BlockAssertionError("Invalid proof-of-work difficulty: expected "
-                    + newBlock.calculateDifficulty()
-                    + " be smaller than "
-                    + getDifficulty(newBlock.getIndex())));
         }
-        return Flux.fromStream(newBlock.getTransactions().stream())
-                .flatMap(t -> checkTransaction(t, referenceBlockchain))
-                .switchIfEmpty(Flux.just(Transaction.builder().build()))
-                .last()
-                .map(ignore -> newBlock);
+        return difficulty.getDifficulty(newBlock.getIndex(), newBlock.getVersion(), ancestors)
+                .flatMap(required -> {
+                    if (newBlock.getDifficulty() != required) { // The block has to be mined at the difficulty for its index
+                        return Mono.error(() -> new BlockAssertionError("Invalid difficulty: expected "
+                                + required
+                                + " got "
+                                + newBlock.getDifficulty()));
+                    } else if (newBlock.calculateDifficulty() < required) { // If the difficulty level of the proof-of-work challenge is correct
+                        return Mono.error(() -> new BlockAssertionError("Invalid proof-of-work difficulty: expected "
+                                + newBlock.calculateDifficulty()
+                                + " to be at least "
+                                + required));
+                    }
+                    return Mono.just(newBlock);
+                })
+                .switchIfEmpty(Mono.error(() -> new BlockAssertionError("Missing ancestors of block "
+                        + newBlock.getIndex() + ", can't work out its difficulty")));
+    }
+
+    /**
+     *
+     * Check all the transactions of a block together. Each transaction is
+     * checked for correctness, the ids are checked for duplicates within the
+     * block, and all the ids are looked up in the chain with a single query.
+     * Every failure is collected into one error rather than stopping at the
+     * first one.
+     *
+     * @param blockTransactions the transactions of the block being checked
+     * @return A Mono of the transactions if they are all good
+     */
+    public Mono<List<Transaction>> checkTransactions(List<Transaction> blockTransactions) {
+        return checkTransactions(blockTransactions, Collections.emptySet(), Collections.emptySet());
+    }
+
+    /**
+     *
+     * Check transactions against the chain as it will be, not as it is stored
+     *
+     * @param blockTransactions the transactions to check
+     * @param released ids in blocks about to be rolled back, they don't count as in the chain
+     * @param pending ids in blocks about to be stored, they count as in the chain
+     * @return A Mono of the transactions if they are all good
+     */
+    private Mono<List<Transaction>> checkTransactions(List<Transaction> blockTransactions,
+                                                      Set<Long> released,
+                                                      Set<Long> pending) {
+        if(blockTransactions == null || blockTransactions.isEmpty()) {
+            return Mono.just(Collections.emptyList());
+        }
+        log.info("checking {} transactions", blockTransactions.size());
+        Set<Long> ids = new LinkedHashSet<>();
+        Set<Long> duplicates = new LinkedHashSet<>();
+        for(Transaction t : blockTransactions) {
+            t.check(t);
+            if(!ids.add(t.getTransactionId())) {
+                duplicates.add(t.getTransactionId());
+            }
+        }
+        return findTransactionsInChain(ids)
+                .map(found -> {
+                    Set<Long> inChain = new LinkedHashSet<>(found);
+                    inChain.removeAll(released);
+                    ids.stream()
+                            .filter(pending::contains)
+                            .forEach(inChain::add);
+                    return inChain;
+                })
+                .flatMap(inChain -> {
+                    if(duplicates.isEmpty() && inChain.isEmpty()) {
+                        return verifier.verifyAll(blockTransactions)
+                                .onErrorMap(TransactionAssertionError.class, e ->
+                                        new BlockAssertionError("Invalid transactions: " + e.getMessage()))
+                                .doOnSuccess(ignore -> log.info("transactions checked out"))
+                                .thenReturn(blockTransactions);
+                    }
+                    List<String> failures = new ArrayList<>();
+                    if(!duplicates.isEmpty()) {
+                        failures.add("duplicated in block " + duplicates);
+                    }
+                    if(!inChain.isEmpty()) {
+                        failures.add("block found with transaction " + inChain);
+                    }
+                    return Mono.error(() -> new BlockAssertionError("Invalid transactions: "
+                            + String.join("; ", failures)));
+                });
+    }
+
+    /**
+     *
+     * Find which of a set of transactions are already part of the chain
+     * using a single query on the transactionId index.
+     *
+     * @param transactionIds the ids to look for
+     * @return A Mono of the ids that were found in the chain
+     */
+    public Mono<Set<Long>> findTransactionsInChain(Collection<Long> transactionIds) {
+        return confirmed.lookupAll(transactionIds, blocks::findByTransactionIdIn);
     }
 
     /**
@@ -272,42 +1202,222 @@ public class Blockchain {
      * Check a transaction for correctness
      *
      * @param transaction the transaction to check
-     * @param referenceBlockchain the block chain it will be part of
      * @return A Mono of Transaction which is always the transaction
      */
-    public Mono<Transaction> checkTransaction(Transaction transaction, Flux<Block> referenceBlockchain) {
+    public Mono<Transaction> checkTransaction(Transaction transaction) {
         log.info("checking transaction {}", transaction);
         transaction.check(transaction);
-        log.info("transaction checked out");
-        return findTransactionInChain(transaction.getTransactionId(), referenceBlockchain)
-                .map(ignore -> transaction)
-                .flatMap(ignore -> Flux.<Transaction>error(() ->
-                        new TransactionAssertionError("block found with transaction")))
-                .switchIfEmpty(Flux.just(transaction))
-                .last();
+        return verifier.verify(transaction)
+                .doOnNext(ignore -> log.info("transaction checked out"))
+                .flatMap(verified -> findTransactionInChain(transaction.getTransactionId())
+                        .map(ignore -> transaction)
+                        .flatMap(ignore -> Flux.<Transaction>error(() ->
+                                new TransactionAssertionError("block found with transaction")))
+                        .switchIfEmpty(Flux.just(transaction))
+                        .last());
     }
 
+    /**
+     *
+     * Handle a block from a peer and emit it if it is added
+     *
+     * @param receivedBlock the block
+     * @return A Mono of the new tip if the block changed it, otherwise empty
+     */
     public Mono<Block> checkReceivedBlock(Block receivedBlock) {
+        return checkReceivedBlock(receivedBlock, true);
+    }
+
+    /**
+     *
+     * Handle a block from a peer. A block that builds on our tip is added.
+     * A block that builds on some other block we know is checked and kept
+     * as a side branch, and if its branch has more work than the chain since
+     * the two split, the chain is reorganized onto the branch. A block we
+     * can't place means we're missing blocks, so our peers are asked for them.
+     *
+     * @param receivedBlock the block
+     * @param emit emit the new tip if the block changes it
+     * @return A Mono of the new tip if the block changed it, otherwise empty
+     */
+    public Mono<Block> checkReceivedBlock(Block receivedBlock, boolean emit) {
         return getLastBlock()
-                .filter(b -> b.getIndex() < receivedBlock.getIndex())
                 .flatMap(b -> {
-                    log.info("Blockchain possibly behind. We got: {}, Peer got: {}",
-                            b.getIndex(),
-                            receivedBlock.getIndex());
                     if (b.getHash().equals(receivedBlock.getPreviousHash())) { // We can append the received block to our chain
                         log.info("Appending received block to our chain");
-                        return addBlock(receivedBlock, true);
-                    } else {
-                        log.info("Querying chain from our peers");
-                        emitter.send(TOPIC, Message.builder()
-                                .type("empty")
-                                .message("getBlocks")
-                                .build())
-                                .subscribe(sr -> log.info("sent message getBlocks send result {}", sr),
-                                    ex -> log.error("error sending message getBlocks send result {}", ex));
+                        return addBlock(receivedBlock, emit);
+                    }
+                    if (forks.contains(receivedBlock.getHash())) {
+                        return Mono.empty();
+                    }
+                    return blocks.findByHash(receivedBlock.getHash())
+                            .hasElement()
+                            .flatMap(known -> known
+                                    ? Mono.<Block>empty()
+                                    : findParent(receivedBlock)
+                                            .flatMap(parent -> addToBranch(receivedBlock, parent, emit))
+                                            .switchIfEmpty(Mono.defer(() -> requestBlocks(b, receivedBlock))));
+                });
+    }
+
+    private Mono<Block> requestBlocks(Block last, Block receivedBlock) {
+        if (last.getIndex() >= receivedBlock.getIndex()) {
+            return Mono.empty();
+        }
+        log.info("Blockchain possibly behind. We got: {}, Peer got: {}",
+                last.getIndex(),
+                receivedBlock.getIndex());
+        log.info("Querying chain from our peers");
+        broadcaster.requestBlocks();
+        return Mono.empty();
+    }
+
+    private Mono<Block> findParent(Block block) {
+        Block parent = forks.get(block.getPreviousHash());
+        return parent != null ? Mono.just(parent) : blocks.findByHash(block.getPreviousHash());
+    }
+
+    private Mono<Block> addToBranch(Block block, Block parent, boolean emit) {
+        return checkHeader(block, parent, index -> forks.ancestor(parent, index))
+                .doOnNext(b -> log.info("keeping block {} on a side branch", b.getIndex()))
+                .doOnNext(forks::add)
+                .flatMap(b -> chooseBranch(b, emit));
+    }
+
+    /**
+     *
+     * Compare the work of the branch ending at a side block with the work of
+     * the chain since the point they split, and switch to the branch if it has
+     * more. Equal work keeps the chain, the branch we saw first wins.
+     * Work is counted from the difficulty each block carries, which the hash
+     * doesn't cover since the encoding leaves it out, so this relies on
+     * checkHeader having re-derived the difficulty of every side block from
+     * its ancestors before it was put in the tree. A block claiming more
+     * difficulty than its branch requires never gets here.
+     *
+     * @param branchTip the last block of the branch
+     * @param emit emit the new tip if the chain is reorganized
+     * @return A Mono of the new tip if the chain was reorganized, otherwise empty
+     */
+    Mono<Block> chooseBranch(Block branchTip, boolean emit) {
+        List<Block> branch = forks.branch(branchTip);
+        return blocks.findByHash(branch.get(0).getPreviousHash())
+                .zipWith(getLastBlock())
+                .flatMap(t -> {
+                    Block fork = t.getT1();
+                    Block last = t.getT2();
+                    if (last.getIndex() - fork.getIndex() > forks.getMaximumDepth()) {
+                        log.warn("not switching to branch from {}, {} blocks below the tip is too deep",
+                                fork.getIndex(), last.getIndex() - fork.getIndex());
+                        forks.rejectedTooDeep();
                         return Mono.empty();
                     }
+                    BigInteger branchWork = branch.stream()
+                            .map(Block::work)
+                            .reduce(BigInteger.ZERO, BigInteger::add);
+                    return getHeaders(fork.getIndex() + 1, last.getIndex())
+                            .map(Block::work)
+                            .reduce(BigInteger.ZERO, BigInteger::add)
+                            .filter(chainWork -> branchWork.compareTo(chainWork) > 0)
+                            .flatMap(chainWork -> reorganize(fork, last, branch, emit));
                 });
+    }
+
+    /**
+     *
+     * Replace the blocks after the fork point with the branch. Everything
+     * that can fail validation is checked before anything is written: the
+     * branch transactions must not be in the chain below the fork or repeat
+     * within the branch. Then the rolled back blocks are deleted, the branch
+     * is stored, and the in memory tip, headers and side branches are moved
+     * over together. If storing fails the old blocks are put back. The rolled
+     * back transactions that aren't in the branch go back to the loose pool.
+     * The confirmed transaction filter can't forget ids, the rolled back ones
+     * just become false positives that are answered by the database.
+     *
+     * @param fork the last block in common
+     * @param last the current tip
+     * @param branch the side blocks to switch to, in index order
+     * @param emit emit the new tip
+     * @return A Mono of the new tip
+     */
+    private Mono<Block> reorganize(Block fork, Block last, List<Block> branch, boolean emit) {
+        return Mono.create(sink -> submit(new Write(null,
+                () -> switchBranch(fork, last, branch, emit), sink)));
+    }
+
+    private Mono<Block> switchBranch(Block fork, Block last, List<Block> branch, boolean emit) {
+        Block newTip = branch.get(branch.size() - 1);
+        return getBlocks(fork.getIndex() + 1, last.getIndex())
+                .collectList()
+                .flatMap(orphaned -> {
+                    Set<Long> released = new HashSet<>();
+                    orphaned.forEach(b -> b.getTransactions().forEach(tx -> released.add(tx.getTransactionId())));
+                    List<Transaction> branchTransactions = new ArrayList<>();
+                    branch.forEach(b -> branchTransactions.addAll(b.getTransactions()));
+                    return checkTransactions(branchTransactions, released, Collections.emptySet())
+                            .then(Mono.defer(() -> {
+                                if (tip.get() != last) {
+                                    log.info("tip moved while checking branch, not reorganizing");
+                                    return Mono.<Block>empty();
+                                }
+                                log.info("reorganizing from {} at {} to {} at {}, fork at {}",
+                                        last.getHash(), last.getIndex(), newTip.getHash(), newTip.getIndex(), fork.getIndex());
+                                return replaceBlocks(orphaned, branch)
+                                        .then(Mono.fromRunnable(() -> switchTip(fork, orphaned, branch)))
+                                        .then(restoreTransactions(orphaned, branchTransactions))
+                                        .thenMany(Flux.fromIterable(branch)
+                                                .concatMap(this::removeBlockTransactionsFromTransactions))
+                                        .then(Mono.defer(() -> emit ? emitAddedBlock(newTip) : Mono.just(newTip)));
+                            }));
+                })
+                .doOnError(e -> {
+                    log.error("reorganization to {} failed", newTip.getHash(), e);
+                    forks.failed();
+                });
+    }
+
+    private Mono<Void> replaceBlocks(List<Block> orphaned, List<Block> branch) {
+        List<Block> rollback = new ArrayList<>(orphaned);
+        Collections.reverse(rollback);
+        List<Block> undo = new ArrayList<>(branch);
+        Collections.reverse(undo);
+        return Flux.fromIterable(rollback)
+                .concatMap(blocks::delete)
+                .thenMany(Flux.fromIterable(branch)
+                        .concatMap(blocks::save))
+                .then()
+                .onErrorResume(e -> Flux.fromIterable(undo)
+                        .concatMap(b -> blocks.findByHash(b.getHash()))
+                        .concatMap(blocks::delete)
+                        .thenMany(Flux.fromIterable(orphaned)
+                                .concatMap(blocks::save))
+                        .then(Mono.error(e)));
+    }
+
+    private void switchTip(Block fork, List<Block> orphaned, List<Block> branch) {
+        Block newTip = branch.get(branch.size() - 1);
+        headers.truncate(fork.getIndex() + 1);
+        branch.forEach(b -> {
+            headers.add(b);
+            confirmed.add(b);
+            forks.remove(b);
+        });
+        orphaned.forEach(forks::add);
+        tip.set(newTip);
+        forks.prune(newTip);
+        forks.reorganized(orphaned.size());
+        tipSink.next(newTip);
+    }
 
+    private Mono<Void> restoreTransactions(List<Block> orphaned, List<Transaction> branchTransactions) {
+        Set<Long> kept = new HashSet<>();
+        branchTransactions.forEach(t -> kept.add(t.getTransactionId()));
+        return Flux.fromIterable(orphaned)
+                .flatMapIterable(Block::getTransactions)
+                .filter(t -> !kept.contains(t.getTransactionId()))
+                .filter(this::pool)
+                .doOnNext(t -> log.info("returned transaction {} to loose transactions", t))
+                .then();
     }
 }
@@ -0,0 +1,33 @@
+package net.kamradtfamily.blockchain.api;
+
+import org.springframework.boot.actuate.health.Health;
+import org.springframework.boot.actuate.health.HealthIndicator;
+import org.springframework.stereotype.Component;
+
+/**
+ * Reports DOWN until the blockchain has finished starting up, so it can be
+ * used as the readiness check. The confirmed transaction filter is filled in
+ * the background and only reported, lookups are correct without it.
+ */
+@Component
+public class BlockchainHealthIndicator implements HealthIndicator {
+    private final Blockchain blockchain;
+    private final ConfirmedTransactions confirmed;
+
+    public BlockchainHealthIndicator(Blockchain blockchain, ConfirmedTransactions confirmed) {
+        this.blockchain = blockchain;
+        this.confirmed = confirmed;
+    }
+
+    @Override
+    public Health health() {
+        Health.Builder health = blockchain.isReady() ? Health.up() : Health.down();
+        Block last = blockchain.tip.get();
+        if(last != null) {
+            health.withDetail("tip", last.getIndex());
+        }
+        return health
+                .withDetail("transactionFilter", confirmed.isReady() ? "ready" : "filling")
+                .build();
+    }
+}
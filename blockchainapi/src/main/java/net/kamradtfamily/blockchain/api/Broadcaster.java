@@ -0,0 +1,208 @@
+package net.kamradtfamily.blockchain.api;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.DistributionSummary;
+import io.micrometer.core.instrument.MeterRegistry;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.kafka.core.reactive.ReactiveKafkaProducerTemplate;
+import org.springframework.stereotype.Component;
+import reactor.core.publisher.FluxSink;
+import reactor.core.publisher.Mono;
+import reactor.core.publisher.MonoSink;
+import reactor.core.publisher.UnicastProcessor;
+
+import java.time.Duration;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.stream.Collectors;
+
+/**
+ * Announces changes to the chain on the topic. Blocks are announced as soon
+ * as they are added, keyed by their hash. Single transactions are held for up
+ * to the linger time and announced together, up to the batch size in one
+ * message, keyed by the id of the first transaction, so a burst of
+ * transactions is a few large records rather than many small ones. Producer
+ * batching and compression are set with the spring.kafka.producer properties.
+ * If the batching ever stops on an error, the transactions waiting in it fail
+ * and it is started again, so later announcements aren't left hanging.
+ */
+@Slf4j
+@Component
+public class Broadcaster {
+    private static final String METRIC = "blockchain.broadcast";
+    private final ReactiveKafkaProducerTemplate<String, Message> emitter;
+    private final int batchSize;
+    private final Duration linger;
+    private final DistributionSummary batches;
+    private final MeterRegistry registry;
+    private volatile Batcher batcher;
+
+    public Broadcaster(ReactiveKafkaProducerTemplate<String, Message> emitter,
+                       @Value("${blockchain.broadcast.batch.size:100}") int batchSize,
+                       @Value("${blockchain.broadcast.linger:20}") long linger,
+                       MeterRegistry registry) {
+        this.emitter = emitter;
+        this.batchSize = batchSize;
+        this.linger = Duration.ofMillis(linger);
+        this.registry = registry;
+        this.batches = DistributionSummary.builder(METRIC + ".batch.size")
+                .description("transactions announced in one message")
+                .register(registry);
+        this.batcher = new Batcher();
+    }
+
+    /**
+     *
+     * Announce a block that was added to the chain
+     *
+     * @param block the block
+     * @return A Mono of the block once the announcement is sent
+     */
+    public Mono<Block> addedBlock(Block block) {
+        return send(block.getHash(), Message.builder()
+                        .type("block")
+                        .message("addedBlock")
+                        .block(block)
+                        .build())
+                .map(ignore -> block);
+    }
+
+    /**
+     *
+     * Announce a transaction that was added to the mempool, together with
+     * any others added within the linger time
+     *
+     * @param transaction the transaction
+     * @return A Mono of the transaction once the announcement is sent
+     */
+    public Mono<Transaction> addedTransaction(Transaction transaction) {
+        return Mono.create(sink -> batcher.add(new Pending(transaction, sink)));
+    }
+
+    /**
+     *
+     * Announce a batch of transactions that were added together
+     *
+     * @param transactions the transactions
+     * @return A Mono of the transactions once the announcement is sent
+     */
+    public Mono<List<Transaction>> addedTransactions(List<Transaction> transactions) {
+        if(transactions.isEmpty()) {
+            return Mono.just(transactions);
+        }
+        batches.record(transactions.size());
+        return send(String.valueOf(transactions.get(0).getTransactionId()), Message.builder()
+                        .type("transactions")
+                        .message("addedTransactions")
+                        .transactions(transactions)
+                        .build())
+                .map(ignore -> transactions);
+    }
+
+    /**
+     *
+     * Ask the peers for their blocks, we are behind
+     */
+    public void requestBlocks() {
+        send(null, Message.builder()
+                        .type("empty")
+                        .message("getBlocks")
+                        .build())
+                .onErrorResume(e -> Mono.empty())
+                .subscribe();
+    }
+
+    private Mono<Void> sendTransactions(List<Pending> batch) {
+        List<Transaction> transactions = batch.stream()
+                .map(p -> p.transaction)
+                .collect(Collectors.toList());
+        Mono<?> sent;
+        if(transactions.size() == 1) {
+            batches.record(1);
+            sent = send(String.valueOf(transactions.get(0).getTransactionId()), Message.builder()
+                    .type("transaction")
+                    .message("addedTransaction")
+                    .transaction(transactions.get(0))
+                    .build());
+        } else {
+            sent = addedTransactions(transactions);
+        }
+        return sent
+                .doOnSuccess(ignore -> batch.forEach(p -> p.sink.success(p.transaction)))
+                .doOnError(e -> batch.forEach(p -> p.sink.error(e)))
+                .onErrorResume(e -> Mono.empty())
+                .then();
+    }
+
+    private Mono<?> send(String key, Message message) {
+        return emitter.send(Blockchain.TOPIC, key, message)
+                .doOnNext(sr -> {
+                    log.info("sent message {} send result {}", message.getMessage(), sr);
+                    Counter.builder(METRIC + ".messages")
+                            .description("messages sent on the topic by kind")
+                            .tag("message", message.getMessage())
+                            .register(registry)
+                            .increment();
+                })
+                .doOnError(ex -> log.error("error sending message {}", message.getMessage(), ex));
+    }
+
+    /**
+     * Collects single transactions into batches and sends them one batch at
+     * a time. A failed send only fails its own batch, anything else that
+     * stops the batching fails every transaction still waiting in it and
+     * puts a new batcher in its place.
+     */
+    private class Batcher {
+        private final UnicastProcessor<Pending> pending = UnicastProcessor.create();
+        private final FluxSink<Pending> sink = pending.sink();
+        private final Set<Pending> waiting = ConcurrentHashMap.newKeySet();
+        private volatile boolean stopped;
+
+        Batcher() {
+            pending.bufferTimeout(batchSize, linger)
+                    .onBackpressureBuffer()
+                    .concatMap(batch -> Mono.defer(() -> sendTransactions(batch))
+                            .onErrorResume(e -> {
+                                batch.forEach(p -> p.sink.error(e));
+                                return Mono.empty();
+                            })
+                            .doFinally(signal -> waiting.removeAll(batch)))
+                    .subscribe(null, this::stop, () -> stop(new IllegalStateException("batching completed")));
+        }
+
+        void add(Pending transaction) {
+            waiting.add(transaction);
+            if(!stopped) {
+                sink.next(transaction);
+            }
+            // it may have stopped before the transaction got in, if so hand it to the next batcher
+            if(stopped && waiting.remove(transaction)) {
+                batcher.add(transaction);
+            }
+        }
+
+        private void stop(Throwable e) {
+            log.error("error announcing transactions, batching them again", e);
+            batcher = new Batcher();
+            stopped = true;
+            for(Pending p : waiting) {
+                if(waiting.remove(p)) {
+                    p.sink.error(e);
+                }
+            }
+        }
+    }
+
+    private static class Pending {
+        final Transaction transaction;
+        final MonoSink<Transaction> sink;
+
+        Pending(Transaction transaction, MonoSink<Transaction> sink) {
+            this.transaction = transaction;
+            this.sink = sink;
+        }
+    }
+}
@@ -0,0 +1,27 @@
+package net.kamradtfamily.blockchain.api;
+
+import lombok.AllArgsConstructor;
+import lombok.Builder;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+import org.springframework.data.annotation.Id;
+import org.springframework.data.mongodb.core.mapping.Document;
+
+/**
+ * How far the loose transactions have been reconciled with the chain: every
+ * transaction in a block up to and including this one has been removed from
+ * the loose transaction database. The hash makes sure the block is still the
+ * one in the chain at that index, a reorganization may have replaced it.
+ */
+@Data
+@Builder
+@AllArgsConstructor
+@NoArgsConstructor
+@Document
+public class Checkpoint {
+    public static final String RECONCILED = "reconciled";
+    @Id
+    private String id;
+    private long index;
+    private String hash;
+}
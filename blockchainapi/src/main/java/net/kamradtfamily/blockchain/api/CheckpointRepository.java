@@ -0,0 +1,8 @@
+package net.kamradtfamily.blockchain.api;
+
+import org.springframework.data.mongodb.repository.ReactiveMongoRepository;
+import org.springframework.stereotype.Repository;
+
+@Repository
+public interface CheckpointRepository extends ReactiveMongoRepository<Checkpoint, String> {
+}
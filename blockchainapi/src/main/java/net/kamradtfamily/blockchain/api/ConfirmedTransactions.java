@@ -0,0 +1,192 @@
+package net.kamradtfamily.blockchain.api;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
+import java.util.stream.Collectors;
+
+/**
+ * An in memory bloom filter of the ids of every transaction that is part of
+ * a block in the chain. Most transactions we are asked about are new, so the
+ * filter lets us answer 'not in the chain' without going to the database. The
+ * filter is filled from the block collection on startup and is only trusted
+ * once that has finished, until then every lookup goes to the database.
+ * Another process sharing the database can store blocks too, their ids are
+ * added when the blocks are announced or caught up with, and while a catch
+ * up is outstanding the filter is behind the database and lookups go to it.
+ */
+@Slf4j
+@Component
+public class ConfirmedTransactions {
+    private static final String METRIC = "blockchain.transaction.filter";
+    private final ScalableBloomFilter filter;
+    private final Counter negatives;
+    private final Counter confirmed;
+    private final Counter falsePositives;
+    private final Counter bypassed;
+    private final AtomicInteger behind = new AtomicInteger();
+    private volatile boolean ready = false;
+
+    public ConfirmedTransactions(@Value("${blockchain.transaction.filter.capacity:100000}") long capacity,
+                                 @Value("${blockchain.transaction.filter.fpp:0.01}") double falsePositiveRate,
+                                 MeterRegistry registry) {
+        this.filter = new ScalableBloomFilter(capacity, falsePositiveRate);
+        this.negatives = lookups(registry, "negative");
+        this.confirmed = lookups(registry, "confirmed");
+        this.falsePositives = lookups(registry, "false_positive");
+        this.bypassed = lookups(registry, "bypassed");
+        Gauge.builder(METRIC + ".size", filter, ScalableBloomFilter::size)
+                .description("transaction ids added to the filter")
+                .register(registry);
+        Gauge.builder(METRIC + ".bits", filter, ScalableBloomFilter::bitSize)
+                .description("bits allocated by the filter")
+                .baseUnit("bits")
+                .register(registry);
+        Gauge.builder(METRIC + ".stages", filter, ScalableBloomFilter::stageCount)
+                .description("number of filter stages, grows as the chain grows")
+                .register(registry);
+        Gauge.builder(METRIC + ".fpp", filter, ScalableBloomFilter::expectedFalsePositiveRate)
+                .description("expected false positive rate given the current fill")
+                .register(registry);
+        Gauge.builder(METRIC + ".hit.ratio", this, ConfirmedTransactions::hitRatio)
+                .description("fraction of lookups answered by the filter without the database")
+                .register(registry);
+    }
+
+    /**
+     *
+     * Add all the transactions of a block to the filter
+     *
+     * @param block the block that is part of the chain
+     */
+    public void add(Block block) {
+        if(block.getTransactions() != null) {
+            block.getTransactions()
+                    .forEach(t -> filter.add(t.getTransactionId()));
+        }
+    }
+
+    /**
+     *
+     * Called when the filter contains every transaction in the chain
+     */
+    public void markReady() {
+        log.info("confirmed transaction filter ready with {} transactions", filter.size());
+        ready = true;
+    }
+
+    public boolean isReady() {
+        return ready;
+    }
+
+    /**
+     *
+     * Called when the database has blocks the filter hasn't seen yet,
+     * lookups go to the database until a matching caughtUp
+     */
+    public void fellBehind() {
+        behind.incrementAndGet();
+    }
+
+    /**
+     *
+     * Called when the blocks a fellBehind was for have been added
+     */
+    public void caughtUp() {
+        behind.decrementAndGet();
+    }
+
+    private boolean isTrusted() {
+        return ready && behind.get() == 0;
+    }
+
+    /**
+     *
+     * Look for a transaction in the chain. If the filter says the transaction
+     * was never added the database isn't queried, otherwise the database query
+     * decides.
+     *
+     * @param transactionId the transaction to look for
+     * @param store the database lookup, only subscribed to if the filter can't answer
+     * @return the result of the store lookup, or empty if the transaction is not in the chain
+     */
+    public <T> Flux<T> lookup(long transactionId, Flux<T> store) {
+        if(!isTrusted()) {
+            bypassed.increment();
+            return store;
+        }
+        if(!filter.mightContain(transactionId)) {
+            negatives.increment();
+            return Flux.empty();
+        }
+        return store
+                .doOnNext(ignore -> confirmed.increment())
+                .switchIfEmpty(Flux.defer(() -> {
+                    falsePositives.increment();
+                    return Flux.empty();
+                }));
+    }
+
+    /**
+     *
+     * Look for a set of transactions in the chain. Ids the filter knows are
+     * absent are dropped, the rest are resolved with one database query.
+     *
+     * @param transactionIds the transactions to look for
+     * @param store the database query for blocks containing any of a set of ids
+     * @return A Mono of the ids that are in the chain
+     */
+    public Mono<Set<Long>> lookupAll(Collection<Long> transactionIds,
+                                     Function<Collection<Long>, Flux<Block>> store) {
+        final boolean filtered = isTrusted();
+        final Set<Long> candidates;
+        if(filtered) {
+            candidates = transactionIds.stream()
+                    .filter(filter::mightContain)
+                    .collect(Collectors.toSet());
+            negatives.increment(transactionIds.size() - candidates.size());
+        } else {
+            candidates = new HashSet<>(transactionIds);
+            bypassed.increment(candidates.size());
+        }
+        if(candidates.isEmpty()) {
+            return Mono.just(Collections.emptySet());
+        }
+        return store.apply(candidates)
+                .flatMapIterable(Block::getTransactions)
+                .map(Transaction::getTransactionId)
+                .filter(candidates::contains)
+                .collect(Collectors.toSet())
+                .doOnNext(found -> {
+                    if(filtered) {
+                        confirmed.increment(found.size());
+                        falsePositives.increment(candidates.size() - found.size());
+                    }
+                });
+    }
+
+    double hitRatio() {
+        double answered = negatives.count();
+        double total = answered + confirmed.count() + falsePositives.count() + bypassed.count();
+        return total == 0.0 ? 0.0 : answered / total;
+    }
+
+    private static Counter lookups(MeterRegistry registry, String result) {
+        return Counter.builder(METRIC + ".lookups")
+                .description("transaction id lookups against the chain")
+                .tag("result", result)
+                .register(registry);
+    }
+}
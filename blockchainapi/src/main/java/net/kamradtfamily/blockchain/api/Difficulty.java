@@ -0,0 +1,111 @@
+package net.kamradtfamily.blockchain.api;
+
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+import reactor.core.publisher.Mono;
+
+import java.util.function.LongFunction;
+
+/**
+ * The proof of work rule. A block at a given index must have a hash with at
+ * least the required number of leading zero bits. This is part of consensus,
+ * every node has to compute the same difficulty for the same index, so it
+ * only depends on the headers of earlier blocks and uses integer arithmetic.
+ *
+ * Every block carries the difficulty it was mined at. The difficulty is kept
+ * from block to block and retargeted every window blocks: the time the last
+ * window of blocks took is compared to the target interval times the window,
+ * and the difficulty moves one bit (twice the work) for every factor of two
+ * the blocks were too fast or too slow, up to a maximum adjustment.
+ *
+ * Legacy (version 0) blocks come from before proof of work and don't carry
+ * a difficulty, so they are required to have none. The series starts at the
+ * initial bits with the first versioned block, and a window that reaches
+ * back past it isn't retargeted since the legacy blocks weren't mined.
+ */
+@Component
+public class Difficulty {
+    private final HeaderCache headers;
+    private final long initialBits;
+    private final long minimumBits;
+    private final long targetInterval;
+    private final long window;
+    private final long maximumAdjustment;
+
+    public Difficulty(HeaderCache headers,
+                      @Value("${blockchain.difficulty.bits:16}") long initialBits,
+                      @Value("${blockchain.difficulty.min-bits:1}") long minimumBits,
+                      @Value("${blockchain.difficulty.interval:10}") long targetInterval,
+                      @Value("${blockchain.difficulty.window:10}") long window,
+                      @Value("${blockchain.difficulty.max-adjust:2}") long maximumAdjustment) {
+        this.headers = headers;
+        this.initialBits = initialBits;
+        this.minimumBits = minimumBits;
+        this.targetInterval = targetInterval;
+        this.window = window;
+        this.maximumAdjustment = maximumAdjustment;
+    }
+
+    /**
+     *
+     * Get the difficulty required for a block
+     *
+     * @param index the index of the block
+     * @param version the version of the block
+     * @return A Mono of the minimum number of leading zero bits in the block hash
+     */
+    public Mono<Long> getDifficulty(long index, int version) {
+        return getDifficulty(index, version, headers::get);
+    }
+
+    /**
+     *
+     * Get the difficulty required for a block on a branch, looking up the
+     * earlier headers of that branch rather than of the chain
+     *
+     * @param index the index of the block
+     * @param version the version of the block
+     * @param ancestors gets the header at an index on the block's branch
+     * @return A Mono of the minimum number of leading zero bits in the block hash
+     */
+    public Mono<Long> getDifficulty(long index, int version, LongFunction<Mono<Block>> ancestors) {
+        if(index == 0 || version == Block.LEGACY_VERSION) {
+            return Mono.just(0L);
+        }
+        return ancestors.apply(index - 1)
+                .flatMap(previous -> {
+                    if(!isMined(previous)) {
+                        return Mono.just(initialBits);
+                    }
+                    long bits = previous.getDifficulty();
+                    if(index % window != 0 || index <= window) {
+                        return Mono.just(bits);
+                    }
+                    return ancestors.apply(index - 1 - window)
+                            .map(first -> isMined(first)
+                                    ? retarget(bits, previous.getTimestamp() - first.getTimestamp())
+                                    : bits);
+                });
+    }
+
+    private static boolean isMined(Block block) {
+        return block.getVersion() != Block.LEGACY_VERSION && block.getDifficulty() > 0;
+    }
+
+    long retarget(long bits, long actual) {
+        long expected = targetInterval * window;
+        long elapsed = Math.max(actual, 1L);
+        long adjustment = 0;
+        if(elapsed < expected) {
+            adjustment = log2(expected / elapsed);
+        } else if(elapsed > expected) {
+            adjustment = -log2(elapsed / expected);
+        }
+        adjustment = Math.max(-maximumAdjustment, Math.min(maximumAdjustment, adjustment));
+        return Math.max(minimumBits, Math.min(CryptoUtil.HASH_LENGTH * 8, bits + adjustment));
+    }
+
+    private static long log2(long value) {
+        return 63 - Long.numberOfLeadingZeros(value);
+    }
+}
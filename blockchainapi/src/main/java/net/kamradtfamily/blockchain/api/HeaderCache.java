@@ -0,0 +1,84 @@
+package net.kamradtfamily.blockchain.api;
+
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+import reactor.core.publisher.Mono;
+
+import java.util.concurrent.ConcurrentNavigableMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+
+/**
+ * The headers of the most recent blocks in the chain, kept in memory so
+ * things that look back a few blocks, like difficulty retargeting, don't
+ * have to go to the block store. Headers are blocks without their transactions.
+ * Older headers are read from the block store when asked for.
+ */
+@Component
+public class HeaderCache {
+    private final BlockStore blocks;
+    private final int capacity;
+    private final ConcurrentNavigableMap<Long, Block> headers = new ConcurrentSkipListMap<>();
+
+    public HeaderCache(BlockStore blocks,
+                       @Value("${blockchain.header.cache.size:1024}") int capacity) {
+        this.blocks = blocks;
+        this.capacity = capacity;
+    }
+
+    public int getCapacity() {
+        return capacity;
+    }
+
+    /**
+     *
+     * Add the header of a block that is part of the chain, dropping the
+     * oldest header if the cache is full
+     *
+     * @param block the block
+     */
+    public void add(Block block) {
+        headers.put(block.getIndex(), block.toHeader());
+        while(headers.size() > capacity) {
+            headers.pollFirstEntry();
+        }
+    }
+
+    /**
+     *
+     * Drop the headers from an index up, when the blocks there are
+     * replaced by another branch
+     *
+     * @param fromIndex the first index to drop
+     */
+    public void truncate(long fromIndex) {
+        headers.tailMap(fromIndex).clear();
+    }
+
+    /**
+     *
+     * Get the header of the block at an index if it is in memory
+     *
+     * @param index the index of the block
+     * @return the header, null if it isn't cached
+     */
+    public Block peek(long index) {
+        return headers.get(index);
+    }
+
+    /**
+     *
+     * Get the header of the block at an index
+     *
+     * @param index the index of the block
+     * @return A Mono of the header, empty if there is no block at the index
+     */
+    public Mono<Block> get(long index) {
+        Block header = headers.get(index);
+        if(header != null) {
+            return Mono.just(header);
+        }
+        return blocks.findByIndex(index)
+                .doOnNext(this::add)
+                .map(Block::toHeader);
+    }
+}
@@ -0,0 +1,237 @@
+package net.kamradtfamily.blockchain.api;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+import reactor.core.Disposable;
+import reactor.core.publisher.Flux;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentNavigableMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Consumer;
+import java.util.stream.Collectors;
+
+/**
+ * The loose transactions, held in memory and indexed by transaction id.
+ * Transactions don't carry a fee, so priority is arrival order: the oldest
+ * transactions are picked first for a block and evicted first when the pool
+ * is full. Transactions older than the maximum age are evicted too. The
+ * database copy of the pool is kept up by the caller and only read on startup.
+ * A transaction goes into and out of the arrival order inside the update of
+ * its id, so adding and removing the same transaction at once can't leave it
+ * in one map and not the other.
+ */
+@Slf4j
+@Component
+public class Mempool implements DisposableBean {
+    private static final String METRIC = "blockchain.mempool";
+    private final int capacity;
+    private final long maximumAge;
+    private final Map<Long, Entry> entries = new ConcurrentHashMap<>();
+    private final ConcurrentNavigableMap<Long, Entry> arrivals = new ConcurrentSkipListMap<>();
+    private final AtomicLong sequence = new AtomicLong();
+    private final AtomicLong bytes = new AtomicLong();
+    private final Counter evictedForCapacity;
+    private final Counter evictedForAge;
+    private final Disposable expiry;
+    private volatile Consumer<Transaction> evictionListener = t -> { };
+
+    public Mempool(@Value("${blockchain.mempool.capacity:100000}") int capacity,
+                   @Value("${blockchain.mempool.max-age:3600}") long maximumAge,
+                   MeterRegistry registry) {
+        this.capacity = capacity;
+        this.maximumAge = maximumAge;
+        this.evictedForCapacity = evictions(registry, "capacity");
+        this.evictedForAge = evictions(registry, "age");
+        Gauge.builder(METRIC + ".size", entries, Map::size)
+                .description("loose transactions in memory")
+                .register(registry);
+        Gauge.builder(METRIC + ".bytes", bytes, AtomicLong::get)
+                .description("encoded size of the loose transactions in memory")
+                .baseUnit("bytes")
+                .register(registry);
+        this.expiry = Flux.interval(Duration.ofSeconds(Math.max(1, maximumAge / 10)))
+                .subscribe(i -> expire(),
+                        e -> log.error("error expiring loose transactions", e));
+    }
+
+    /**
+     *
+     * Set what is told about transactions evicted because the pool is full
+     * or they are too old
+     *
+     * @param listener called with each evicted transaction
+     */
+    public void setEvictionListener(Consumer<Transaction> listener) {
+        this.evictionListener = listener;
+    }
+
+    /**
+     *
+     * Add a transaction unless one with the same id is already in the pool,
+     * evicting the oldest transactions if the pool is over capacity
+     *
+     * @param transaction the transaction
+     * @return true if it was added
+     */
+    public boolean add(Transaction transaction) {
+        Entry entry = new Entry(transaction, sequence.incrementAndGet(),
+                System.currentTimeMillis(), transaction.encodedSize());
+        Entry pooled = entries.computeIfAbsent(transaction.getTransactionId(), id -> {
+            arrivals.put(entry.sequence, entry);
+            bytes.addAndGet(entry.size);
+            return entry;
+        });
+        if(pooled != entry) {
+            return false;
+        }
+        while(entries.size() > capacity) {
+            if(!evictOldest(evictedForCapacity)) {
+                break;
+            }
+        }
+        return true;
+    }
+
+    public Transaction get(long transactionId) {
+        Entry entry = entries.get(transactionId);
+        return entry == null ? null : entry.transaction;
+    }
+
+    public boolean contains(long transactionId) {
+        return entries.containsKey(transactionId);
+    }
+
+    /**
+     *
+     * Remove a transaction, normally because it is now in a block
+     *
+     * @param transactionId the id of the transaction
+     * @return the transaction removed, null if it wasn't in the pool
+     */
+    public Transaction remove(long transactionId) {
+        AtomicReference<Entry> removed = new AtomicReference<>();
+        entries.computeIfPresent(transactionId, (id, entry) -> {
+            arrivals.remove(entry.sequence);
+            bytes.addAndGet(-entry.size);
+            removed.set(entry);
+            return null;
+        });
+        Entry entry = removed.get();
+        return entry == null ? null : entry.transaction;
+    }
+
+    public void removeAll(Collection<Transaction> transactions) {
+        if(transactions != null) {
+            transactions.forEach(t -> remove(t.getTransactionId()));
+        }
+    }
+
+    /**
+     *
+     * All the transactions in the pool, oldest first
+     *
+     * @return the transactions
+     */
+    public List<Transaction> getAll() {
+        return arrivals.values().stream()
+                .map(e -> e.transaction)
+                .collect(Collectors.toList());
+    }
+
+    /**
+     *
+     * Pick the transactions for the next block, oldest first, up to a number
+     * of transactions and a total encoded size. A transaction that doesn't
+     * fit in the space left is skipped so smaller ones after it can be used.
+     *
+     * @param maximumCount the most transactions to pick
+     * @param maximumBytes the most bytes of transactions to pick
+     * @return the transactions in the order they should go in the block
+     */
+    public List<Transaction> select(int maximumCount, long maximumBytes) {
+        List<Transaction> selected = new ArrayList<>();
+        long used = 0;
+        for(Entry entry : arrivals.values()) {
+            if(selected.size() >= maximumCount) {
+                break;
+            }
+            if(used + entry.size <= maximumBytes) {
+                selected.add(entry.transaction);
+                used += entry.size;
+            }
+        }
+        return selected;
+    }
+
+    public int size() {
+        return entries.size();
+    }
+
+    /**
+     *
+     * Evict the transactions that have been in the pool longer than the maximum age
+     */
+    public void expire() {
+        long cutoff = System.currentTimeMillis() - maximumAge * 1000;
+        Map.Entry<Long, Entry> oldest;
+        while((oldest = arrivals.firstEntry()) != null && oldest.getValue().added < cutoff) {
+            if(!evictOldest(evictedForAge)) {
+                break;
+            }
+        }
+    }
+
+    private boolean evictOldest(Counter reason) {
+        Map.Entry<Long, Entry> oldest = arrivals.pollFirstEntry();
+        if(oldest == null) {
+            return false;
+        }
+        Entry entry = oldest.getValue();
+        if(entries.remove(entry.transaction.getTransactionId(), entry)) {
+            bytes.addAndGet(-entry.size);
+            reason.increment();
+            log.info("evicted transaction {} from loose transactions", entry.transaction.getTransactionId());
+            evictionListener.accept(entry.transaction);
+        }
+        return true;
+    }
+
+    @Override
+    public void destroy() {
+        expiry.dispose();
+    }
+
+    private static Counter evictions(MeterRegistry registry, String reason) {
+        return Counter.builder(METRIC + ".evicted")
+                .description("loose transactions evicted from memory")
+                .tag("reason", reason)
+                .register(registry);
+    }
+
+    private static class Entry {
+        final Transaction transaction;
+        final long sequence;
+        final long added;
+        final int size;
+
+        Entry(Transaction transaction, long sequence, long added, int size) {
+            this.transaction = transaction;
+            this.sequence = sequence;
+            this.added = added;
+            this.size = size;
+        }
+    }
+}
@@ -0,0 +1,46 @@
+package net.kamradtfamily.blockchain.api;
+
+import com.fasterxml.jackson.annotation.JsonIgnoreProperties;
+import lombok.AllArgsConstructor;
+import lombok.Builder;
+import lombok.NoArgsConstructor;
+
+import java.util.List;
+
+/**
+ * Proof that a transaction is part of a block, without the rest of the
+ * block's transactions. The header carries the merkle root and is hashed
+ * on its own, so a client can check the path leads from the transaction to
+ * the root and that the header hashes to the block hash it knows.
+ */
+@lombok.Data
+@Builder
+@AllArgsConstructor
+@NoArgsConstructor
+@JsonIgnoreProperties(ignoreUnknown = true)
+public class MerkleProof {
+    private Block header;
+    private Transaction transaction;
+    private List<Step> path;
+
+    /**
+     *
+     * Check the proof
+     *
+     * @return true if the transaction leads to the header's merkle root and the header hash is correct
+     */
+    public boolean verify() {
+        return header.getMerkleRoot() != null
+                && header.getMerkleRoot().equals(MerkleTree.rootOf(transaction, path))
+                && header.toHash().equals(header.getHash());
+    }
+
+    @lombok.Data
+    @Builder
+    @AllArgsConstructor
+    @NoArgsConstructor
+    public static class Step {
+        private String hash;
+        private boolean left;
+    }
+}
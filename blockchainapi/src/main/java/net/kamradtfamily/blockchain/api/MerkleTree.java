@@ -0,0 +1,111 @@
+package net.kamradtfamily.blockchain.api;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Merkle tree over the transactions of a block. Leaves are the hash of the
+ * canonical encoding of each transaction, and each level up hashes pairs of
+ * nodes, pairing the last node with itself when a level has an odd count.
+ * Leaves and nodes are hashed with different prefixes so a node can never
+ * be passed off as a leaf. Only the root is kept in the block, proofs are
+ * built on demand from the block's transactions.
+ */
+public class MerkleTree {
+    private static final byte[] LEAF_PREFIX = { 0 };
+    private static final byte[] NODE_PREFIX = { 1 };
+
+    /**
+     *
+     * Calculate the merkle root of a list of transactions
+     *
+     * @param transactions the transactions in block order
+     * @return the root as a hex string, all zeros if there are no transactions
+     */
+    public static String root(List<Transaction> transactions) {
+        if(transactions == null || transactions.isEmpty()) {
+            return CryptoUtil.toHex(new byte[CryptoUtil.HASH_LENGTH]);
+        }
+        List<byte[]> level = leaves(transactions);
+        while(level.size() > 1) {
+            level = nextLevel(level);
+        }
+        return CryptoUtil.toHex(level.get(0));
+    }
+
+    /**
+     *
+     * Build the path of sibling hashes from a transaction up to the root
+     *
+     * @param transactions the transactions in block order
+     * @param position the position of the transaction to prove
+     * @return the sibling hashes from the leaf level up
+     */
+    public static List<MerkleProof.Step> path(List<Transaction> transactions, int position) {
+        List<MerkleProof.Step> path = new ArrayList<>();
+        List<byte[]> level = leaves(transactions);
+        while(level.size() > 1) {
+            int sibling = position ^ 1;
+            byte[] hash = level.get(Math.min(sibling, level.size() - 1));
+            path.add(MerkleProof.Step.builder()
+                    .hash(CryptoUtil.toHex(hash))
+                    .left(sibling < position)
+                    .build());
+            level = nextLevel(level);
+            position /= 2;
+        }
+        return path;
+    }
+
+    /**
+     *
+     * Fold a path of sibling hashes over a transaction to get the root it proves
+     *
+     * @param transaction the transaction being proven
+     * @param path the sibling hashes from the leaf level up
+     * @return the root as a hex string
+     */
+    public static String rootOf(Transaction transaction, List<MerkleProof.Step> path) {
+        byte[] hash = leaf(transaction);
+        for(MerkleProof.Step step : path) {
+            byte[] sibling = fromHex(step.getHash());
+            hash = step.isLeft() ? node(sibling, hash) : node(hash, sibling);
+        }
+        return CryptoUtil.toHex(hash);
+    }
+
+    static byte[] leaf(Transaction transaction) {
+        CryptoUtil.Hasher hasher = CryptoUtil.hasher().update(LEAF_PREFIX);
+        return transaction.encode(hasher).digest();
+    }
+
+    static byte[] node(byte[] left, byte[] right) {
+        return CryptoUtil.digest(NODE_PREFIX, left, right);
+    }
+
+    private static List<byte[]> leaves(List<Transaction> transactions) {
+        List<byte[]> leaves = new ArrayList<>(transactions.size());
+        for(Transaction t : transactions) {
+            leaves.add(leaf(t));
+        }
+        return leaves;
+    }
+
+    private static List<byte[]> nextLevel(List<byte[]> level) {
+        List<byte[]> next = new ArrayList<>((level.size() + 1) / 2);
+        for(int i = 0; i < level.size(); i += 2) {
+            byte[] left = level.get(i);
+            byte[] right = i + 1 < level.size() ? level.get(i + 1) : left;
+            next.add(node(left, right));
+        }
+        return next;
+    }
+
+    private static byte[] fromHex(String hex) {
+        byte[] bytes = new byte[hex.length() / 2];
+        for(int i = 0; i < bytes.length; i++) {
+            bytes[i] = (byte) Integer.parseInt(hex.substring(i * 2, i * 2 + 2), 16);
+        }
+        return bytes;
+    }
+}
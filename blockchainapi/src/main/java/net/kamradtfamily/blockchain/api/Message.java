@@ -5,6 +5,8 @@ import lombok.AllArgsConstructor;
 import lombok.Builder;
 import lombok.NoArgsConstructor;
 
+import java.util.List;
+
 @lombok.Data
 @Builder
 @AllArgsConstructor
@@ -15,4 +17,5 @@ public class Message {
     String message;
     Block block;
     Transaction transaction;
+    List<Transaction> transactions;
 }
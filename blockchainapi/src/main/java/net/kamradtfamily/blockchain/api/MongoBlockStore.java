@@ -0,0 +1,78 @@
+package net.kamradtfamily.blockchain.api;
+
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.stereotype.Component;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+
+import java.util.Collection;
+import java.util.List;
+
+/**
+ * Blocks kept as documents in MongoDB, one document per block with unique
+ * indexes on the index and hash
+ */
+@Component
+@ConditionalOnProperty(name = "blockchain.store", havingValue = "mongo", matchIfMissing = true)
+public class MongoBlockStore implements BlockStore {
+    private final BlockRepository blocks;
+
+    public MongoBlockStore(BlockRepository blocks) {
+        this.blocks = blocks;
+    }
+
+    @Override
+    public Mono<Block> findByIndex(long index) {
+        return blocks.findByIndex(index);
+    }
+
+    @Override
+    public Mono<Block> findByHash(String hash) {
+        return blocks.findByHash(hash);
+    }
+
+    @Override
+    public Mono<Block> findLast() {
+        return blocks.findTopByOrderByIndexDesc();
+    }
+
+    @Override
+    public Flux<Block> findByTransactionId(long transactionId) {
+        return blocks.findByTransactionsTransactionId(transactionId);
+    }
+
+    @Override
+    public Flux<Block> findByTransactionIdIn(Collection<Long> transactionIds) {
+        return blocks.findByTransactionsTransactionIdIn(transactionIds);
+    }
+
+    @Override
+    public Flux<Block> findRange(long fromIndex, long toIndex) {
+        return blocks.findByIndexRange(fromIndex, toIndex);
+    }
+
+    @Override
+    public Flux<Block> findHeaders(long fromIndex, long toIndex) {
+        return blocks.findHeadersByIndexRange(fromIndex, toIndex);
+    }
+
+    @Override
+    public Flux<Block> findAllTransactionIds() {
+        return blocks.findAllTransactionIds();
+    }
+
+    @Override
+    public Mono<Block> save(Block block) {
+        return blocks.save(block);
+    }
+
+    @Override
+    public Flux<Block> saveAll(List<Block> toSave) {
+        return blocks.saveAll(toSave);
+    }
+
+    @Override
+    public Mono<Void> delete(Block block) {
+        return blocks.delete(block);
+    }
+}
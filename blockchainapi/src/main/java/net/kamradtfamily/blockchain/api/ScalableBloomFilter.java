@@ -0,0 +1,198 @@
+package net.kamradtfamily.blockchain.api;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A bloom filter of long keys that grows as keys are added. The filter is
+ * a list of fixed size stages, when a stage reaches its capacity a new stage
+ * is added with twice the capacity and a tighter false positive rate so that
+ * the compound false positive rate stays bounded no matter how many keys are
+ * added. Keys can never be removed, a key that was added will always be reported
+ * as possibly present, a key that was never added will usually be reported
+ * as absent.
+ */
+public class ScalableBloomFilter {
+    private static final int GROWTH = 2;
+    private static final double TIGHTENING = 0.5;
+    private final List<Stage> stages = new CopyOnWriteArrayList<>();
+    private final AtomicLong size = new AtomicLong();
+    private final double falsePositiveRate;
+
+    /**
+     *
+     * Create a filter.
+     *
+     * @param initialCapacity the number of keys the first stage is sized for
+     * @param falsePositiveRate the target false positive rate for the whole filter
+     */
+    public ScalableBloomFilter(long initialCapacity, double falsePositiveRate) {
+        if(initialCapacity <= 0 || falsePositiveRate <= 0.0 || falsePositiveRate >= 1.0) {
+            throw new IllegalArgumentException("invalid bloom filter sizing capacity="
+                    + initialCapacity + " fpp=" + falsePositiveRate);
+        }
+        this.falsePositiveRate = falsePositiveRate;
+        // the stage rates form a geometric series that sums to the target rate
+        stages.add(new Stage(initialCapacity, falsePositiveRate * (1 - TIGHTENING)));
+    }
+
+    /**
+     *
+     * Add a key to the filter, adding a new stage if the current one is full
+     *
+     * @param key the key to add
+     */
+    public void add(long key) {
+        long h1 = mix(key);
+        long h2 = mix(h1 ^ key);
+        if(mightContain(h1, h2)) {
+            return;
+        }
+        current().add(h1, h2);
+        size.incrementAndGet();
+    }
+
+    /**
+     *
+     * Test a key against the filter
+     *
+     * @param key the key to look for
+     * @return false if the key was definitely never added, true if it might have been
+     */
+    public boolean mightContain(long key) {
+        long h1 = mix(key);
+        return mightContain(h1, mix(h1 ^ key));
+    }
+
+    /**
+     *
+     * @return the number of distinct keys added (approximate, duplicates that
+     * collide with other keys are not counted)
+     */
+    public long size() {
+        return size.get();
+    }
+
+    /**
+     *
+     * @return the number of bits used by all the stages
+     */
+    public long bitSize() {
+        return stages.stream().mapToLong(s -> s.numBits).sum();
+    }
+
+    /**
+     *
+     * @return the number of stages
+     */
+    public int stageCount() {
+        return stages.size();
+    }
+
+    /**
+     *
+     * @return the configured target false positive rate
+     */
+    public double targetFalsePositiveRate() {
+        return falsePositiveRate;
+    }
+
+    /**
+     *
+     * The false positive rate expected given the current fill of each stage. A key
+     * is a false positive if any of the stages reports it present.
+     *
+     * @return the expected false positive rate
+     */
+    public double expectedFalsePositiveRate() {
+        double allNegative = 1.0;
+        for(Stage stage : stages) {
+            allNegative *= 1.0 - stage.expectedFalsePositiveRate();
+        }
+        return 1.0 - allNegative;
+    }
+
+    private boolean mightContain(long h1, long h2) {
+        for(Stage stage : stages) {
+            if(stage.mightContain(h1, h2)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private synchronized Stage current() {
+        Stage last = stages.get(stages.size() - 1);
+        if(last.count.get() < last.capacity) {
+            return last;
+        }
+        Stage next = new Stage(last.capacity * GROWTH, last.falsePositiveRate * TIGHTENING);
+        stages.add(next);
+        return next;
+    }
+
+    /**
+     * Finalizer from MurmurHash3, spreads the bits of a long so that
+     * sequential keys land in unrelated bit positions
+     */
+    private static long mix(long k) {
+        k ^= k >>> 33;
+        k *= 0xff51afd7ed558ccdL;
+        k ^= k >>> 33;
+        k *= 0xc4ceb9fe1a85ec53L;
+        k ^= k >>> 33;
+        return k;
+    }
+
+    private static class Stage {
+        final long capacity;
+        final double falsePositiveRate;
+        final long numBits;
+        final int numHashes;
+        final AtomicLongArray bits;
+        final AtomicLong count = new AtomicLong();
+
+        Stage(long capacity, double falsePositiveRate) {
+            this.capacity = capacity;
+            this.falsePositiveRate = falsePositiveRate;
+            long m = (long) Math.ceil(-capacity * Math.log(falsePositiveRate) / (Math.log(2) * Math.log(2)));
+            int words = (int) Math.min(Integer.MAX_VALUE, (m + 63) / 64);
+            this.numBits = words * 64L;
+            this.numHashes = Math.max(1, (int) Math.round((double) numBits / capacity * Math.log(2)));
+            this.bits = new AtomicLongArray(words);
+        }
+
+        void add(long h1, long h2) {
+            for(int i = 0; i < numHashes; i++) {
+                long bit = index(h1, h2, i);
+                int word = (int) (bit >>> 6);
+                long mask = 1L << bit;
+                long old = bits.get(word);
+                while((old & mask) == 0 && !bits.compareAndSet(word, old, old | mask)) {
+                    old = bits.get(word);
+                }
+            }
+            count.incrementAndGet();
+        }
+
+        boolean mightContain(long h1, long h2) {
+            for(int i = 0; i < numHashes; i++) {
+                long bit = index(h1, h2, i);
+                if((bits.get((int) (bit >>> 6)) & (1L << bit)) == 0) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        double expectedFalsePositiveRate() {
+            return Math.pow(1.0 - Math.exp(-(double) numHashes * count.get() / numBits), numHashes);
+        }
+
+        private long index(long h1, long h2, int i) {
+            return Math.floorMod(h1 + i * h2, numBits);
+        }
+    }
+}
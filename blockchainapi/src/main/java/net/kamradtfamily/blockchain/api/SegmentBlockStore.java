@@ -0,0 +1,776 @@
+package net.kamradtfamily.blockchain.api;
+
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.dao.DuplicateKeyException;
+import org.springframework.stereotype.Component;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+import reactor.core.scheduler.Scheduler;
+import reactor.core.scheduler.Schedulers;
+import reactor.util.function.Tuples;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeSet;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import java.util.zip.CRC32;
+
+/**
+ * Blocks kept in append-only segment files on the local disk, no database
+ * needed. Each block is a record of its length, a CRC32 of its JSON and the
+ * JSON itself, appended to the newest segment until it reaches the segment
+ * size, when a new one is started. Full segments never change again and are
+ * memory mapped for reading, the newest segment is read with positional reads.
+ *
+ * The position of every index-interval'th block is kept in a sparse index,
+ * other blocks are found by skipping records forward from there. The hashes
+ * of all blocks are indexed in memory. The transaction ids of the newest
+ * segment are indexed in memory too, when a segment is full they are written
+ * sorted to a transactions file beside it, which is mapped and binary searched,
+ * so memory only grows with the newest segment. All the indexes are rebuilt
+ * by reading the segments on startup, and a record that was only partly
+ * written when the process stopped is cut off.
+ *
+ * Reads of a full segment hand out slices of its mapping, which may still be
+ * in use after the chain is rolled back into the segment. So the records of
+ * a segment that was ever mapped are never cut or written over while the
+ * process runs, the first rolled back record is marked as the end of the
+ * segment instead and later blocks go to a new segment. The file is cut at
+ * the mark when it is next opened. A segment rolled back to nothing is
+ * deleted, which leaves its mapping readable.
+ *
+ * The records of one save are flushed to disk together. Only one process
+ * can have the directory open at a time, which is enforced with a file lock.
+ * The blockchain service and the node both write blocks, so when both run
+ * they can't share a segment store and must use the mongo store instead.
+ */
+@Slf4j
+@Component
+@ConditionalOnProperty(name = "blockchain.store", havingValue = "segment")
+public class SegmentBlockStore implements BlockStore, DisposableBean {
+    private static final int RECORD_HEADER = Integer.BYTES * 2;
+    // in place of the length of a record, the segment ends before it
+    private static final int END = -1;
+    private static final String SUFFIX = ".segment";
+    private static final String TRANSACTIONS_SUFFIX = ".transactions";
+    private static final int ID_PAGE = 1000;
+    private final Path directory;
+    private final long segmentSize;
+    private final int indexInterval;
+    private final boolean sync;
+    private final Scheduler io = Schedulers.boundedElastic();
+    private final ReadWriteLock lock = new ReentrantReadWriteLock();
+    private final List<Segment> segments = new ArrayList<>();
+    private final List<Position> sparse = new ArrayList<>();
+    private final Map<String, Long> hashes = new HashMap<>();
+    private final Map<Long, Long> recent = new HashMap<>();
+    private final FileChannel lockChannel;
+    private final FileLock fileLock;
+    private long lastIndex = -1;
+    private long rollbacks = 0;
+
+    public SegmentBlockStore(@Value("${blockchain.store.segment.dir:blocks}") String directory,
+                             @Value("${blockchain.store.segment.size:67108864}") long segmentSize,
+                             @Value("${blockchain.store.segment.index-interval:16}") int indexInterval,
+                             @Value("${blockchain.store.segment.sync:true}") boolean sync) throws IOException {
+        this.directory = Paths.get(directory);
+        this.segmentSize = Math.min(segmentSize, Integer.MAX_VALUE);
+        this.indexInterval = Math.max(1, indexInterval);
+        this.sync = sync;
+        Files.createDirectories(this.directory);
+        this.lockChannel = FileChannel.open(this.directory.resolve("store.lock"),
+                StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+        this.fileLock = lockChannel.tryLock();
+        if(fileLock == null) {
+            lockChannel.close();
+            throw new IllegalStateException("block store " + this.directory + " is in use by another process,"
+                    + " use blockchain.store=mongo when the blockchain service and the node both run");
+        }
+        open();
+        log.info("opened block store {} with {} blocks in {} segments", this.directory, lastIndex + 1, segments.size());
+    }
+
+    private void open() throws IOException {
+        List<Path> files;
+        try (Stream<Path> list = Files.list(directory)) {
+            files = list.filter(p -> p.getFileName().toString().endsWith(SUFFIX))
+                    .sorted()
+                    .collect(Collectors.toList());
+        }
+        for(int i = 0; i < files.size(); i++) {
+            Segment segment = new Segment(files.get(i));
+            segments.add(segment);
+            if(!scan(segment, segments.size() - 1)) {
+                for(Path later : files.subList(i + 1, files.size())) {
+                    log.warn("removing block store segment {} after a damaged record", later);
+                    Files.delete(later);
+                    Files.deleteIfExists(transactionsPath(later));
+                }
+                break;
+            }
+            if(i < files.size() - 1) {
+                seal(segment);
+            }
+        }
+        if(!segments.isEmpty()) {
+            Files.deleteIfExists(transactionsPath(segments.get(segments.size() - 1).path));
+        }
+    }
+
+    /**
+     *
+     * Map a full segment for reading and move the transaction ids of its
+     * blocks out of memory into its transactions file
+     *
+     * @param segment the segment, the newest one until now
+     */
+    private void seal(Segment segment) throws IOException {
+        segment.seal();
+        segment.transactions = TransactionIndex.write(transactionsPath(segment.path), recent);
+        recent.clear();
+    }
+
+    /**
+     *
+     * Make a full segment the newest one again after the chain is rolled
+     * back into it, its transaction ids are read back into memory
+     *
+     * @param segment the segment
+     */
+    private void unseal(Segment segment) throws IOException {
+        segment.unseal();
+        if(segment.transactions != null) {
+            segment.transactions.readInto(recent);
+            Files.deleteIfExists(segment.transactions.path);
+            segment.transactions = null;
+        }
+    }
+
+    private static Path transactionsPath(Path segment) {
+        String name = segment.getFileName().toString();
+        return segment.resolveSibling(name.substring(0, name.length() - SUFFIX.length()) + TRANSACTIONS_SUFFIX);
+    }
+
+    /**
+     *
+     * Read the records of a segment into the indexes, cutting the segment
+     * off at the first record that is incomplete or doesn't check out
+     *
+     * @param segment the segment
+     * @param number the position of the segment in the list
+     * @return true if the whole segment was good
+     */
+    private boolean scan(Segment segment, int number) throws IOException {
+        long size = segment.channel.size();
+        ByteBuffer records = segment.channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+        long offset = 0;
+        while(offset < size) {
+            Block block = null;
+            int length = 0;
+            if(size - offset >= RECORD_HEADER) {
+                length = records.getInt((int) offset);
+                if(length == END) {
+                    log.info("cutting block store segment {} off at its end mark {} of {} bytes", segment.path, offset, size);
+                    segment.channel.truncate(offset);
+                    segment.size = offset;
+                    return true;
+                }
+                int crc = records.getInt((int) offset + Integer.BYTES);
+                if(length > 0 && offset + RECORD_HEADER + length <= size) {
+                    byte[] body = new byte[length];
+                    ByteBuffer view = records.duplicate();
+                    view.position((int) offset + RECORD_HEADER);
+                    view.get(body);
+                    if(checksum(body) == crc) {
+                        block = parse(body);
+                    }
+                }
+            }
+            if(block == null || block.getIndex() != lastIndex + 1) {
+                log.warn("cutting block store segment {} off at {} of {} bytes", segment.path, offset, size);
+                segment.channel.truncate(offset);
+                segment.size = offset;
+                return false;
+            }
+            index(block, new Position(number, offset));
+            offset += RECORD_HEADER + length;
+        }
+        segment.size = size;
+        return true;
+    }
+
+    @Override
+    public Mono<Block> findByIndex(long index) {
+        return Mono.fromCallable(() -> read(index))
+                .subscribeOn(io);
+    }
+
+    @Override
+    public Mono<Block> findByHash(String hash) {
+        return Mono.fromCallable(() -> {
+                    lock.readLock().lock();
+                    try {
+                        Long index = hashes.get(hash);
+                        return index == null ? null : read(index);
+                    } finally {
+                        lock.readLock().unlock();
+                    }
+                })
+                .subscribeOn(io);
+    }
+
+    @Override
+    public Mono<Block> findLast() {
+        return Mono.fromCallable(() -> {
+                    lock.readLock().lock();
+                    try {
+                        return read(lastIndex);
+                    } finally {
+                        lock.readLock().unlock();
+                    }
+                })
+                .subscribeOn(io);
+    }
+
+    @Override
+    public Flux<Block> findByTransactionId(long transactionId) {
+        return Mono.fromCallable(() -> {
+                    lock.readLock().lock();
+                    try {
+                        Long index = blockOf(transactionId);
+                        return index == null ? null : read(index);
+                    } finally {
+                        lock.readLock().unlock();
+                    }
+                })
+                .subscribeOn(io)
+                .flux();
+    }
+
+    @Override
+    public Flux<Block> findByTransactionIdIn(Collection<Long> transactionIds) {
+        return Mono.fromCallable(() -> {
+                    lock.readLock().lock();
+                    try {
+                        TreeSet<Long> indexes = new TreeSet<>();
+                        transactionIds.forEach(id -> {
+                            Long index = blockOf(id);
+                            if(index != null) {
+                                indexes.add(index);
+                            }
+                        });
+                        List<Block> found = new ArrayList<>();
+                        for(long index : indexes) {
+                            found.add(read(index));
+                        }
+                        return found;
+                    } finally {
+                        lock.readLock().unlock();
+                    }
+                })
+                .subscribeOn(io)
+                .flatMapIterable(found -> found);
+    }
+
+    @Override
+    public Flux<Block> findRange(long fromIndex, long toIndex) {
+        return Flux.<Block, Cursor>generate(() -> new Cursor(Math.max(0, fromIndex)), (cursor, sink) -> {
+                    Block block = next(cursor, toIndex);
+                    if(block == null) {
+                        sink.complete();
+                    } else {
+                        sink.next(block);
+                    }
+                    return cursor;
+                })
+                .subscribeOn(io);
+    }
+
+    @Override
+    public Flux<ByteBuffer> findEncodedRange(long fromIndex, long toIndex) {
+        return Flux.<ByteBuffer, Cursor>generate(() -> new Cursor(Math.max(0, fromIndex)), (cursor, sink) -> {
+                    ByteBuffer record = nextRecord(cursor, toIndex);
+                    if(record == null) {
+                        sink.complete();
+                    } else {
+                        sink.next(record);
+                    }
+                    return cursor;
+                })
+                .subscribeOn(io);
+    }
+
+    @Override
+    public Flux<Block> findHeaders(long fromIndex, long toIndex) {
+        return findRange(fromIndex, toIndex)
+                .map(Block::toHeader);
+    }
+
+    @Override
+    public Flux<Block> findAllTransactionIds() {
+        // the transactions files never change once written, so they can be
+        // read after the lock is let go, a rollback only deletes the file
+        return Mono.fromCallable(() -> {
+                    lock.readLock().lock();
+                    try {
+                        List<TransactionIndex> sealed = new ArrayList<>();
+                        segments.forEach(segment -> {
+                            if(segment.transactions != null) {
+                                sealed.add(segment.transactions);
+                            }
+                        });
+                        return Tuples.of(sealed, new ArrayList<>(recent.keySet()));
+                    } finally {
+                        lock.readLock().unlock();
+                    }
+                })
+                .subscribeOn(io)
+                .flatMapMany(indexes -> Flux.fromIterable(indexes.getT1())
+                        .concatMap(index -> Flux.range(0, index.count).map(index::id))
+                        .concatWith(Flux.fromIterable(indexes.getT2())))
+                .buffer(ID_PAGE)
+                .map(ids -> Block.builder()
+                        .transactions(ids.stream()
+                                .map(id -> Transaction.builder().transactionId(id).build())
+                                .collect(Collectors.toList()))
+                        .build());
+    }
+
+    @Override
+    public Mono<Block> save(Block block) {
+        return saveAll(List.of(block)).next();
+    }
+
+    @Override
+    public Flux<Block> saveAll(List<Block> blocks) {
+        return Mono.fromCallable(() -> {
+                    lock.writeLock().lock();
+                    try {
+                        for(Block block : blocks) {
+                            append(block);
+                        }
+                        flush();
+                        return blocks;
+                    } finally {
+                        lock.writeLock().unlock();
+                    }
+                })
+                .subscribeOn(io)
+                .flatMapIterable(saved -> saved);
+    }
+
+    @Override
+    public Mono<Void> delete(Block block) {
+        return Mono.fromRunnable(() -> {
+                    lock.writeLock().lock();
+                    try {
+                        removeLast(block);
+                        flush();
+                    } finally {
+                        lock.writeLock().unlock();
+                    }
+                })
+                .subscribeOn(io)
+                .then();
+    }
+
+    @Override
+    public void destroy() throws IOException {
+        lock.writeLock().lock();
+        try {
+            for(Segment segment : segments) {
+                segment.channel.force(true);
+                segment.channel.close();
+            }
+            fileLock.release();
+            lockChannel.close();
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    private void append(Block block) {
+        if(block.getIndex() <= lastIndex || hashes.containsKey(block.getHash())) {
+            throw new DuplicateKeyException("block " + block.getIndex() + " is already stored");
+        }
+        if(block.getIndex() != lastIndex + 1) {
+            throw new IllegalStateException("block " + block.getIndex() + " doesn't follow the last stored block " + lastIndex);
+        }
+        byte[] body = block.toJson();
+        ByteBuffer record = ByteBuffer.allocate(RECORD_HEADER + body.length)
+                .putInt(body.length)
+                .putInt(checksum(body))
+                .put(body)
+                .flip();
+        try {
+            Segment active = segments.isEmpty() ? null : segments.get(segments.size() - 1);
+            if(active == null || active.ended || (active.size > 0 && active.size + record.remaining() > segmentSize)) {
+                if(active != null) {
+                    active.channel.force(false);
+                    seal(active);
+                }
+                active = new Segment(directory.resolve(String.format("%020d%s", block.getIndex(), SUFFIX)));
+                segments.add(active);
+            }
+            Position position = new Position(segments.size() - 1, active.size);
+            long offset = active.size;
+            while(record.hasRemaining()) {
+                offset += active.channel.write(record, offset);
+            }
+            active.size = offset;
+            index(block, position);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private void removeLast(Block block) {
+        Long index = hashes.get(block.getHash());
+        if(index == null) {
+            return;
+        }
+        if(index != lastIndex) {
+            throw new IllegalStateException("block " + index + " isn't the last stored block " + lastIndex);
+        }
+        Position position = locate(lastIndex);
+        Block stored = parse(bytes(record(position)));
+        try {
+            Segment segment = segments.get(position.segment);
+            if(position.offset == 0) {
+                // a segment is named after its first block, so one rolled back to
+                // nothing is removed rather than ended or the next block to take
+                // that index would open it again. Mappings outlive the file.
+                segment.channel.close();
+                Files.delete(segment.path);
+                Files.deleteIfExists(transactionsPath(segment.path));
+                segments.remove(position.segment);
+                if(position.segment > 0) {
+                    unseal(segments.get(position.segment - 1));
+                }
+            } else if(segment.wasMapped) {
+                // slices of the mapping may still be on their way to a peer, so the
+                // records under them stay as they are until the segment is next opened
+                segment.end(position.offset);
+            } else {
+                segment.channel.truncate(position.offset);
+                segment.size = position.offset;
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        hashes.remove(stored.getHash());
+        if(stored.getTransactions() != null) {
+            stored.getTransactions().forEach(t -> recent.remove(t.getTransactionId(), lastIndex));
+        }
+        if(lastIndex % indexInterval == 0) {
+            sparse.remove(sparse.size() - 1);
+        }
+        lastIndex--;
+        rollbacks++;
+    }
+
+    private void flush() {
+        if(!sync || segments.isEmpty()) {
+            return;
+        }
+        try {
+            segments.get(segments.size() - 1).channel.force(false);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private void index(Block block, Position position) {
+        if(block.getIndex() % indexInterval == 0) {
+            sparse.add(position);
+        }
+        hashes.put(block.getHash(), block.getIndex());
+        if(block.getTransactions() != null) {
+            block.getTransactions().forEach(t -> recent.put(t.getTransactionId(), block.getIndex()));
+        }
+        lastIndex = block.getIndex();
+    }
+
+    /**
+     *
+     * Find the block a transaction is in, looking in the newest segment
+     * first and then in the transactions files from newest to oldest
+     *
+     * @param transactionId the transaction id
+     * @return the index of the block, null if no block has it
+     */
+    private Long blockOf(long transactionId) {
+        Long index = recent.get(transactionId);
+        for(int i = segments.size() - 1; index == null && i >= 0; i--) {
+            TransactionIndex sealed = segments.get(i).transactions;
+            if(sealed != null) {
+                index = sealed.get(transactionId);
+            }
+        }
+        return index;
+    }
+
+    private Block read(long index) {
+        lock.readLock().lock();
+        try {
+            if(index < 0 || index > lastIndex) {
+                return null;
+            }
+            return parse(bytes(record(locate(index))));
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    private Block next(Cursor cursor, long toIndex) {
+        ByteBuffer record = nextRecord(cursor, toIndex);
+        return record == null ? null : parse(bytes(record));
+    }
+
+    private ByteBuffer nextRecord(Cursor cursor, long toIndex) {
+        lock.readLock().lock();
+        try {
+            if(cursor.index > Math.min(toIndex, lastIndex)) {
+                return null;
+            }
+            // the chain may have been rolled back and grown again since the last read
+            if(cursor.position == null || cursor.rollbacks != rollbacks) {
+                cursor.position = locate(cursor.index);
+                cursor.rollbacks = rollbacks;
+            }
+            ByteBuffer record = record(cursor.position);
+            cursor.position = following(cursor.position);
+            cursor.index++;
+            return record;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    private Position locate(long index) {
+        Position position = sparse.get((int) (index / indexInterval));
+        for(long i = index % indexInterval; i > 0; i--) {
+            position = following(position);
+        }
+        return position;
+    }
+
+    private Position following(Position position) {
+        Segment segment = segments.get(position.segment);
+        long next = position.offset + RECORD_HEADER + segment.read(position.offset, Integer.BYTES).getInt();
+        if(next >= segment.size && position.segment + 1 < segments.size()) {
+            return new Position(position.segment + 1, 0);
+        }
+        return new Position(position.segment, next);
+    }
+
+    /**
+     *
+     * Get the JSON of the block at a position, a slice of the mapping for a
+     * full segment so nothing is copied
+     *
+     * @param position the position of the record
+     * @return a read only buffer of the JSON
+     */
+    private ByteBuffer record(Position position) {
+        Segment segment = segments.get(position.segment);
+        int length = segment.read(position.offset, Integer.BYTES).getInt();
+        return segment.read(position.offset + RECORD_HEADER, length).asReadOnlyBuffer();
+    }
+
+    private static byte[] bytes(ByteBuffer record) {
+        byte[] bytes = new byte[record.remaining()];
+        record.duplicate().get(bytes);
+        return bytes;
+    }
+
+    private static Block parse(byte[] body) {
+        try {
+            return Block.mapper.readValue(body, Block.class);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private static int checksum(byte[] body) {
+        CRC32 crc = new CRC32();
+        crc.update(body);
+        return (int) crc.getValue();
+    }
+
+    private static class Position {
+        final int segment;
+        final long offset;
+
+        Position(int segment, long offset) {
+            this.segment = segment;
+            this.offset = offset;
+        }
+    }
+
+    private static class Cursor {
+        long index;
+        Position position;
+        long rollbacks;
+
+        Cursor(long index) {
+            this.index = index;
+        }
+    }
+
+    /**
+     * The transaction ids of a full segment and the index of the block each
+     * is in, as pairs of longs sorted by transaction id in a mapped file
+     */
+    private static class TransactionIndex {
+        private static final int ENTRY = Long.BYTES * 2;
+        final Path path;
+        final ByteBuffer entries;
+        final int count;
+
+        private TransactionIndex(Path path, ByteBuffer entries) {
+            this.path = path;
+            this.entries = entries;
+            this.count = entries.capacity() / ENTRY;
+        }
+
+        static TransactionIndex write(Path path, Map<Long, Long> blocks) throws IOException {
+            long[] ids = blocks.keySet().stream()
+                    .mapToLong(Long::longValue)
+                    .sorted()
+                    .toArray();
+            ByteBuffer buffer = ByteBuffer.allocate(ids.length * ENTRY);
+            for(long id : ids) {
+                buffer.putLong(id).putLong(blocks.get(id));
+            }
+            buffer.flip();
+            try (FileChannel channel = FileChannel.open(path, StandardOpenOption.CREATE,
+                    StandardOpenOption.READ, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+                while(buffer.hasRemaining()) {
+                    channel.write(buffer);
+                }
+                channel.force(false);
+                return new TransactionIndex(path, channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()));
+            }
+        }
+
+        long id(int entry) {
+            return entries.getLong(entry * ENTRY);
+        }
+
+        Long get(long transactionId) {
+            int low = 0;
+            int high = count - 1;
+            while(low <= high) {
+                int middle = (low + high) >>> 1;
+                long id = id(middle);
+                if(id < transactionId) {
+                    low = middle + 1;
+                } else if(id > transactionId) {
+                    high = middle - 1;
+                } else {
+                    return entries.getLong(middle * ENTRY + Long.BYTES);
+                }
+            }
+            return null;
+        }
+
+        void readInto(Map<Long, Long> blocks) {
+            for(int i = 0; i < count; i++) {
+                blocks.put(id(i), entries.getLong(i * ENTRY + Long.BYTES));
+            }
+        }
+    }
+
+    private static class Segment {
+        final Path path;
+        final FileChannel channel;
+        long size;
+        MappedByteBuffer mapped;
+        boolean wasMapped;
+        boolean ended;
+        TransactionIndex transactions;
+
+        Segment(Path path) throws IOException {
+            this.path = path;
+            this.channel = FileChannel.open(path, StandardOpenOption.CREATE,
+                    StandardOpenOption.READ, StandardOpenOption.WRITE);
+            this.size = channel.size();
+        }
+
+        /**
+         *
+         * Map a full segment for reading, it won't be written again unless
+         * the chain is rolled back into it
+         */
+        void seal() throws IOException {
+            mapped = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+            wasMapped = true;
+        }
+
+        void unseal() {
+            mapped = null;
+        }
+
+        /**
+         *
+         * End the segment before a record by writing the end mark over the
+         * record's header, which no slice covers. Nothing is appended to
+         * the segment after this.
+         */
+        void end(long offset) throws IOException {
+            ByteBuffer mark = ByteBuffer.allocate(RECORD_HEADER)
+                    .putInt(END)
+                    .putInt(0)
+                    .flip();
+            while(mark.hasRemaining()) {
+                channel.write(mark, offset + mark.position());
+            }
+            size = offset;
+            ended = true;
+        }
+
+        ByteBuffer read(long offset, int length) {
+            MappedByteBuffer map = mapped;
+            if(map != null) {
+                ByteBuffer view = map.duplicate();
+                view.position((int) offset);
+                view.limit((int) offset + length);
+                return view.slice();
+            }
+            ByteBuffer buffer = ByteBuffer.allocate(length);
+            try {
+                long position = offset;
+                while(buffer.hasRemaining()) {
+                    int read = channel.read(buffer, position);
+                    if(read < 0) {
+                        throw new IOException("unexpected end of segment " + path);
+                    }
+                    position += read;
+                }
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+            return buffer.flip();
+        }
+    }
+}
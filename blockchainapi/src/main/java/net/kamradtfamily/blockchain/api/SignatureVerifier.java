@@ -0,0 +1,219 @@
+package net.kamradtfamily.blockchain.api;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+import reactor.core.scheduler.Scheduler;
+import reactor.core.scheduler.Schedulers;
+
+import java.security.GeneralSecurityException;
+import java.security.PublicKey;
+import java.security.Signature;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Checks the signature on the input of a transaction against the public key
+ * of the user at the input address. Verifying is the most expensive part of
+ * checking a transaction, so it runs on its own threads, one per core unless
+ * configured, each with its own Signature objects. A transaction that verifies
+ * is remembered by its hash, so one checked when it was pooled isn't checked
+ * again when its block arrives. The hash is recomputed rather than taken from
+ * the transaction, so a transaction can't claim another one's result.
+ *
+ * A transaction of the canonical version or later must be signed by a known
+ * key. Legacy transactions were made before signing, so unless signatures are
+ * required of them too, a legacy transaction without a signature, or signed
+ * by an address with no known key, is let through.
+ */
+@Slf4j
+@Component
+public class SignatureVerifier implements DisposableBean {
+    private static final String METRIC = "blockchain.signature";
+    private final SignerKeys keys;
+    private final boolean enabled;
+    private final boolean legacyRequired;
+    private final int threads;
+    private final Scheduler verifiers;
+    private final Map<String, Boolean> verified;
+    private final ThreadLocal<Map<String, Signature>> signatures = ThreadLocal.withInitial(HashMap::new);
+    private final Counter valid;
+    private final Counter invalid;
+    private final Counter unsigned;
+    private final Counter unknown;
+    private final Counter hits;
+    private final Counter misses;
+    private final Timer timer;
+
+    public SignatureVerifier(SignerKeys keys,
+                             @Value("${blockchain.signature.verify:true}") boolean enabled,
+                             @Value("${blockchain.signature.required:false}") boolean legacyRequired,
+                             @Value("${blockchain.signature.threads:0}") int threads,
+                             @Value("${blockchain.signature.cache.size:100000}") int capacity,
+                             MeterRegistry registry) {
+        this.keys = keys;
+        this.enabled = enabled;
+        this.legacyRequired = legacyRequired;
+        this.threads = threads > 0 ? threads : Runtime.getRuntime().availableProcessors();
+        this.verifiers = Schedulers.newParallel("verifier", this.threads, true);
+        this.verified = new LinkedHashMap<String, Boolean>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Boolean> eldest) {
+                return size() > capacity;
+            }
+        };
+        this.valid = results(registry, "valid");
+        this.invalid = results(registry, "invalid");
+        this.unsigned = results(registry, "unsigned");
+        this.unknown = results(registry, "unknown_signer");
+        this.hits = cache(registry, "hit");
+        this.misses = cache(registry, "miss");
+        this.timer = Timer.builder(METRIC + ".verify")
+                .description("time to verify a transaction signature")
+                .register(registry);
+    }
+
+    /**
+     *
+     * Verify the signature of a transaction
+     *
+     * @param transaction the transaction
+     * @return A Mono of the transaction if the signature is good
+     */
+    public Mono<Transaction> verify(Transaction transaction) {
+        if(!enabled) {
+            return Mono.just(transaction);
+        }
+        boolean required = legacyRequired || transaction.getVersion() != Transaction.LEGACY_VERSION;
+        Transaction.Input input = transaction.getData() == null ? null : transaction.getData().getInput();
+        if(input == null || input.getSignature() == null) {
+            unsigned.increment();
+            return required
+                    ? Mono.error(() -> new TransactionAssertionError("Transaction "
+                            + transaction.getTransactionId() + " isn't signed"))
+                    : Mono.just(transaction);
+        }
+        String hash = transaction.toHash();
+        synchronized(verified) {
+            if(verified.containsKey(hash)) {
+                hits.increment();
+                return Mono.just(transaction);
+            }
+        }
+        misses.increment();
+        return keys.find(input.getAddress())
+                .publishOn(verifiers)
+                .map(key -> matches(key, input))
+                .flatMap(matched -> {
+                    if(!matched) {
+                        invalid.increment();
+                        return Mono.<Transaction>error(() -> new TransactionAssertionError(
+                                "Invalid signature on transaction " + transaction.getTransactionId()));
+                    }
+                    valid.increment();
+                    synchronized(verified) {
+                        verified.put(hash, Boolean.TRUE);
+                    }
+                    return Mono.just(transaction);
+                })
+                .switchIfEmpty(Mono.defer(() -> {
+                    unknown.increment();
+                    return required
+                            ? Mono.error(() -> new TransactionAssertionError("No key for signer "
+                                    + input.getAddress() + " of transaction " + transaction.getTransactionId()))
+                            : Mono.just(transaction);
+                }));
+    }
+
+    /**
+     *
+     * Verify the signatures of a number of transactions in parallel
+     *
+     * @param transactions the transactions
+     * @return A Mono that completes if every signature is good
+     */
+    public Mono<Void> verifyAll(Collection<Transaction> transactions) {
+        return Flux.fromIterable(transactions)
+                .flatMap(this::verify, threads * 2)
+                .then();
+    }
+
+    /**
+     *
+     * Verify the signatures of a number of transactions in parallel and
+     * report the ones that fail
+     *
+     * @param transactions the transactions
+     * @return A Mono of why each bad transaction failed, by transaction id
+     */
+    public Mono<Map<Long, String>> findInvalid(Collection<Transaction> transactions) {
+        return Flux.fromIterable(new ArrayList<>(transactions))
+                .flatMap(t -> verify(t)
+                        .then(Mono.<Map.Entry<Long, String>>empty())
+                        .onErrorResume(e -> Mono.just(Map.entry(t.getTransactionId(), e.getMessage()))),
+                        threads * 2)
+                .collectMap(Map.Entry::getKey, Map.Entry::getValue);
+    }
+
+    private boolean matches(PublicKey key, Transaction.Input input) {
+        long started = System.nanoTime();
+        try {
+            Signature signature = signatures.get().computeIfAbsent(algorithm(key), name -> {
+                try {
+                    return Signature.getInstance(name);
+                } catch (GeneralSecurityException e) {
+                    throw new IllegalStateException("no signature algorithm " + name, e);
+                }
+            });
+            signature.initVerify(key);
+            signature.update(input.signedContent());
+            return signature.verify(Base64.getDecoder().decode(input.getSignature()));
+        } catch (GeneralSecurityException | IllegalArgumentException e) {
+            log.info("signature of {} doesn't verify: {}", input.getAddress(), e.getMessage());
+            return false;
+        } finally {
+            timer.record(System.nanoTime() - started, TimeUnit.NANOSECONDS);
+        }
+    }
+
+    private static String algorithm(PublicKey key) {
+        switch(key.getAlgorithm()) {
+            case "DSA":
+                return "SHA1withDSA";
+            case "EC":
+                return "SHA256withECDSA";
+            default:
+                return "Ed25519";
+        }
+    }
+
+    @Override
+    public void destroy() {
+        verifiers.dispose();
+    }
+
+    private static Counter results(MeterRegistry registry, String result) {
+        return Counter.builder(METRIC + ".verified")
+                .description("transaction signatures checked by result")
+                .tag("result", result)
+                .register(registry);
+    }
+
+    private static Counter cache(MeterRegistry registry, String result) {
+        return Counter.builder(METRIC + ".cache")
+                .description("lookups of verified transactions by result")
+                .tag("result", result)
+                .register(registry);
+    }
+}
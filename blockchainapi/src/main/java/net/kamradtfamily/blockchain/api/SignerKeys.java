@@ -0,0 +1,120 @@
+package net.kamradtfamily.blockchain.api;
+
+import lombok.extern.slf4j.Slf4j;
+import org.bson.Document;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.mongodb.core.ReactiveMongoOperations;
+import org.springframework.data.mongodb.core.query.Criteria;
+import org.springframework.data.mongodb.core.query.Query;
+import org.springframework.stereotype.Component;
+import reactor.core.publisher.Mono;
+
+import java.security.KeyFactory;
+import java.security.NoSuchAlgorithmException;
+import java.security.PublicKey;
+import java.security.spec.InvalidKeySpecException;
+import java.security.spec.X509EncodedKeySpec;
+import java.util.Base64;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * The public keys of the users that sign transactions, looked up by address
+ * in the collection of users the miner keeps, and held in memory once decoded.
+ * The least recently used keys are dropped when the cache is full, and a key
+ * older than the maximum age is looked up again, since users are changed by
+ * the miner, another process this one hears nothing from.
+ * The type of a key is worked out from its encoding: DSA and EC keys are
+ * supported, and Ed25519 keys when the JVM has it.
+ */
+@Slf4j
+@Component
+public class SignerKeys {
+    private static final String[] KEY_TYPES = {"DSA", "EC", "Ed25519"};
+    private final ReactiveMongoOperations mongo;
+    private final String collection;
+    private final long maximumAge;
+    private final Map<String, Entry> keys;
+
+    public SignerKeys(ReactiveMongoOperations mongo,
+                      @Value("${blockchain.signature.key.collection:user}") String collection,
+                      @Value("${blockchain.signature.key.cache.size:10000}") int capacity,
+                      @Value("${blockchain.signature.key.cache.max-age:600}") long maximumAge) {
+        this.mongo = mongo;
+        this.collection = collection;
+        this.maximumAge = maximumAge * 1000;
+        this.keys = new LinkedHashMap<String, Entry>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Entry> eldest) {
+                return size() > capacity;
+            }
+        };
+    }
+
+    /**
+     *
+     * Get the public key of the user with an address
+     *
+     * @param address the address of the user
+     * @return A Mono of the key, empty if there is no such user or the key can't be read
+     */
+    public Mono<PublicKey> find(String address) {
+        long now = System.currentTimeMillis();
+        synchronized(keys) {
+            Entry entry = keys.get(address);
+            if(entry != null && now - entry.loaded < maximumAge) {
+                return Mono.just(entry.key);
+            }
+        }
+        return mongo.findOne(Query.query(Criteria.where("address").is(address)), Document.class, collection)
+                .flatMap(user -> Mono.justOrEmpty(user.getString("publicKey")))
+                .flatMap(encoded -> Mono.justOrEmpty(decode(address, encoded)))
+                .doOnNext(decoded -> {
+                    synchronized(keys) {
+                        keys.put(address, new Entry(decoded, now));
+                    }
+                })
+                .switchIfEmpty(Mono.fromRunnable(() -> invalidate(address)));
+    }
+
+    /**
+     *
+     * Forget the key of a user, it is looked up again the next time it's needed
+     *
+     * @param address the address of the user
+     */
+    public void invalidate(String address) {
+        synchronized(keys) {
+            keys.remove(address);
+        }
+    }
+
+    private static PublicKey decode(String address, String encoded) {
+        X509EncodedKeySpec spec;
+        try {
+            spec = new X509EncodedKeySpec(Base64.getDecoder().decode(encoded));
+        } catch (IllegalArgumentException e) {
+            log.warn("public key of {} isn't base64", address);
+            return null;
+        }
+        for(String type : KEY_TYPES) {
+            try {
+                return KeyFactory.getInstance(type).generatePublic(spec);
+            } catch (NoSuchAlgorithmException | InvalidKeySpecException e) {
+                // not this type, try the next
+            }
+        }
+        log.warn("public key of {} isn't a supported type", address);
+        return null;
+    }
+
+    private static class Entry {
+        final PublicKey key;
+        final long loaded;
+
+        Entry(PublicKey key, long loaded) {
+            this.key = key;
+            this.loaded = loaded;
+        }
+    }
+}
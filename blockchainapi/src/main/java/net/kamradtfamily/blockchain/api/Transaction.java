@@ -1,14 +1,17 @@
 package net.kamradtfamily.blockchain.api;
 
 import com.fasterxml.jackson.annotation.JsonIgnoreProperties;
+import com.fasterxml.jackson.annotation.JsonInclude;
 import com.fasterxml.jackson.core.JsonProcessingException;
 import com.fasterxml.jackson.databind.ObjectMapper;
 import lombok.AllArgsConstructor;
 import lombok.Builder;
 import lombok.NoArgsConstructor;
 import org.springframework.data.annotation.Id;
+import org.springframework.data.mongodb.core.index.Indexed;
 import org.springframework.data.mongodb.core.mapping.Document;
 
+import java.nio.charset.StandardCharsets;
 import java.util.List;
 
 /**
@@ -25,11 +28,21 @@ import java.util.List;
 @JsonIgnoreProperties(ignoreUnknown = true)
 @Document
 public class Transaction {
+    /**
+     * Version 0 hashes the transaction id concatenated with the JSON of the data,
+     * version 1 hashes the canonical binary encoding of the id and data.
+     */
+    public static final int LEGACY_VERSION = 0;
+    public static final int CANONICAL_VERSION = 1;
     static ObjectMapper mapper = new ObjectMapper();
     @Id
     private String id;
+    @Indexed
     private long transactionId;
     private String hash;
+    // left out of the JSON when 0 so legacy block hashes, which include the transaction JSON, don't change
+    @JsonInclude(JsonInclude.Include.NON_DEFAULT)
+    private int version;
     public Data data;
 
     /**
@@ -50,12 +63,66 @@ public class Transaction {
      * @return the hash value
      */
     public String toHash() {
-        try {
-            return CryptoUtil.hash(transactionId + mapper.writeValueAsString(this.data));
-        } catch (JsonProcessingException e) {
-            throw new RuntimeException("json error", e);
+        if(version == LEGACY_VERSION) {
+            try {
+                return CryptoUtil.hash(transactionId + mapper.writeValueAsString(this.data));
+            } catch (JsonProcessingException e) {
+                throw new RuntimeException("json error", e);
+            }
+        } else if(version == CANONICAL_VERSION) {
+            return encode(CryptoUtil.hasher()).hex();
         }
+        throw new IllegalStateException("unknown transaction version " + version);
     }
+
+    /**
+     *
+     * Write the canonical encoding of the transaction to a hasher. The order of
+     * fields is fixed and must never change for a given version.
+     *
+     * @param hasher the hasher to write to
+     * @return the hasher
+     */
+    public CryptoUtil.Hasher encode(CryptoUtil.Hasher hasher) {
+        hasher.update(version)
+                .update(transactionId);
+        if(data == null) {
+            return hasher.update(-1);
+        }
+        hasher.update(0);
+        Input input = data.getInput();
+        if(input == null) {
+            hasher.update(-1);
+        } else {
+            hasher.update(0)
+                    .update(input.getContract())
+                    .update(input.getAddress())
+                    .update(input.getSignature());
+        }
+        List<Output> outputs = data.getOutputs();
+        if(outputs == null) {
+            return hasher.update(-1);
+        }
+        hasher.update(outputs.size());
+        for(Output output : outputs) {
+            hasher.update(output.getContract())
+                    .update(output.getAddress());
+        }
+        return hasher;
+    }
+
+    /**
+     *
+     * The length of the canonical encoding of the transaction, used to
+     * measure how much room it takes in a block. The encoding is only
+     * counted, not hashed or copied.
+     *
+     * @return the size in bytes
+     */
+    public int encodedSize() {
+        return (int) encode(CryptoUtil.counter()).length();
+    }
+
     public void check(Transaction transaction) {
 
     }
@@ -75,6 +142,21 @@ public class Transaction {
         private String contract;
         private String address;
         private String signature;
+
+        /**
+         *
+         * The bytes the signature is made over, this must match what the
+         * miner signs exactly
+         *
+         * @return the signed bytes
+         */
+        public byte[] signedContent() {
+            return ("{ contract: \""
+                    + contract
+                    + "\", address: \""
+                    + address
+                    + "\"}").getBytes(StandardCharsets.UTF_8);
+        }
     }
     @lombok.Data
     @Builder
@@ -2,9 +2,14 @@ package net.kamradtfamily.blockchain.api;
 
 import org.springframework.data.mongodb.repository.ReactiveMongoRepository;
 import org.springframework.stereotype.Repository;
+import reactor.core.publisher.Flux;
 import reactor.core.publisher.Mono;
 
+import java.util.Collection;
+
 @Repository
 public interface TransactionRepository extends ReactiveMongoRepository<Transaction, String> {
     Mono<Transaction> findByTransactionId(long transactionId);
+    Flux<Transaction> findByTransactionIdIn(Collection<Long> transactionIds);
+    Mono<Long> deleteByTransactionIdIn(Collection<Long> transactionIds);
 }
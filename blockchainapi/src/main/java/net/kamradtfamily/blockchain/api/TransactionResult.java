@@ -0,0 +1,26 @@
+package net.kamradtfamily.blockchain.api;
+
+import com.fasterxml.jackson.annotation.JsonIgnoreProperties;
+import lombok.AllArgsConstructor;
+import lombok.Builder;
+import lombok.NoArgsConstructor;
+
+/**
+ * What happened to one transaction of a batch. Added transactions are in
+ * the loose pool, the others were left out for the reason given.
+ */
+@lombok.Data
+@Builder
+@AllArgsConstructor
+@NoArgsConstructor
+@JsonIgnoreProperties(ignoreUnknown = true)
+public class TransactionResult {
+    public static final String ADDED = "added";
+    public static final String PENDING = "pending";
+    public static final String CONFIRMED = "confirmed";
+    public static final String REPEATED = "repeated";
+    public static final String INVALID = "invalid";
+    private long transactionId;
+    private String status;
+    private String reason;
+}
@@ -0,0 +1,73 @@
+package net.kamradtfamily.blockchain.api;
+
+import lombok.extern.slf4j.Slf4j;
+
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+
+/**
+ * A small timing harness for comparing two ways of doing the same thing in
+ * a test. Each operation is warmed up and then run for a fixed time, and the
+ * rate is logged and returned. Not as careful as JMH, but enough to see a
+ * change. Benchmarks only run with -Dbenchmark=true so the normal build
+ * doesn't pay for them.
+ */
+@Slf4j
+final class Benchmark {
+    static final String ENABLED = "benchmark";
+    private static final long WARMUP_MILLIS = 1000;
+    private static final long MEASURE_MILLIS = 2000;
+    // results are folded in here so the JIT can't drop the work
+    private static volatile int sink;
+
+    private Benchmark() {
+    }
+
+    /**
+     *
+     * Run an operation repeatedly and measure how often it completes
+     *
+     * @param name what is logged for the operation
+     * @param operation the operation, its result is consumed
+     * @return operations per second
+     */
+    static double rate(String name, Supplier<?> operation) {
+        run(operation, WARMUP_MILLIS);
+        long started = System.nanoTime();
+        long count = run(operation, MEASURE_MILLIS);
+        double perSecond = count * (double) TimeUnit.SECONDS.toNanos(1) / (System.nanoTime() - started);
+        log.info("{}: {} ops/s", name, String.format("%,.0f", perSecond));
+        return perSecond;
+    }
+
+    /**
+     *
+     * Measure an old and a new way of doing the same thing, one after the other
+     *
+     * @param before what is logged for the old way
+     * @param old the old way
+     * @param after what is logged for the new way
+     * @param changed the new way
+     * @return how many times faster the new way is
+     */
+    static double compare(String before, Supplier<?> old, String after, Supplier<?> changed) {
+        double oldRate = rate(before, old);
+        double speedup = rate(after, changed) / oldRate;
+        log.info("{} is {}x {}", after, String.format("%.2f", speedup), before);
+        return speedup;
+    }
+
+    private static long run(Supplier<?> operation, long millis) {
+        long end = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(millis);
+        long count = 0;
+        int folded = 0;
+        while(System.nanoTime() < end) {
+            for(int i = 0; i < 100; i++) {
+                folded ^= operation.get().hashCode();
+            }
+            count += 100;
+        }
+        sink = folded;
+        return count;
+    }
+}
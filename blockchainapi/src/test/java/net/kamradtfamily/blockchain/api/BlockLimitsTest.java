@@ -0,0 +1,42 @@
+package net.kamradtfamily.blockchain.api;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+
+class BlockLimitsTest {
+
+    @Test
+    void bytesAreTheSumOfTheEncodedSizes() {
+        List<Transaction> transactions = List.of(transaction(1), transaction(2), transaction(3));
+        long size = transactions.stream().mapToLong(Transaction::encodedSize).sum();
+        assertNull(new BlockLimits(10, size).check(transactions));
+        assertNotNull(new BlockLimits(10, size - 1).check(transactions));
+    }
+
+    @Test
+    void tooManyTransactions() {
+        assertNull(new BlockLimits(2, 1000).check(List.of(transaction(1), transaction(2))));
+        assertNotNull(new BlockLimits(2, 1000).check(List.of(transaction(1), transaction(2), transaction(3))));
+        assertNull(new BlockLimits(2, 1000).check(Collections.emptyList()));
+        assertNull(new BlockLimits(2, 1000).check(null));
+    }
+
+    private static Transaction transaction(long id) {
+        return Transaction.builder()
+                .version(Transaction.CANONICAL_VERSION)
+                .transactionId(id)
+                .data(Transaction.Data.builder()
+                        .input(Transaction.Input.builder()
+                                .contract("contract " + id)
+                                .address(CryptoUtil.hash("input " + id))
+                                .build())
+                        .outputs(Collections.emptyList())
+                        .build())
+                .build();
+    }
+}
@@ -0,0 +1,187 @@
+package net.kamradtfamily.blockchain.api;
+
+import org.junit.jupiter.api.Test;
+import org.springframework.dao.DuplicateKeyException;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.stream.Collectors;
+import java.util.stream.LongStream;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * How every BlockStore has to behave, run against each implementation by a
+ * subclass that sets the store up empty before each test
+ */
+abstract class BlockStoreTest {
+    static final Duration TIMEOUT = Duration.ofSeconds(10);
+    static final int TRANSACTIONS = 3;
+    BlockStore store;
+
+    @Test
+    void emptyStoreHasNoLastBlock() {
+        assertNull(store.findLast().block(TIMEOUT));
+        assertEquals(0, store.findRange(0, 10).count().block(TIMEOUT));
+    }
+
+    @Test
+    void savedBlocksAreFoundByIndexAndHash() {
+        List<Block> chain = save(chain(5));
+        for(Block block : chain) {
+            assertEquals(block.getHash(), store.findByIndex(block.getIndex()).block(TIMEOUT).getHash());
+            assertEquals(block.getIndex(), store.findByHash(block.getHash()).block(TIMEOUT).getIndex());
+        }
+        assertEquals(4, store.findLast().block(TIMEOUT).getIndex());
+        assertNull(store.findByIndex(5).block(TIMEOUT));
+        assertNull(store.findByHash("missing").block(TIMEOUT));
+    }
+
+    @Test
+    void rangesAreInIndexOrder() {
+        List<Block> chain = save(chain(10));
+        assertEquals(hashes(chain.subList(3, 8)), hashes(store.findRange(3, 7).collectList().block(TIMEOUT)));
+        assertEquals(hashes(chain.subList(8, 10)), hashes(store.findRange(8, 20).collectList().block(TIMEOUT)));
+        List<Block> headers = store.findHeaders(2, 4).collectList().block(TIMEOUT);
+        assertEquals(hashes(chain.subList(2, 5)), hashes(headers));
+        headers.forEach(h -> assertTrue(h.getTransactions() == null || h.getTransactions().isEmpty()));
+        List<Block> decoded = store.findEncodedRange(0, 9)
+                .map(BlockStoreTest::parse)
+                .collectList()
+                .block(TIMEOUT);
+        assertEquals(hashes(chain), hashes(decoded));
+    }
+
+    @Test
+    void takenIndexOrHashIsRejected() {
+        List<Block> chain = save(chain(3));
+        Block sameIndex = block(2, chain.get(1).getHash(), 99);
+        assertThrows(DuplicateKeyException.class, () -> store.save(sameIndex).block(TIMEOUT));
+        Block sameHash = copy(chain.get(2));
+        sameHash.setIndex(3);
+        assertThrows(DuplicateKeyException.class, () -> store.save(sameHash).block(TIMEOUT));
+        assertEquals(chain.get(2).getHash(), store.findLast().block(TIMEOUT).getHash());
+    }
+
+    @Test
+    void transactionsAreFound() {
+        List<Block> chain = save(chain(6));
+        for(Block block : chain) {
+            for(Transaction t : block.getTransactions()) {
+                assertEquals(List.of(block.getHash()),
+                        hashes(store.findByTransactionId(t.getTransactionId()).collectList().block(TIMEOUT)));
+            }
+        }
+        List<Long> ids = List.of(transactionId(1, 0), transactionId(4, 2), transactionId(4, 1), -1L);
+        assertEquals(Set.of(chain.get(1).getHash(), chain.get(4).getHash()),
+                Set.copyOf(hashes(store.findByTransactionIdIn(ids).collectList().block(TIMEOUT))));
+        assertEquals(0, store.findByTransactionId(-1).count().block(TIMEOUT));
+        assertEquals(LongStream.range(0, 6 * TRANSACTIONS).boxed().collect(Collectors.toSet()),
+                store.findAllTransactionIds()
+                        .flatMapIterable(Block::getTransactions)
+                        .map(Transaction::getTransactionId)
+                        .collect(Collectors.toSet())
+                        .block(TIMEOUT));
+    }
+
+    @Test
+    void blocksAreRolledBackFromTheTop() {
+        List<Block> chain = save(chain(6));
+        for(long index = 5; index >= 3; index--) {
+            store.delete(store.findByIndex(index).block(TIMEOUT)).block(TIMEOUT);
+        }
+        assertEquals(2, store.findLast().block(TIMEOUT).getIndex());
+        assertNull(store.findByHash(chain.get(4).getHash()).block(TIMEOUT));
+        assertEquals(0, store.findByTransactionId(transactionId(4, 0)).count().block(TIMEOUT));
+        Block replacement = block(3, chain.get(2).getHash(), 1);
+        save(List.of(replacement));
+        assertEquals(replacement.getHash(), store.findByIndex(3).block(TIMEOUT).getHash());
+        assertEquals(hashes(List.of(chain.get(2), replacement)),
+                hashes(store.findRange(2, 10).collectList().block(TIMEOUT)));
+        assertEquals(List.of(replacement.getHash()),
+                hashes(store.findByTransactionId(transactionId(3, 0)).collectList().block(TIMEOUT)));
+    }
+
+    List<Block> save(List<Block> blocks) {
+        return store.saveAll(blocks).collectList().block(TIMEOUT);
+    }
+
+    /**
+     *
+     * A chain of blocks, each with transactions whose ids are numbered
+     * through the chain, TRANSACTIONS per block
+     *
+     * @param count how many blocks including the genesis block
+     * @return the blocks in index order
+     */
+    static List<Block> chain(int count) {
+        List<Block> chain = new ArrayList<>();
+        String previous = "0";
+        for(int i = 0; i < count; i++) {
+            Block block = block(i, previous, 0);
+            chain.add(block);
+            previous = block.getHash();
+        }
+        return chain;
+    }
+
+    static Block block(long index, String previousHash, long nonce) {
+        List<Transaction> transactions = new ArrayList<>();
+        for(int i = 0; i < TRANSACTIONS; i++) {
+            transactions.add(Transaction.builder()
+                    .version(Transaction.CANONICAL_VERSION)
+                    .transactionId(transactionId(index, i))
+                    .data(Transaction.Data.builder()
+                            .input(Transaction.Input.builder()
+                                    .contract("contract " + index)
+                                    .address(CryptoUtil.hash("input " + i))
+                                    .build())
+                            .outputs(List.of())
+                            .build())
+                    .build()
+                    .withHash());
+        }
+        return Block.builder()
+                .version(Block.HEADER_VERSION)
+                .index(index)
+                .previousHash(previousHash)
+                .timestamp(1600000000 + index)
+                .nonce(nonce)
+                .transactions(transactions)
+                .build()
+                .withMerkleRoot()
+                .withHash();
+    }
+
+    static long transactionId(long index, int position) {
+        return index * TRANSACTIONS + position;
+    }
+
+    static List<String> hashes(List<Block> blocks) {
+        return blocks.stream()
+                .map(Block::getHash)
+                .collect(Collectors.toList());
+    }
+
+    static Block parse(ByteBuffer json) {
+        byte[] bytes = new byte[json.remaining()];
+        json.duplicate().get(bytes);
+        try {
+            return Block.mapper.readValue(bytes, Block.class);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private static Block copy(Block block) {
+        return parse(ByteBuffer.wrap(block.toJson()));
+    }
+}
@@ -0,0 +1,68 @@
+package net.kamradtfamily.blockchain.api;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class BlockTreeTest {
+
+    @Test
+    void blocksTooFarBelowTheTipArePruned() {
+        BlockTree tree = tree(100, 3);
+        List<Block> branch = branch(10);
+        branch.forEach(tree::add);
+        tree.prune(Block.builder().index(8).build());
+        for(Block b : branch) {
+            assertEquals(b.getIndex() >= 5, tree.contains(b.getHash()), "block " + b.getIndex());
+        }
+    }
+
+    @Test
+    void oldestBlocksAreDroppedWhenFull() {
+        BlockTree tree = tree(4, 100);
+        List<Block> branch = branch(6);
+        branch.forEach(tree::add);
+        assertEquals(4, tree.size());
+        assertFalse(tree.contains(branch.get(0).getHash()));
+        assertFalse(tree.contains(branch.get(1).getHash()));
+        assertTrue(tree.contains(branch.get(5).getHash()));
+    }
+
+    @Test
+    void branchFollowsTheTreeBackToTheChain() {
+        BlockTree tree = tree(100, 100);
+        List<Block> branch = branch(5);
+        branch.subList(2, 5).forEach(tree::add);
+        assertEquals(branch.subList(2, 5), tree.branch(branch.get(4)));
+    }
+
+    private static BlockTree tree(int capacity, int maximumDepth) {
+        return new BlockTree(new HeaderCache(new MemoryBlockStore(), 16), capacity, maximumDepth,
+                new SimpleMeterRegistry());
+    }
+
+    private static List<Block> branch(int length) {
+        List<Block> branch = new ArrayList<>();
+        String previous = Block.genesis.getHash();
+        for(int i = 1; i <= length; i++) {
+            Block b = Block.builder()
+                    .version(Block.HEADER_VERSION)
+                    .index(i)
+                    .previousHash(previous)
+                    .timestamp(i)
+                    .merkleRoot(MerkleTree.root(List.of()))
+                    .transactions(List.of())
+                    .build()
+                    .withHash();
+            branch.add(b);
+            previous = b.getHash();
+        }
+        return branch;
+    }
+}
@@ -0,0 +1,282 @@
+package net.kamradtfamily.blockchain.api;
+
+import org.junit.jupiter.api.Test;
+import reactor.core.publisher.Flux;
+import reactor.test.StepVerifier;
+
+import java.time.Duration;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class BlockchainTest {
+
+    @Test
+    void legacyChainStillValidates() {
+        TestChain chain = new TestChain();
+        for(int i = 0; i < 25; i++) {
+            chain.add(TestChain.legacy(chain.tip()));
+        }
+        assertEquals(25, chain.tip().getIndex());
+    }
+
+    @Test
+    void firstVersionedBlockAfterLegacyTipIsAccepted() {
+        TestChain chain = new TestChain();
+        for(int i = 0; i < 12; i++) {
+            chain.add(TestChain.legacy(chain.tip()));
+        }
+        Block mined = chain.mineNext(Block.HEADER_VERSION);
+        assertEquals(TestChain.BITS, mined.getDifficulty());
+        assertEquals(mined.getHash(), chain.add(mined).getHash());
+        for(int i = 0; i < 12; i++) {
+            chain.add(chain.mineNext(Block.HEADER_VERSION));
+        }
+        assertEquals(25, chain.tip().getIndex());
+    }
+
+    @Test
+    void legacyTemplateOnLegacyTipNeedsNoWork() {
+        TestChain chain = new TestChain();
+        chain.add(TestChain.legacy(chain.tip()));
+        Block template = chain.blockchain.getBlockTemplate(Block.LEGACY_VERSION).block(TestChain.TIMEOUT);
+        assertEquals(Block.LEGACY_VERSION, template.getVersion());
+        assertEquals(0, template.getDifficulty());
+        template.setNonce(0);
+        assertEquals(2, chain.add(template.withHash()).getIndex());
+    }
+
+    @Test
+    void legacyTemplateOnVersionedTipFollowsTheChain() {
+        TestChain chain = new TestChain();
+        chain.add(chain.mineNext(Block.CANONICAL_VERSION));
+        Block mined = chain.mineNext(Block.LEGACY_VERSION);
+        assertEquals(Block.CANONICAL_VERSION, mined.getVersion());
+        assertEquals(TestChain.BITS, mined.getDifficulty());
+        assertEquals(2, chain.add(mined).getIndex());
+    }
+
+    @Test
+    void legacyBlockAfterVersionedBlockIsRejected() {
+        TestChain chain = new TestChain();
+        chain.add(chain.mineNext(Block.HEADER_VERSION));
+        Throwable e = assertThrows(RuntimeException.class, () -> chain.add(TestChain.legacy(chain.tip())));
+        assertTrue(e.getCause() instanceof BlockAssertionError, e.toString());
+    }
+
+    @Test
+    void concurrentAddsStoreOneBlockPerIndex() throws InterruptedException {
+        TestChain chain = new TestChain();
+        race(List.of(chain), 8, 40);
+        assertChained(chain.store.all());
+    }
+
+    @Test
+    void processesSharingAStoreStoreOneBlockPerIndex() throws InterruptedException {
+        MemoryBlockStore store = new MemoryBlockStore();
+        TestChain first = new TestChain(store);
+        TestChain second = new TestChain(store);
+        race(List.of(first, second), 4, 40);
+        assertChained(store.all());
+    }
+
+    @Test
+    void blocksBuildingOnEachOtherInOneBatchAreAllAdded() throws Exception {
+        TestChain chain = new TestChain(new SlowStore(Duration.ofMillis(300)));
+        List<Block> mined = chain(3).store.all().subList(1, 4);
+        List<CompletableFuture<Block>> added = mined.stream()
+                .map(b -> chain.blockchain.addBlock(b, false).toFuture())
+                .collect(Collectors.toList());
+        for(int i = 0; i < added.size(); i++) {
+            assertEquals(mined.get(i), added.get(i).get(TestChain.TIMEOUT.toMillis(), TimeUnit.MILLISECONDS));
+        }
+        assertEquals(mined.get(2), chain.tip());
+        assertChained(chain.store.all());
+    }
+
+    @Test
+    void heavierBranchIsSwitchedTo() {
+        TestChain chain = chain(5);
+        List<Block> branch = branch(chain, 2, 4);
+        for(Block b : branch.subList(0, 3)) {
+            StepVerifier.create(chain.blockchain.checkReceivedBlock(b, false))
+                    .verifyComplete();
+        }
+        StepVerifier.create(chain.blockchain.checkReceivedBlock(branch.get(3), false))
+                .expectNext(branch.get(3))
+                .verifyComplete();
+        assertEquals(branch.get(3), chain.tip());
+        assertEquals(branch, chain.store.all().subList(3, 7));
+        assertChained(chain.store.all());
+    }
+
+    @Test
+    void equalWorkBranchKeepsTheChain() {
+        TestChain chain = chain(5);
+        List<Block> before = chain.store.all();
+        for(Block b : branch(chain, 2, 3)) {
+            StepVerifier.create(chain.blockchain.checkReceivedBlock(b, false))
+                    .verifyComplete();
+        }
+        assertEquals(before, chain.store.all());
+    }
+
+    @Test
+    void failedSwitchPutsTheOldBlocksBack() {
+        FailingStore store = new FailingStore();
+        TestChain chain = new TestChain(store);
+        for(int i = 0; i < 5; i++) {
+            chain.add(chain.mineNext(Block.HEADER_VERSION));
+        }
+        List<Block> before = chain.store.all();
+        List<Block> branch = branch(chain, 2, 4);
+        store.failOn = branch.get(1).getHash();
+        StepVerifier.create(Flux.fromIterable(branch)
+                        .concatMap(b -> chain.blockchain.checkReceivedBlock(b, false)))
+                .expectError(IllegalStateException.class)
+                .verify(TestChain.TIMEOUT);
+        assertEquals(before, chain.store.all());
+        assertEquals(before.get(5), chain.tip());
+        assertEquals(6, chain.add(chain.mineNext(Block.HEADER_VERSION)).getIndex());
+    }
+
+    @Test
+    void orphanedTransactionsGoBackToThePool() {
+        TestChain chain = chain(2);
+        Transaction transaction = Transaction.builder().transactionId(42).build().withHash();
+        chain.blockchain.addTransaction(transaction, false).block(TestChain.TIMEOUT);
+        Block mined = chain.add(chain.mineNext(Block.HEADER_VERSION));
+        assertEquals(List.of(transaction), mined.getTransactions());
+        assertFalse(chain.blockchain.getTransactionById(42).blockOptional(TestChain.TIMEOUT).isPresent());
+        for(Block b : branch(chain, 2, 2)) {
+            chain.blockchain.checkReceivedBlock(b, false).block(TestChain.TIMEOUT);
+        }
+        assertEquals(4, chain.tip().getIndex());
+        assertTrue(chain.store.all().stream().allMatch(b -> b.getTransactions().isEmpty()));
+        assertEquals(transaction, chain.blockchain.getTransactionById(42).block(TestChain.TIMEOUT));
+    }
+
+    @Test
+    void branchClaimingMoreDifficultyIsRejected() {
+        TestChain chain = chain(3);
+        Block template = chain.blockchain.getBlockTemplate(Block.HEADER_VERSION).block(TestChain.TIMEOUT);
+        Block parent = chain.store.all().get(2);
+        template.setIndex(3);
+        template.setPreviousHash(parent.getHash());
+        template.setTimestamp(template.getTimestamp() + 3600);
+        template.setDifficulty(TestChain.BITS + 4);
+        Block inflated = TestChain.mine(template);
+        assertTrue(inflated.work().compareTo(chain.tip().work()) > 0);
+        StepVerifier.create(chain.blockchain.checkReceivedBlock(inflated, false))
+                .expectErrorMatches(e -> e instanceof BlockAssertionError
+                        && e.getMessage().startsWith("Invalid difficulty"))
+                .verify(TestChain.TIMEOUT);
+        assertEquals(3, chain.tip().getIndex());
+        assertFalse(chain.store.all().contains(inflated));
+    }
+
+    private static TestChain chain(int length) {
+        TestChain chain = new TestChain();
+        for(int i = 0; i < length; i++) {
+            chain.add(chain.mineNext(Block.HEADER_VERSION));
+        }
+        return chain;
+    }
+
+    /**
+     *
+     * Mine a side branch off a chain, stamped an hour later than the chain
+     * so none of its blocks can come out the same as the chain's
+     *
+     * @param chain the chain to branch off
+     * @param fork the index of the last block the branch shares
+     * @param length the number of blocks in the branch
+     * @return the side blocks in index order
+     */
+    private static List<Block> branch(TestChain chain, int fork, int length) {
+        TestChain side = new TestChain();
+        chain.store.all().stream()
+                .filter(b -> b.getIndex() > 0 && b.getIndex() <= fork)
+                .forEach(side::add);
+        for(int i = 0; i < length; i++) {
+            Block template = side.blockchain.getBlockTemplate(Block.HEADER_VERSION).block(TestChain.TIMEOUT);
+            template.setTimestamp(template.getTimestamp() + 3600);
+            side.add(TestChain.mine(template));
+        }
+        return side.store.all().subList(fork + 1, fork + 1 + length);
+    }
+
+    /**
+     *
+     * Mine and add blocks from several threads on each chain until the
+     * store holds count blocks past the genesis block. Most candidates
+     * lose the race for their index and are rejected, which is expected.
+     */
+    private static void race(List<TestChain> chains, int threads, int count) throws InterruptedException {
+        ExecutorService executor = Executors.newFixedThreadPool(chains.size() * threads);
+        for(TestChain chain : chains) {
+            for(int i = 0; i < threads; i++) {
+                executor.execute(() -> {
+                    while(chain.store.all().size() <= count) {
+                        try {
+                            chain.add(chain.mineNext(Block.HEADER_VERSION));
+                        } catch(RuntimeException e) {
+                            // another thread took the index
+                        }
+                    }
+                });
+            }
+        }
+        executor.shutdown();
+        assertTrue(executor.awaitTermination(60, TimeUnit.SECONDS), "blocks weren't added in time");
+    }
+
+    private static void assertChained(List<Block> blocks) {
+        for(int i = 0; i < blocks.size(); i++) {
+            assertEquals(i, blocks.get(i).getIndex());
+            if(i > 0) {
+                assertEquals(blocks.get(i - 1).getHash(), blocks.get(i).getPreviousHash());
+            }
+        }
+    }
+
+    /**
+     * A store that takes a while to save, so blocks queue up behind a write
+     */
+    private static class SlowStore extends MemoryBlockStore {
+        final Duration delay;
+
+        SlowStore(Duration delay) {
+            this.delay = delay;
+        }
+
+        @Override
+        public Flux<Block> saveAll(List<Block> toSave) {
+            return Flux.defer(() -> super.saveAll(toSave))
+                    .delaySubscription(delay);
+        }
+    }
+
+    /**
+     * A store that fails to save one block
+     */
+    private static class FailingStore extends MemoryBlockStore {
+        volatile String failOn;
+
+        @Override
+        public Flux<Block> saveAll(List<Block> toSave) {
+            if(toSave.stream().anyMatch(b -> b.getHash().equals(failOn))) {
+                return Flux.error(new IllegalStateException("disk full"));
+            }
+            return super.saveAll(toSave);
+        }
+    }
+}
@@ -0,0 +1,62 @@
+package net.kamradtfamily.blockchain.api;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.Test;
+import reactor.core.publisher.Flux;
+import reactor.test.StepVerifier;
+
+import java.time.Duration;
+import java.util.List;
+import java.util.stream.Collectors;
+import java.util.stream.LongStream;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class BroadcasterTest {
+    private static final Duration TIMEOUT = Duration.ofSeconds(10);
+
+    @Test
+    void emptyBatchIsNotSent() {
+        StubTopic topic = new StubTopic(0);
+        StepVerifier.create(broadcaster(topic).addedTransactions(List.of()))
+                .expectNext(List.of())
+                .verifyComplete();
+        assertEquals(0, topic.sent.size());
+    }
+
+    @Test
+    void transactionsAreSentTogether() {
+        StubTopic topic = new StubTopic(0);
+        Broadcaster broadcaster = broadcaster(topic);
+        List<Transaction> sent = Flux.fromIterable(transactions(0, 10))
+                .flatMap(broadcaster::addedTransaction)
+                .collectList()
+                .block(TIMEOUT);
+        assertEquals(10, sent.size());
+        assertTrue(topic.sent.size() < 10, topic.sent.size() + " messages");
+    }
+
+    @Test
+    void failedSendOnlyFailsItsOwnBatch() {
+        StubTopic topic = new StubTopic(1);
+        Broadcaster broadcaster = broadcaster(topic);
+        StepVerifier.create(broadcaster.addedTransaction(transactions(0, 1).get(0)))
+                .expectError(IllegalStateException.class)
+                .verify(TIMEOUT);
+        StepVerifier.create(broadcaster.addedTransaction(transactions(1, 1).get(0)))
+                .expectNextCount(1)
+                .verifyComplete();
+        assertEquals(1, topic.sent.size());
+    }
+
+    private static Broadcaster broadcaster(StubTopic topic) {
+        return new Broadcaster(topic, 5, 20, new SimpleMeterRegistry());
+    }
+
+    private static List<Transaction> transactions(long from, int count) {
+        return LongStream.range(from, from + count)
+                .mapToObj(id -> Transaction.builder().transactionId(id).build())
+                .collect(Collectors.toList());
+    }
+}
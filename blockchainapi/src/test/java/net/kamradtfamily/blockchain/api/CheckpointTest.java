@@ -0,0 +1,151 @@
+package net.kamradtfamily.blockchain.api;
+
+import org.junit.jupiter.api.Test;
+import org.springframework.boot.actuate.health.Status;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+import reactor.core.publisher.MonoProcessor;
+
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BooleanSupplier;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class CheckpointTest {
+    private final List<String> writes = new CopyOnWriteArrayList<>();
+    private final Map<String, Checkpoint> saved = new ConcurrentHashMap<>();
+    private final AtomicInteger failedDeletes = new AtomicInteger();
+    private volatile boolean failing;
+
+    @Test
+    void reconcileReadsTheBlocksAPageAtATime() {
+        MemoryBlockStore store = stored(10);
+        new TestChain(store, transactions(), checkpoints(), 3, true);
+        assertEquals(List.of("delete [1, 2]", "checkpoint 2",
+                "delete [3, 4, 5]", "checkpoint 5",
+                "delete [6, 7, 8]", "checkpoint 8",
+                "delete [9, 10]", "checkpoint 10"), writes);
+    }
+
+    @Test
+    void reconcileResumesAfterTheCheckpoint() {
+        MemoryBlockStore store = stored(10);
+        saved.put(Checkpoint.RECONCILED, checkpoint(store.all().get(6)));
+        new TestChain(store, transactions(), checkpoints(), 100, true);
+        assertEquals(List.of("delete [7, 8, 9, 10]", "checkpoint 10"), writes);
+    }
+
+    @Test
+    void checkpointOnAReplacedBlockStartsOver() {
+        MemoryBlockStore store = stored(4);
+        saved.put(Checkpoint.RECONCILED, Checkpoint.builder()
+                .id(Checkpoint.RECONCILED)
+                .index(3)
+                .hash(CryptoUtil.hash("a block since rolled back"))
+                .build());
+        new TestChain(store, transactions(), checkpoints(), 100, true);
+        assertEquals(List.of("delete [1, 2, 3, 4]", "checkpoint 4"), writes);
+    }
+
+    @Test
+    void readyOnceReconciled() {
+        MonoProcessor<Checkpoint> reconciled = MonoProcessor.create();
+        TestChain chain = new TestChain(stored(3),
+                transactions(),
+                Stubs.with(CheckpointRepository.class, Map.of(
+                        "findById", args -> reconciled,
+                        "save", args -> Mono.just(args[0]))),
+                100,
+                false);
+        BlockchainHealthIndicator health = new BlockchainHealthIndicator(chain.blockchain, chain.confirmed);
+        assertEquals(Status.DOWN, health.health().getStatus());
+        assertFalse(chain.blockchain.isReady());
+        reconciled.onComplete();
+        chain.awaitReady();
+        assertEquals(Status.UP, health.health().getStatus());
+        assertEquals(3L, health.health().getDetails().get("tip"));
+        assertEquals(List.of("delete [1, 2, 3]"), writes);
+    }
+
+    @Test
+    void failedDeleteHoldsTheCheckpoint() {
+        TestChain chain = new TestChain(new MemoryBlockStore(), transactions(), checkpoints());
+        waitFor(() -> writes.contains("checkpoint 0"));
+        failing = true;
+        chain.blockchain.addTransaction(Transaction.builder().transactionId(1).build().withHash(), false)
+                .block(TestChain.TIMEOUT);
+        chain.add(chain.mineNext(Block.HEADER_VERSION));
+        // the delete and the delete retried before the checkpoint, each with its retries
+        waitFor(() -> failedDeletes.get() >= 8);
+        failing = false;
+        chain.add(chain.mineNext(Block.HEADER_VERSION));
+        waitFor(() -> writes.contains("checkpoint 2"));
+        assertEquals(List.of("checkpoint 0", "delete [1]", "checkpoint 2"), writes);
+        assertEquals(2, saved.get(Checkpoint.RECONCILED).getIndex());
+    }
+
+    /**
+     *
+     * A store holding a chain with one loose transaction in each block, the
+     * transaction id the same as the block index
+     *
+     * @param length the number of blocks after the genesis block
+     * @return the store
+     */
+    private static MemoryBlockStore stored(int length) {
+        TestChain chain = new TestChain();
+        for(long id = 1; id <= length; id++) {
+            chain.blockchain.addTransaction(Transaction.builder().transactionId(id).build().withHash(), false)
+                    .block(TestChain.TIMEOUT);
+            chain.add(chain.mineNext(Block.HEADER_VERSION));
+        }
+        return chain.store;
+    }
+
+    private static Checkpoint checkpoint(Block block) {
+        return Checkpoint.builder()
+                .id(Checkpoint.RECONCILED)
+                .index(block.getIndex())
+                .hash(block.getHash())
+                .build();
+    }
+
+    private TransactionRepository transactions() {
+        return Stubs.with(TransactionRepository.class, Map.of(
+                "saveAll", args -> Flux.fromIterable((Iterable<?>) args[0]),
+                "deleteByTransactionIdIn", args -> Mono.defer(() -> {
+                    if(failing) {
+                        failedDeletes.incrementAndGet();
+                        return Mono.error(new IllegalStateException("database down"));
+                    }
+                    writes.add("delete " + args[0]);
+                    return Mono.just((long) ((Collection<?>) args[0]).size());
+                })));
+    }
+
+    private CheckpointRepository checkpoints() {
+        return Stubs.with(CheckpointRepository.class, Map.of(
+                "findById", args -> Mono.justOrEmpty(saved.get((String) args[0])),
+                "save", args -> Mono.fromSupplier(() -> {
+                    Checkpoint checkpoint = (Checkpoint) args[0];
+                    writes.add("checkpoint " + checkpoint.getIndex());
+                    saved.put(checkpoint.getId(), checkpoint);
+                    return checkpoint;
+                })));
+    }
+
+    private static void waitFor(BooleanSupplier condition) {
+        long deadline = System.nanoTime() + TestChain.TIMEOUT.toNanos();
+        while(!condition.getAsBoolean()) {
+            assertTrue(System.nanoTime() < deadline, "timed out");
+            Thread.onSpinWait();
+        }
+    }
+}
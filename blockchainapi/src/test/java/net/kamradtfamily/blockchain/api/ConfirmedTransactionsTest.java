@@ -0,0 +1,68 @@
+package net.kamradtfamily.blockchain.api;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import reactor.core.publisher.Flux;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class ConfirmedTransactionsTest {
+    private ConfirmedTransactions confirmed;
+
+    @BeforeEach
+    void setUp() {
+        confirmed = new ConfirmedTransactions(1000, 0.01, new SimpleMeterRegistry());
+    }
+
+    @Test
+    void unknownTransactionSkipsTheStoreOnceReady() {
+        confirmed.markReady();
+        AtomicBoolean queried = new AtomicBoolean();
+        assertEquals(0L, confirmed.lookup(1L, Flux.defer(() -> {
+            queried.set(true);
+            return Flux.just(Block.genesis);
+        })).count().block());
+        assertFalse(queried.get());
+    }
+
+    @Test
+    void storeDecidesWhileBehind() {
+        confirmed.markReady();
+        confirmed.fellBehind();
+        assertEquals(1L, confirmed.lookup(1L, Flux.just(Block.genesis)).count().block());
+        confirmed.caughtUp();
+        assertEquals(0L, confirmed.lookup(1L, Flux.just(Block.genesis)).count().block());
+    }
+
+    @Test
+    void announcedBlockIsFoundAfterCatchingUp() {
+        confirmed.markReady();
+        confirmed.add(blockWith(7L));
+        assertEquals(Collections.singleton(7L), confirmed.lookupAll(Arrays.asList(7L, 8L),
+                ids -> Flux.just(blockWith(7L))).block());
+    }
+
+    @Test
+    void everyIdGoesToTheStoreBeforeReady() {
+        assertTrue(confirmed.lookupAll(Arrays.asList(7L, 8L), ids -> {
+            assertEquals(2, ids.size());
+            return Flux.empty();
+        }).block().isEmpty());
+    }
+
+    private static Block blockWith(long transactionId) {
+        return Block.builder()
+                .index(1)
+                .transactions(Collections.singletonList(Transaction.builder()
+                        .transactionId(transactionId)
+                        .build()))
+                .build();
+    }
+}
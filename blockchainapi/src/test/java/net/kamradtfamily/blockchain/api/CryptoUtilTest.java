@@ -0,0 +1,105 @@
+package net.kamradtfamily.blockchain.api;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.condition.EnabledIfSystemProperty;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+class CryptoUtilTest {
+    private static final String ABC_SHA256 = "ba7816bf8f01cfea414140de5dae2223b00361a396177a9cb410ff61f20015ad";
+
+    @Test
+    void hashMatchesKnownDigest() {
+        assertEquals(ABC_SHA256, CryptoUtil.hash("abc"));
+        assertEquals("e3b0c44298fc1c149afbf4c8996fb92427ae41e4649b934ca495991b7852b855", CryptoUtil.hash(""));
+    }
+
+    @Test
+    void hasherIsResetBetweenUses() {
+        CryptoUtil.hasher().update("left over".getBytes(StandardCharsets.UTF_8));
+        assertEquals(ABC_SHA256, CryptoUtil.hash("abc"));
+    }
+
+    @Test
+    void segmentsHashAsIfConcatenated() {
+        byte[] whole = CryptoUtil.digest("abc".getBytes(StandardCharsets.UTF_8));
+        assertArrayEquals(whole, CryptoUtil.digest("a".getBytes(StandardCharsets.UTF_8),
+                "bc".getBytes(StandardCharsets.UTF_8)));
+        assertArrayEquals(whole, CryptoUtil.digest(ByteBuffer.wrap("ab".getBytes(StandardCharsets.UTF_8)),
+                ByteBuffer.wrap("c".getBytes(StandardCharsets.UTF_8))));
+        assertEquals(ABC_SHA256, CryptoUtil.toHex(whole));
+    }
+
+    @Test
+    void recordingHasherCopiesTheEncoding() {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        String hex = CryptoUtil.recordingHasher(out)
+                .update(1)
+                .update(2L)
+                .update("x")
+                .hex();
+        assertEquals(4 + 8 + 4 + 1, out.size());
+        assertEquals(CryptoUtil.toHex(CryptoUtil.digest(out.toByteArray())), hex);
+    }
+
+    @Test
+    void counterCountsWhatWouldBeEncoded() {
+        for(String value : new String[] {"", "x", "\u00e9t\u00e9", "\u20ac", "\ud83d\ude00", "a\ud83dz", "\ude00"}) {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            CryptoUtil.recordingHasher(out).update(1).update(2L).update(value).update((String) null);
+            assertEquals(out.size(), CryptoUtil.counter().update(1).update(2L).update(value).update((String) null).length(), value);
+        }
+        assertEquals(3, CryptoUtil.counter().update(ByteBuffer.wrap(new byte[3])).length());
+        assertThrows(IllegalStateException.class, () -> CryptoUtil.counter().digest());
+    }
+
+    @Test
+    void leadingZeroBitsOfDigestAndHex() {
+        byte[] hash = new byte[CryptoUtil.HASH_LENGTH];
+        hash[1] = 0x10;
+        assertEquals(11, CryptoUtil.leadingZeroBits(hash));
+        assertEquals(11, CryptoUtil.leadingZeroBits(CryptoUtil.toHex(hash)));
+        assertEquals(CryptoUtil.HASH_LENGTH * 8, CryptoUtil.leadingZeroBits(new byte[CryptoUtil.HASH_LENGTH]));
+    }
+
+    @Test
+    @EnabledIfSystemProperty(named = Benchmark.ENABLED, matches = "true")
+    void benchmarkHash() {
+        String block = "12345" + CryptoUtil.hash("previous") + "1600000000"
+                + "[{\"transactionId\":1,\"data\":{\"input\":{\"contract\":\"c\",\"address\":\"a\"}}}]" + "987654";
+        assertEquals(digestPerCall(block), CryptoUtil.hash(block));
+        Benchmark.compare("digest per call, hex by string", () -> digestPerCall(block),
+                "per thread hasher, hex by table", () -> CryptoUtil.hash(block));
+    }
+
+    /**
+     * How hash(String) worked before: a digest looked up on every call and
+     * the hex built a byte at a time through Integer.toHexString
+     */
+    private static String digestPerCall(String s) {
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new RuntimeException("cypto error", e);
+        }
+        byte[] hash = digest.digest(s.getBytes(StandardCharsets.UTF_8));
+        StringBuilder hexString = new StringBuilder(2 * hash.length);
+        for (byte b : hash) {
+            String hex = Integer.toHexString(0xff & b);
+            if(hex.length() == 1) {
+                hexString.append('0');
+            }
+            hexString.append(hex);
+        }
+        return hexString.toString();
+    }
+}
@@ -0,0 +1,82 @@
+package net.kamradtfamily.blockchain.api;
+
+import org.junit.jupiter.api.Test;
+import reactor.core.publisher.Mono;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.function.LongFunction;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+class DifficultyTest {
+    private static final long BITS = 16;
+    private static final long INTERVAL = 10;
+    private static final long WINDOW = 10;
+    private final Difficulty difficulty = new Difficulty(null, BITS, 1, INTERVAL, WINDOW, 2);
+    private final Map<Long, Block> chain = new HashMap<>();
+    private final LongFunction<Mono<Block>> ancestors = index -> Mono.justOrEmpty(chain.get(index));
+
+    @Test
+    void legacyBlocksRequireNoWork() {
+        legacyUpTo(25);
+        assertEquals(0L, required(26, Block.LEGACY_VERSION));
+        assertEquals(0L, required(20, Block.LEGACY_VERSION));
+    }
+
+    @Test
+    void seriesStartsAtFirstVersionedBlock() {
+        legacyUpTo(25);
+        assertEquals(BITS, required(26, Block.HEADER_VERSION));
+    }
+
+    @Test
+    void windowReachingBackToLegacyBlocksIsNotRetargeted() {
+        legacyUpTo(25);
+        // mined instantly, a full window of these would move the difficulty up
+        minedFrom(26, 29, BITS, 0);
+        assertEquals(BITS, required(30, Block.HEADER_VERSION));
+    }
+
+    @Test
+    void windowOfMinedBlocksIsRetargeted() {
+        legacyUpTo(5);
+        minedFrom(6, 29, BITS, 1);
+        // a window of blocks one second apart against ten, at least eight times too fast
+        assertEquals(BITS + 2, required(30, Block.HEADER_VERSION));
+    }
+
+    @Test
+    void difficultyCarriesOverBetweenRetargets() {
+        legacyUpTo(5);
+        minedFrom(6, 12, BITS + 1, INTERVAL);
+        assertEquals(BITS + 1, required(13, Block.CANONICAL_VERSION));
+    }
+
+    private long required(long index, int version) {
+        return difficulty.getDifficulty(index, version, ancestors).block();
+    }
+
+    private void legacyUpTo(long last) {
+        for(long i = 0; i <= last; i++) {
+            chain.put(i, Block.builder()
+                    .version(Block.LEGACY_VERSION)
+                    .index(i)
+                    .timestamp(i * INTERVAL)
+                    .build());
+        }
+    }
+
+    private void minedFrom(long first, long last, long bits, long spacing) {
+        long timestamp = chain.get(first - 1).getTimestamp();
+        for(long i = first; i <= last; i++) {
+            timestamp += spacing;
+            chain.put(i, Block.builder()
+                    .version(Block.HEADER_VERSION)
+                    .index(i)
+                    .difficulty(bits)
+                    .timestamp(timestamp)
+                    .build());
+        }
+    }
+}
@@ -0,0 +1,98 @@
+package net.kamradtfamily.blockchain.api;
+
+import org.springframework.dao.DuplicateKeyException;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.NavigableMap;
+import java.util.TreeMap;
+import java.util.stream.Collectors;
+
+/**
+ * A block store held in a map for tests, with the same unique index rules
+ * as the real stores
+ */
+public class MemoryBlockStore implements BlockStore {
+    private final NavigableMap<Long, Block> blocks = new TreeMap<>();
+
+    @Override
+    public synchronized Mono<Block> findByIndex(long index) {
+        return Mono.justOrEmpty(blocks.get(index));
+    }
+
+    @Override
+    public synchronized Mono<Block> findByHash(String hash) {
+        return Mono.justOrEmpty(blocks.values().stream()
+                .filter(b -> b.getHash().equals(hash))
+                .findFirst());
+    }
+
+    @Override
+    public synchronized Mono<Block> findLast() {
+        return blocks.isEmpty() ? Mono.empty() : Mono.just(blocks.lastEntry().getValue());
+    }
+
+    @Override
+    public Flux<Block> findByTransactionId(long transactionId) {
+        return findByTransactionIdIn(List.of(transactionId));
+    }
+
+    @Override
+    public synchronized Flux<Block> findByTransactionIdIn(Collection<Long> transactionIds) {
+        return Flux.fromIterable(blocks.values().stream()
+                .filter(b -> b.getTransactions() != null && b.getTransactions().stream()
+                        .anyMatch(t -> transactionIds.contains(t.getTransactionId())))
+                .collect(Collectors.toList()));
+    }
+
+    @Override
+    public synchronized Flux<Block> findRange(long fromIndex, long toIndex) {
+        return fromIndex > toIndex
+                ? Flux.empty()
+                : Flux.fromIterable(new ArrayList<>(blocks.subMap(fromIndex, true, toIndex, true).values()));
+    }
+
+    @Override
+    public Flux<Block> findHeaders(long fromIndex, long toIndex) {
+        return findRange(fromIndex, toIndex)
+                .map(Block::toHeader);
+    }
+
+    @Override
+    public synchronized Flux<Block> findAllTransactionIds() {
+        return Flux.fromIterable(new ArrayList<>(blocks.values()));
+    }
+
+    @Override
+    public Mono<Block> save(Block block) {
+        return saveAll(List.of(block)).next();
+    }
+
+    @Override
+    public synchronized Flux<Block> saveAll(List<Block> toSave) {
+        for(Block b : toSave) {
+            if(blocks.containsKey(b.getIndex())
+                    || blocks.values().stream().anyMatch(stored -> stored.getHash().equals(b.getHash()))) {
+                return Flux.error(new DuplicateKeyException("block " + b.getIndex() + " is already stored"));
+            }
+        }
+        toSave.forEach(b -> blocks.put(b.getIndex(), b));
+        return Flux.fromIterable(toSave);
+    }
+
+    @Override
+    public synchronized Mono<Void> delete(Block block) {
+        Block stored = blocks.get(block.getIndex());
+        if(stored != null && stored.getHash().equals(block.getHash())) {
+            blocks.remove(block.getIndex());
+        }
+        return Mono.empty();
+    }
+
+    public synchronized List<Block> all() {
+        return new ArrayList<>(blocks.values());
+    }
+}
@@ -0,0 +1,14 @@
+package net.kamradtfamily.blockchain.api;
+
+import org.junit.jupiter.api.BeforeEach;
+
+/**
+ * The block store the other tests run on has to behave like the real ones
+ */
+class MemoryBlockStoreTest extends BlockStoreTest {
+
+    @BeforeEach
+    void open() {
+        store = new MemoryBlockStore();
+    }
+}
@@ -0,0 +1,135 @@
+package net.kamradtfamily.blockchain.api;
+
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.stream.Collectors;
+import java.util.stream.LongStream;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class MempoolTest {
+    private final MeterRegistry registry = new SimpleMeterRegistry();
+
+    @Test
+    void oldestAreEvictedWhenFull() {
+        Mempool mempool = new Mempool(3, 3600, registry);
+        List<Transaction> evicted = new CopyOnWriteArrayList<>();
+        mempool.setEvictionListener(evicted::add);
+        List<Transaction> added = transactions(1, 5);
+        added.forEach(mempool::add);
+        assertEquals(3, mempool.size());
+        assertEquals(added.subList(0, 2), evicted);
+        assertEquals(added.subList(2, 5), mempool.getAll());
+        assertEquals(2, registry.get("blockchain.mempool.evicted").tag("reason", "capacity").counter().count());
+        mempool.destroy();
+    }
+
+    @Test
+    void oldTransactionsExpire() throws InterruptedException {
+        Mempool mempool = new Mempool(100, 0, registry);
+        List<Transaction> evicted = new CopyOnWriteArrayList<>();
+        mempool.setEvictionListener(evicted::add);
+        List<Transaction> added = transactions(1, 3);
+        added.forEach(mempool::add);
+        Thread.sleep(5);
+        mempool.expire();
+        assertEquals(0, mempool.size());
+        assertEquals(added, evicted);
+        assertEquals(3, registry.get("blockchain.mempool.evicted").tag("reason", "age").counter().count());
+        mempool.destroy();
+    }
+
+    @Test
+    void repeatedIdIsNotAdded() {
+        Mempool mempool = new Mempool(100, 3600, registry);
+        assertTrue(mempool.add(transaction(1)));
+        assertFalse(mempool.add(transaction(1)));
+        assertEquals(1, mempool.size());
+        mempool.destroy();
+    }
+
+    @Test
+    void selectTakesTheOldestThatFit() {
+        Mempool mempool = new Mempool(100, 3600, registry);
+        Transaction big = Transaction.builder()
+                .transactionId(2)
+                .data(Transaction.Data.builder()
+                        .input(Transaction.Input.builder()
+                                .address("x".repeat(1000))
+                                .build())
+                        .build())
+                .build()
+                .withHash();
+        List<Transaction> added = List.of(transaction(3), big, transaction(1), transaction(4));
+        added.forEach(mempool::add);
+        assertEquals(added, mempool.select(10, Long.MAX_VALUE));
+        assertEquals(added.subList(0, 2), mempool.select(2, Long.MAX_VALUE));
+        long room = transaction(3).encodedSize() * 3L;
+        assertEquals(List.of(added.get(0), added.get(2), added.get(3)), mempool.select(10, room));
+        mempool.destroy();
+    }
+
+    @Test
+    void bytesGaugeFollowsThePool() {
+        Mempool mempool = new Mempool(2, 3600, registry);
+        List<Transaction> added = transactions(1, 3);
+        added.forEach(mempool::add);
+        assertEquals(size(added.subList(1, 3)), bytes());
+        mempool.remove(2);
+        assertEquals(size(added.subList(2, 3)), bytes());
+        mempool.removeAll(added);
+        assertEquals(0, bytes());
+        mempool.destroy();
+    }
+
+    @Test
+    void removeWhileAddingLeavesNothingBehind() throws InterruptedException {
+        Mempool mempool = new Mempool(100000, 3600, registry);
+        int count = 20000;
+        Thread remover = new Thread(() -> {
+            for(long id = 0; id < count; id++) {
+                while(mempool.remove(id) == null) {
+                    Thread.onSpinWait();
+                }
+            }
+        });
+        remover.start();
+        for(long id = 0; id < count; id++) {
+            mempool.add(transaction(id));
+        }
+        remover.join(10000);
+        assertFalse(remover.isAlive());
+        assertEquals(0, mempool.size());
+        assertEquals(List.of(), mempool.getAll());
+        assertEquals(List.of(), mempool.select(10, Long.MAX_VALUE));
+        assertEquals(0, bytes());
+        assertNull(mempool.get(0));
+        mempool.destroy();
+    }
+
+    private double bytes() {
+        return registry.get("blockchain.mempool.bytes").gauge().value();
+    }
+
+    private static long size(List<Transaction> transactions) {
+        return transactions.stream().mapToLong(Transaction::encodedSize).sum();
+    }
+
+    private static Transaction transaction(long id) {
+        return Transaction.builder().transactionId(id).build().withHash();
+    }
+
+    private static List<Transaction> transactions(long from, int count) {
+        return LongStream.range(from, from + count)
+                .mapToObj(MempoolTest::transaction)
+                .collect(Collectors.toCollection(ArrayList::new));
+    }
+}
@@ -0,0 +1,43 @@
+package net.kamradtfamily.blockchain.api;
+
+import com.mongodb.reactivestreams.client.MongoClient;
+import com.mongodb.reactivestreams.client.MongoClients;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.condition.EnabledIfSystemProperty;
+import org.springframework.data.mongodb.core.ReactiveMongoTemplate;
+import org.springframework.data.mongodb.core.index.IndexDefinition;
+import org.springframework.data.mongodb.core.index.MongoPersistentEntityIndexResolver;
+import org.springframework.data.mongodb.core.mapping.MongoMappingContext;
+import org.springframework.data.mongodb.repository.support.ReactiveMongoRepositoryFactory;
+import reactor.core.publisher.Flux;
+
+/**
+ * The mongo store, against a database given with -Dblockchain.test.mongo=<uri>.
+ * The blocks collection is dropped and its indexes made from the annotations
+ * on Block before each test.
+ */
+@EnabledIfSystemProperty(named = MongoBlockStoreTest.URI, matches = ".+")
+class MongoBlockStoreTest extends BlockStoreTest {
+    static final String URI = "blockchain.test.mongo";
+    private MongoClient client;
+
+    @BeforeEach
+    void open() {
+        client = MongoClients.create(System.getProperty(URI));
+        ReactiveMongoTemplate template = new ReactiveMongoTemplate(client, "blockchain-test");
+        MongoMappingContext mappings = (MongoMappingContext) template.getConverter().getMappingContext();
+        Iterable<? extends IndexDefinition> indexes = new MongoPersistentEntityIndexResolver(mappings)
+                .resolveIndexFor(Block.class);
+        template.dropCollection(Block.class)
+                .thenMany(Flux.fromIterable(indexes)
+                        .concatMap(index -> template.indexOps(Block.class).ensureIndex(index)))
+                .blockLast(TIMEOUT);
+        store = new MongoBlockStore(new ReactiveMongoRepositoryFactory(template).getRepository(BlockRepository.class));
+    }
+
+    @AfterEach
+    void close() {
+        client.close();
+    }
+}
@@ -0,0 +1,163 @@
+package net.kamradtfamily.blockchain.api;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * The segment store with segments small enough that a few blocks fill one,
+ * so reads and rollbacks cross from segment to segment
+ */
+class SegmentBlockStoreTest extends BlockStoreTest {
+    private static final long SEGMENT_SIZE = 4096;
+    private static final int INDEX_INTERVAL = 4;
+    @TempDir
+    Path directory;
+
+    @BeforeEach
+    void open() throws IOException {
+        store = open(directory);
+    }
+
+    @AfterEach
+    void close() throws IOException {
+        ((SegmentBlockStore) store).destroy();
+    }
+
+    @Test
+    void directoryCanOnlyBeOpenedOnce() {
+        assertThrows(IllegalStateException.class, () -> open(directory));
+    }
+
+    @Test
+    void fullSegmentsKeepTheirTransactionsOnDisk() throws IOException {
+        List<Block> chain = save(chain(30));
+        long segments = count(directory, ".segment");
+        assertTrue(segments > 2, "only " + segments + " segments");
+        assertEquals(segments - 1, count(directory, ".transactions"));
+        reopen();
+        assertEquals(segments - 1, count(directory, ".transactions"));
+        for(Block block : chain) {
+            for(Transaction t : block.getTransactions()) {
+                assertEquals(List.of(block.getHash()),
+                        hashes(store.findByTransactionId(t.getTransactionId()).collectList().block(TIMEOUT)));
+            }
+        }
+        assertEquals(30 * TRANSACTIONS, store.findAllTransactionIds()
+                .flatMapIterable(Block::getTransactions)
+                .count()
+                .block(TIMEOUT));
+    }
+
+    @Test
+    void rollbackIntoAFullSegmentReadsItsTransactionsBack() throws IOException {
+        List<Block> chain = save(chain(12));
+        long segments = count(directory, ".segment");
+        for(long index = 11; count(directory, ".segment") == segments; index--) {
+            store.delete(store.findByIndex(index).block(TIMEOUT)).block(TIMEOUT);
+        }
+        Block last = store.findLast().block(TIMEOUT);
+        assertEquals(count(directory, ".segment") - 1, count(directory, ".transactions"));
+        for(Block block : chain.subList(0, (int) last.getIndex() + 1)) {
+            assertEquals(1, store.findByTransactionId(transactionId(block.getIndex(), 0)).count().block(TIMEOUT));
+        }
+        store.delete(last).block(TIMEOUT);
+        assertEquals(0, store.findByTransactionId(transactionId(last.getIndex(), 0)).count().block(TIMEOUT));
+        List<Block> regrown = save(List.of(block(last.getIndex(), last.getPreviousHash(), 1)));
+        reopen();
+        assertEquals(regrown.get(0).getHash(), store.findLast().block(TIMEOUT).getHash());
+        assertEquals(List.of(regrown.get(0).getHash()),
+                hashes(store.findByTransactionId(transactionId(last.getIndex(), 0)).collectList().block(TIMEOUT)));
+        assertEquals(1, store.findByTransactionId(transactionId(0, 0)).count().block(TIMEOUT));
+    }
+
+    @Test
+    void slicesOfRolledBackBlocksStayIntact() throws IOException {
+        List<Block> chain = save(chain(12));
+        List<ByteBuffer> slices = store.findEncodedRange(0, 11).collectList().block(TIMEOUT);
+        long segments = count(directory, ".segment");
+        long index = 11;
+        for(; count(directory, ".segment") == segments; index--) {
+            store.delete(store.findByIndex(index).block(TIMEOUT)).block(TIMEOUT);
+        }
+        for(; index >= 8; index--) {
+            store.delete(store.findByIndex(index).block(TIMEOUT)).block(TIMEOUT);
+        }
+        Block last = store.findLast().block(TIMEOUT);
+        List<Block> branch = new ArrayList<>();
+        String previous = last.getHash();
+        for(long i = last.getIndex() + 1; i < 12; i++) {
+            Block block = block(i, previous, 1);
+            branch.add(block);
+            previous = block.getHash();
+        }
+        save(branch);
+        assertEquals(hashes(chain), hashes(slices.stream()
+                .map(BlockStoreTest::parse)
+                .collect(Collectors.toList())));
+        reopen();
+        List<Block> expected = new ArrayList<>(chain.subList(0, (int) last.getIndex() + 1));
+        expected.addAll(branch);
+        assertEquals(hashes(expected), hashes(store.findRange(0, 20).collectList().block(TIMEOUT)));
+        assertEquals(hashes(expected), hashes(store.findEncodedRange(0, 20)
+                .map(BlockStoreTest::parse)
+                .collectList()
+                .block(TIMEOUT)));
+        save(List.of(block(12, previous, 0)));
+        reopen();
+        assertEquals(12, store.findLast().block(TIMEOUT).getIndex());
+    }
+
+    @Test
+    void rollingBackTheWholeChainStartsAgainFromAnEmptySegment() throws IOException {
+        List<Block> chain = save(chain(12));
+        List<ByteBuffer> slices = store.findEncodedRange(0, 11).collectList().block(TIMEOUT);
+        for(long index = 11; index >= 0; index--) {
+            store.delete(store.findByIndex(index).block(TIMEOUT)).block(TIMEOUT);
+        }
+        assertEquals(0, count(directory, ".segment"));
+        List<Block> replacement = new ArrayList<>();
+        String previous = "0";
+        for(long i = 0; i < 3; i++) {
+            Block block = block(i, previous, 1);
+            replacement.add(block);
+            previous = block.getHash();
+        }
+        save(replacement);
+        assertEquals(hashes(chain), hashes(slices.stream()
+                .map(BlockStoreTest::parse)
+                .collect(Collectors.toList())));
+        assertEquals(hashes(replacement), hashes(store.findRange(0, 20).collectList().block(TIMEOUT)));
+        reopen();
+        assertEquals(hashes(replacement), hashes(store.findRange(0, 20).collectList().block(TIMEOUT)));
+    }
+
+    private void reopen() throws IOException {
+        close();
+        open();
+    }
+
+    private static SegmentBlockStore open(Path directory) throws IOException {
+        return new SegmentBlockStore(directory.toString(), SEGMENT_SIZE, INDEX_INTERVAL, false);
+    }
+
+    private static long count(Path directory, String suffix) throws IOException {
+        try (Stream<Path> files = Files.list(directory)) {
+            return files.filter(p -> p.getFileName().toString().endsWith(suffix)).count();
+        }
+    }
+}
@@ -0,0 +1,217 @@
+package net.kamradtfamily.blockchain.api;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.bson.Document;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.condition.EnabledIfSystemProperty;
+import org.springframework.data.mongodb.core.ReactiveMongoOperations;
+import org.springframework.data.mongodb.core.query.Query;
+import reactor.core.publisher.Mono;
+import reactor.test.StepVerifier;
+
+import java.lang.reflect.Proxy;
+import java.security.GeneralSecurityException;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.Signature;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Collectors;
+import java.util.stream.LongStream;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+class SignatureVerifierTest {
+    private static final Duration TIMEOUT = Duration.ofSeconds(10);
+    private static KeyPair dsa;
+    private static KeyPair ec;
+    private final Map<String, String> users = new ConcurrentHashMap<>();
+    private final AtomicInteger lookups = new AtomicInteger();
+    private final List<SignatureVerifier> verifiers = new ArrayList<>();
+
+    @BeforeAll
+    static void generateKeys() throws GeneralSecurityException {
+        KeyPairGenerator generator = KeyPairGenerator.getInstance("DSA");
+        generator.initialize(1024);
+        dsa = generator.generateKeyPair();
+        generator = KeyPairGenerator.getInstance("EC");
+        generator.initialize(256);
+        ec = generator.generateKeyPair();
+    }
+
+    @AfterEach
+    void dispose() {
+        verifiers.forEach(SignatureVerifier::destroy);
+    }
+
+    @Test
+    void signedTransactionsVerify() {
+        SignatureVerifier verifier = verifier(false, 600, 1000);
+        user("dsa", dsa);
+        user("ec", ec);
+        StepVerifier.create(verifier.verify(signed(dsa, "SHA1withDSA", "dsa", 1)))
+                .expectNextCount(1)
+                .verifyComplete();
+        StepVerifier.create(verifier.verify(signed(ec, "SHA256withECDSA", "ec", 2)))
+                .expectNextCount(1)
+                .verifyComplete();
+    }
+
+    @Test
+    void changedTransactionIsRejected() {
+        SignatureVerifier verifier = verifier(false, 600, 1000);
+        user("dsa", dsa);
+        Transaction transaction = signed(dsa, "SHA1withDSA", "dsa", 1);
+        transaction.getData().getInput().setContract("something else");
+        StepVerifier.create(verifier.verify(transaction.withHash()))
+                .expectError(TransactionAssertionError.class)
+                .verify(TIMEOUT);
+    }
+
+    @Test
+    void canonicalTransactionsMustBeSignedByAKnownKey() {
+        SignatureVerifier verifier = verifier(false, 600, 1000);
+        Transaction unsigned = signed(dsa, "SHA1withDSA", "dsa", 1);
+        unsigned.getData().getInput().setSignature(null);
+        StepVerifier.create(verifier.verify(unsigned.withHash()))
+                .expectError(TransactionAssertionError.class)
+                .verify(TIMEOUT);
+        StepVerifier.create(verifier.verify(signed(dsa, "SHA1withDSA", "nobody", 2)))
+                .expectError(TransactionAssertionError.class)
+                .verify(TIMEOUT);
+    }
+
+    @Test
+    void legacyTransactionsAreLetThroughUnlessRequired() {
+        Transaction unsigned = signed(dsa, "SHA1withDSA", "nobody", 1);
+        unsigned.setVersion(Transaction.LEGACY_VERSION);
+        unsigned.getData().getInput().setSignature(null);
+        Transaction unknown = signed(dsa, "SHA1withDSA", "nobody", 2);
+        unknown.setVersion(Transaction.LEGACY_VERSION);
+        SignatureVerifier lenient = verifier(false, 600, 1000);
+        StepVerifier.create(lenient.verify(unsigned.withHash()))
+                .expectNextCount(1)
+                .verifyComplete();
+        StepVerifier.create(lenient.verify(unknown.withHash()))
+                .expectNextCount(1)
+                .verifyComplete();
+        SignatureVerifier strict = verifier(true, 600, 1000);
+        StepVerifier.create(strict.verify(unsigned))
+                .expectError(TransactionAssertionError.class)
+                .verify(TIMEOUT);
+        StepVerifier.create(strict.verify(unknown))
+                .expectError(TransactionAssertionError.class)
+                .verify(TIMEOUT);
+    }
+
+    @Test
+    void verifiedTransactionIsNotCheckedAgain() {
+        SignatureVerifier verifier = verifier(false, 0, 1000);
+        user("dsa", dsa);
+        Transaction transaction = signed(dsa, "SHA1withDSA", "dsa", 1);
+        verifier.verify(transaction).block(TIMEOUT);
+        verifier.verify(transaction).block(TIMEOUT);
+        assertEquals(1, lookups.get());
+    }
+
+    @Test
+    void keysAreLookedUpAgainOnceTooOld() {
+        SignerKeys cached = new SignerKeys(mongo(), "user", 10, 600);
+        SignerKeys expiring = new SignerKeys(mongo(), "user", 10, 0);
+        user("dsa", dsa);
+        cached.find("dsa").block(TIMEOUT);
+        cached.find("dsa").block(TIMEOUT);
+        assertEquals(1, lookups.get());
+        user("dsa", ec);
+        assertEquals(dsa.getPublic(), cached.find("dsa").block(TIMEOUT));
+        assertEquals(ec.getPublic(), expiring.find("dsa").block(TIMEOUT));
+        cached.invalidate("dsa");
+        assertEquals(ec.getPublic(), cached.find("dsa").block(TIMEOUT));
+    }
+
+    @Test
+    @EnabledIfSystemProperty(named = Benchmark.ENABLED, matches = "true")
+    void benchmarkVerify() {
+        user("dsa", dsa);
+        user("ec", ec);
+        SignatureVerifier uncached = verifier(false, 600, 0);
+        Transaction byDsa = signed(dsa, "SHA1withDSA", "dsa", 1);
+        Transaction byEc = signed(ec, "SHA256withECDSA", "ec", 2);
+        Benchmark.compare("DSA verifications on one core", () -> uncached.verify(byDsa).block(),
+                "ECDSA verifications on one core", () -> uncached.verify(byEc).block());
+        int threads = Runtime.getRuntime().availableProcessors();
+        SignatureVerifier parallel = new SignatureVerifier(new SignerKeys(mongo(), "user", 10, 600),
+                true, false, threads, 0, new SimpleMeterRegistry());
+        verifiers.add(parallel);
+        List<Transaction> batch = LongStream.range(0, 64)
+                .mapToObj(id -> signed(dsa, "SHA1withDSA", "dsa", id))
+                .collect(Collectors.toList());
+        Benchmark.rate("batches of 64 DSA verifications on " + threads + " threads",
+                () -> parallel.verifyAll(batch).thenReturn(batch).block());
+        SignatureVerifier cached = verifier(false, 600, 1000);
+        cached.verify(byDsa).block();
+        Benchmark.rate("cached verifications", () -> cached.verify(byDsa).block());
+    }
+
+    private SignatureVerifier verifier(boolean legacyRequired, long keyAge, int capacity) {
+        SignatureVerifier verifier = new SignatureVerifier(new SignerKeys(mongo(), "user", 10, keyAge),
+                true, legacyRequired, 1, capacity, new SimpleMeterRegistry());
+        verifiers.add(verifier);
+        return verifier;
+    }
+
+    private void user(String address, KeyPair pair) {
+        users.put(address, Base64.getEncoder().encodeToString(pair.getPublic().getEncoded()));
+    }
+
+    /**
+     * The user collection, answering findOne from the users map and counting lookups
+     */
+    private ReactiveMongoOperations mongo() {
+        ReactiveMongoOperations empty = Stubs.empty(ReactiveMongoOperations.class);
+        return (ReactiveMongoOperations) Proxy.newProxyInstance(ReactiveMongoOperations.class.getClassLoader(),
+                new Class<?>[] {ReactiveMongoOperations.class},
+                (proxy, method, args) -> {
+                    if(!method.getName().equals("findOne")) {
+                        return method.invoke(empty, args);
+                    }
+                    return Mono.defer(() -> {
+                        lookups.incrementAndGet();
+                        String address = ((Query) args[0]).getQueryObject().getString("address");
+                        return Mono.justOrEmpty(users.get(address))
+                                .map(key -> new Document("address", address).append("publicKey", key));
+                    });
+                });
+    }
+
+    private static Transaction signed(KeyPair pair, String algorithm, String address, long id) {
+        Transaction.Input input = Transaction.Input.builder()
+                .contract("contract " + id)
+                .address(address)
+                .build();
+        try {
+            Signature signature = Signature.getInstance(algorithm);
+            signature.initSign(pair.getPrivate());
+            signature.update(input.signedContent());
+            input.setSignature(Base64.getEncoder().encodeToString(signature.sign()));
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException(e);
+        }
+        return Transaction.builder()
+                .version(Transaction.CANONICAL_VERSION)
+                .transactionId(id)
+                .data(Transaction.Data.builder()
+                        .input(input)
+                        .outputs(List.of())
+                        .build())
+                .build()
+                .withHash();
+    }
+}
@@ -0,0 +1,56 @@
+package net.kamradtfamily.blockchain.api;
+
+import org.apache.kafka.clients.producer.ProducerConfig;
+import org.apache.kafka.clients.producer.RecordMetadata;
+import org.apache.kafka.common.serialization.StringSerializer;
+import org.springframework.kafka.core.reactive.ReactiveKafkaProducerTemplate;
+import org.springframework.kafka.support.serializer.JsonSerializer;
+import reactor.core.publisher.Mono;
+import reactor.kafka.sender.SenderOptions;
+import reactor.kafka.sender.SenderResult;
+
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A topic that keeps what is sent to it instead of sending it, and throws
+ * instead of sending for the first few sends
+ */
+public class StubTopic extends ReactiveKafkaProducerTemplate<String, Message> {
+    public final List<Message> sent = new CopyOnWriteArrayList<>();
+    final AtomicInteger failures;
+
+    public StubTopic(int failures) {
+        super(SenderOptions.create(Map.of(
+                ProducerConfig.BOOTSTRAP_SERVERS_CONFIG, "localhost:9",
+                ProducerConfig.KEY_SERIALIZER_CLASS_CONFIG, StringSerializer.class,
+                ProducerConfig.VALUE_SERIALIZER_CLASS_CONFIG, JsonSerializer.class)));
+        this.failures = new AtomicInteger(failures);
+    }
+
+    @Override
+    public Mono<SenderResult<Void>> send(String topic, String key, Message value) {
+        if(failures.getAndDecrement() > 0) {
+            throw new IllegalStateException("not sent");
+        }
+        sent.add(value);
+        return Mono.just(new SenderResult<Void>() {
+            @Override
+            public RecordMetadata recordMetadata() {
+                return null;
+            }
+
+            @Override
+            public Exception exception() {
+                return null;
+            }
+
+            @Override
+            public Void correlationMetadata() {
+                return null;
+            }
+        });
+    }
+}
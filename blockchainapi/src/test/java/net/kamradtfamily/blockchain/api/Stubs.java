@@ -0,0 +1,63 @@
+package net.kamradtfamily.blockchain.api;
+
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+
+import java.lang.reflect.Proxy;
+import java.util.Map;
+import java.util.function.Function;
+
+/**
+ * Stand ins for the database interfaces in tests. Every query finds nothing
+ * and every write succeeds without doing anything.
+ */
+public final class Stubs {
+    private Stubs() {
+    }
+
+    /**
+     *
+     * An implementation of an interface whose reactive methods are all empty
+     *
+     * @param type the interface
+     * @return the stub
+     */
+    public static <T> T empty(Class<T> type) {
+        return with(type, Map.of());
+    }
+
+    /**
+     *
+     * An implementation of an interface with some methods answered by the
+     * test, by name, and the other reactive methods all empty
+     *
+     * @param type the interface
+     * @param methods what to do for each named method, given its arguments
+     * @return the stub
+     */
+    public static <T> T with(Class<T> type, Map<String, Function<Object[], Object>> methods) {
+        return type.cast(Proxy.newProxyInstance(type.getClassLoader(), new Class<?>[] {type},
+                (proxy, method, args) -> {
+                    if(method.getDeclaringClass() == Object.class) {
+                        switch(method.getName()) {
+                            case "equals":
+                                return proxy == args[0];
+                            case "hashCode":
+                                return System.identityHashCode(proxy);
+                            default:
+                                return "empty " + type.getSimpleName();
+                        }
+                    }
+                    if(methods.containsKey(method.getName())) {
+                        return methods.get(method.getName()).apply(args);
+                    }
+                    if(Mono.class.isAssignableFrom(method.getReturnType())) {
+                        return Mono.empty();
+                    }
+                    if(Flux.class.isAssignableFrom(method.getReturnType())) {
+                        return Flux.empty();
+                    }
+                    throw new UnsupportedOperationException(method.getName());
+                }));
+    }
+}
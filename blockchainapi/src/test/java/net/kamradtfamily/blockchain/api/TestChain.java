@@ -0,0 +1,135 @@
+package net.kamradtfamily.blockchain.api;
+
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.springframework.data.mongodb.core.ReactiveMongoOperations;
+
+import java.time.Duration;
+import java.util.Collections;
+
+/**
+ * A Blockchain wired up for tests over a MemoryBlockStore, with the loose
+ * transaction and checkpoint collections stubbed out unless a test brings
+ * its own, and announcements kept on a stub topic.
+ * Blocks are mined at a few bits of difficulty so tests can mine them inline.
+ */
+public class TestChain {
+    public static final long BITS = 4;
+    public static final Duration TIMEOUT = Duration.ofSeconds(10);
+    public final MemoryBlockStore store;
+    public final StubTopic topic = new StubTopic(0);
+    public final Broadcaster broadcaster;
+    public final ConfirmedTransactions confirmed;
+    public final Blockchain blockchain;
+
+    public TestChain() {
+        this(new MemoryBlockStore());
+    }
+
+    public TestChain(MemoryBlockStore store) {
+        this(store, Stubs.empty(TransactionRepository.class), Stubs.empty(CheckpointRepository.class));
+    }
+
+    public TestChain(MemoryBlockStore store, TransactionRepository transactions, CheckpointRepository checkpoints) {
+        this(store, transactions, checkpoints, 100, true);
+    }
+
+    /**
+     *
+     * A chain over the given collections
+     *
+     * @param store the blocks
+     * @param transactions the loose transactions
+     * @param checkpoints the reconcile checkpoint
+     * @param pageSize the blocks read at a time
+     * @param awaitReady wait for the chain to start up before returning
+     */
+    public TestChain(MemoryBlockStore store,
+                     TransactionRepository transactions,
+                     CheckpointRepository checkpoints,
+                     int pageSize,
+                     boolean awaitReady) {
+        this.store = store;
+        MeterRegistry registry = new SimpleMeterRegistry();
+        this.broadcaster = new Broadcaster(topic, 100, 20, registry);
+        this.confirmed = new ConfirmedTransactions(1000, 0.01, registry);
+        HeaderCache headers = new HeaderCache(store, 1024);
+        this.blockchain = new Blockchain(store,
+                transactions,
+                checkpoints,
+                new Mempool(1000, 3600, registry),
+                confirmed,
+                new Difficulty(headers, BITS, 1, 10, 10, 2),
+                new BlockLimits(1000, 1048576),
+                new SignatureVerifier(new SignerKeys(Stubs.empty(ReactiveMongoOperations.class), "user", 10, 600),
+                        false, false, 1, 1000, registry),
+                headers,
+                new BlockTree(headers, 1024, 100, registry),
+                pageSize,
+                256,
+                32,
+                500,
+                200,
+                broadcaster);
+        if(awaitReady) {
+            awaitReady();
+        }
+    }
+
+    public void awaitReady() {
+        long deadline = System.nanoTime() + TIMEOUT.toNanos();
+        while(!blockchain.isReady()) {
+            if(System.nanoTime() > deadline) {
+                throw new IllegalStateException("blockchain didn't start");
+            }
+            Thread.onSpinWait();
+        }
+    }
+
+    /**
+     *
+     * Find a nonce for a block template the slow way
+     *
+     * @param template the block with everything but the nonce and hash
+     * @return the block with its nonce and hash set
+     */
+    public static Block mine(Block template) {
+        for(long nonce = 0; ; nonce++) {
+            template.setNonce(nonce);
+            template.withHash();
+            if(template.calculateDifficulty() >= template.getDifficulty()) {
+                return template;
+            }
+        }
+    }
+
+    /**
+     *
+     * A block from before proof of work, hashed the legacy way with no difficulty
+     *
+     * @param previous the block it builds on
+     * @return the block
+     */
+    public static Block legacy(Block previous) {
+        return Block.builder()
+                .version(Block.LEGACY_VERSION)
+                .index(previous.getIndex() + 1)
+                .previousHash(previous.getHash())
+                .timestamp(previous.getTimestamp() + 10)
+                .transactions(Collections.emptyList())
+                .build()
+                .withHash();
+    }
+
+    public Block tip() {
+        return blockchain.getLastBlock().block(TIMEOUT);
+    }
+
+    public Block add(Block block) {
+        return blockchain.addBlock(block, false).block(TIMEOUT);
+    }
+
+    public Block mineNext(int version) {
+        return mine(blockchain.getBlockTemplate(version).block(TIMEOUT));
+    }
+}
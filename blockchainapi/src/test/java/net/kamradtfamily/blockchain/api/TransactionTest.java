@@ -0,0 +1,56 @@
+package net.kamradtfamily.blockchain.api;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.condition.EnabledIfSystemProperty;
+
+import java.io.ByteArrayOutputStream;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+class TransactionTest {
+
+    @Test
+    void encodedSizeIsTheLengthOfTheEncoding() {
+        for(Transaction transaction : List.of(transaction(), new Transaction(), Transaction.builder()
+                .data(Transaction.Data.builder().build())
+                .build())) {
+            assertEquals(recordedSize(transaction), transaction.encodedSize());
+        }
+    }
+
+    @Test
+    @EnabledIfSystemProperty(named = Benchmark.ENABLED, matches = "true")
+    void benchmarkEncodedSize() {
+        Transaction transaction = transaction();
+        Benchmark.compare("recorded and hashed", () -> recordedSize(transaction),
+                "counted", transaction::encodedSize);
+    }
+
+    private static Transaction transaction() {
+        return Transaction.builder()
+                .version(Transaction.CANONICAL_VERSION)
+                .transactionId(42)
+                .data(Transaction.Data.builder()
+                        .input(Transaction.Input.builder()
+                                .contract("contract é")
+                                .address(CryptoUtil.hash("input"))
+                                .signature(CryptoUtil.hash("signature"))
+                                .build())
+                        .outputs(List.of(Transaction.Output.builder()
+                                .contract("contract é")
+                                .address(CryptoUtil.hash("output"))
+                                .build()))
+                        .build())
+                .build();
+    }
+
+    /**
+     * How encodedSize worked before: the encoding hashed and copied into a stream
+     */
+    private static int recordedSize(Transaction transaction) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        transaction.encode(CryptoUtil.recordingHasher(out));
+        return out.size();
+    }
+}
@@ -1,10 +1,19 @@
 package net.kamradtfamily.blockchain.miner;
 
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
 import java.nio.charset.StandardCharsets;
+import java.security.DigestException;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
 
 public class CryptoUtil {
+    public static final int HASH_LENGTH = 32;
+    private static final char[] HEX_DIGITS = "0123456789abcdef".toCharArray();
+    private static final ThreadLocal<Hasher> hashers = ThreadLocal.withInitial(Hasher::new);
+    private static final ThreadLocal<Hasher> counters = ThreadLocal.withInitial(() -> new Hasher(null, false));
+
     /**
      * Create a hash from a string that consists of a hexadecimal number
      * in string form. Used throughout the blockchain ecosystem.
@@ -12,22 +21,290 @@ public class CryptoUtil {
      * @return the hash
      */
     public static String hash(String s) {
-        MessageDigest digest;
-        try {
-            digest = MessageDigest.getInstance("SHA-256");
-        } catch (NoSuchAlgorithmException e) {
-            throw new RuntimeException("cypto error", e);
-        }
-        byte[] hash = digest.digest(
-                s.getBytes(StandardCharsets.UTF_8));
-        StringBuilder hexString = new StringBuilder(2 * hash.length);
-        for (int i = 0; i < hash.length; i++) {
-            String hex = Integer.toHexString(0xff & hash[i]);
-            if(hex.length() == 1) {
-                hexString.append('0');
-            }
-            hexString.append(hex);
-        }
-        return hexString.toString();
+        return toHex(hasher()
+                .update(s.getBytes(StandardCharsets.UTF_8))
+                .digest());
+    }
+
+    /**
+     * Create a raw SHA-256 digest from a number of byte segments, as
+     * if they were concatenated.
+     * @param segments the bytes to hash
+     * @return the 32 byte digest
+     */
+    public static byte[] digest(byte[]... segments) {
+        Hasher hasher = hasher();
+        for(byte[] segment : segments) {
+            hasher.update(segment);
+        }
+        return hasher.digest();
+    }
+
+    /**
+     * Create a raw SHA-256 digest from a number of buffers, as if they
+     * were concatenated. Each buffer is consumed from its position to its limit.
+     * @param segments the buffers to hash
+     * @return the 32 byte digest
+     */
+    public static byte[] digest(ByteBuffer... segments) {
+        Hasher hasher = hasher();
+        for(ByteBuffer segment : segments) {
+            hasher.update(segment);
+        }
+        return hasher.digest();
+    }
+
+    /**
+     * Get the hasher for the current thread, reset and ready for input.
+     * The hasher is reused by every call on the same thread so it must not
+     * be kept past the digest, handed to another thread, or held while
+     * another hash is computed on the same thread.
+     * @return the hasher
+     */
+    public static Hasher hasher() {
+        return hashers.get().reset();
+    }
+
+    /**
+     * Get a new hasher that also copies everything written to it into a
+     * stream, used to capture an encoding as bytes. Not shared with other callers.
+     * @param out the stream to copy to
+     * @return the hasher
+     */
+    public static Hasher recordingHasher(ByteArrayOutputStream out) {
+        return new Hasher(out);
+    }
+
+    /**
+     * Get the counter for the current thread, reset to zero. A counter takes
+     * the same updates as a hasher but only adds up how many bytes they would
+     * encode to, without hashing or copying them, so it has no digest. It is
+     * shared on the thread the same way as the hasher.
+     * @return the counter
+     */
+    public static Hasher counter() {
+        return counters.get().reset();
+    }
+
+    /**
+     * Count the leading zero bits of a digest, the measure of proof of work
+     * @param hash the raw digest
+     * @return the number of zero bits before the first one bit
+     */
+    public static int leadingZeroBits(byte[] hash) {
+        int bits = 0;
+        for(byte b : hash) {
+            if(b != 0) {
+                return bits + Integer.numberOfLeadingZeros(b & 0xff) - 24;
+            }
+            bits += 8;
+        }
+        return bits;
+    }
+
+    /**
+     * Count the leading zero bits of a hash in hexadecimal string form
+     * @param hash the hash
+     * @return the number of zero bits before the first one bit
+     */
+    public static int leadingZeroBits(String hash) {
+        int bits = 0;
+        for(int i = 0; i < hash.length(); i++) {
+            int nibble = Character.digit(hash.charAt(i), 16);
+            if(nibble != 0) {
+                return nibble < 0 ? bits : bits + Integer.numberOfLeadingZeros(nibble) - 28;
+            }
+            bits += 4;
+        }
+        return bits;
+    }
+
+    /**
+     * Convert bytes to a lower case hexadecimal string
+     * @param bytes the bytes to convert
+     * @return the hexadecimal string, two characters per byte
+     */
+    public static String toHex(byte[] bytes) {
+        char[] hex = new char[bytes.length * 2];
+        for(int i = 0; i < bytes.length; i++) {
+            hex[i * 2] = HEX_DIGITS[(bytes[i] >> 4) & 0xf];
+            hex[i * 2 + 1] = HEX_DIGITS[bytes[i] & 0xf];
+        }
+        return new String(hex);
+    }
+
+    /**
+     * An incremental SHA-256 hash. Segments are added with update and the
+     * digest is taken at the end, which resets the hasher. The typed updates
+     * are the canonical encoding used for hashing blocks and transactions:
+     * little-endian integers and length-prefixed UTF-8 strings. The number
+     * of bytes added since the last reset is kept as the length.
+     */
+    public static class Hasher {
+        private final MessageDigest digest;
+        private final ByteArrayOutputStream copy;
+        private final ByteBuffer scratch = ByteBuffer.allocate(Long.BYTES)
+                .order(ByteOrder.LITTLE_ENDIAN);
+        private long length;
+
+        Hasher() {
+            this(null);
+        }
+
+        Hasher(ByteArrayOutputStream copy) {
+            this(copy, true);
+        }
+
+        Hasher(ByteArrayOutputStream copy, boolean hashing) {
+            this.copy = copy;
+            if(!hashing) {
+                digest = null;
+                return;
+            }
+            try {
+                digest = MessageDigest.getInstance("SHA-256");
+            } catch (NoSuchAlgorithmException e) {
+                throw new RuntimeException("cypto error", e);
+            }
+        }
+
+        Hasher reset() {
+            if(digest != null) {
+                digest.reset();
+            }
+            length = 0;
+            return this;
+        }
+
+        /**
+         * The number of bytes added since the hasher was reset
+         * @return the length in bytes
+         */
+        public long length() {
+            return length;
+        }
+
+        public Hasher update(byte[] bytes) {
+            return update(bytes, 0, bytes.length);
+        }
+
+        public Hasher update(byte[] bytes, int offset, int length) {
+            if(digest != null) {
+                digest.update(bytes, offset, length);
+            }
+            if(copy != null) {
+                copy.write(bytes, offset, length);
+            }
+            this.length += length;
+            return this;
+        }
+
+        public Hasher update(ByteBuffer buffer) {
+            if(copy != null) {
+                ByteBuffer duplicate = buffer.duplicate();
+                while(duplicate.hasRemaining()) {
+                    copy.write(duplicate.get());
+                }
+            }
+            length += buffer.remaining();
+            if(digest != null) {
+                digest.update(buffer);
+            } else {
+                buffer.position(buffer.limit());
+            }
+            return this;
+        }
+
+        public Hasher update(long value) {
+            scratch.clear();
+            return update(scratch.putLong(value).array(), 0, Long.BYTES);
+        }
+
+        public Hasher update(int value) {
+            scratch.clear();
+            return update(scratch.putInt(value).array(), 0, Integer.BYTES);
+        }
+
+        /**
+         * Add a string as its UTF-8 byte length followed by the bytes. A null
+         * string has a length of -1 so it is distinct from an empty string.
+         * @param value the string to add
+         * @return this hasher
+         */
+        public Hasher update(String value) {
+            if(value == null) {
+                return update(-1);
+            }
+            if(digest == null && copy == null) {
+                int bytes = utf8Length(value);
+                update(bytes);
+                length += bytes;
+                return this;
+            }
+            byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+            update(bytes.length);
+            return update(bytes);
+        }
+
+        /**
+         * Finish the hash
+         * @return the 32 byte digest
+         */
+        public byte[] digest() {
+            return hashing().digest();
+        }
+
+        /**
+         * Finish the hash into a caller supplied buffer, avoiding an allocation
+         * @param out the buffer to write to, must have 32 bytes available at offset
+         * @param offset where to write the digest
+         */
+        public void digest(byte[] out, int offset) {
+            try {
+                hashing().digest(out, offset, HASH_LENGTH);
+            } catch (DigestException e) {
+                throw new RuntimeException("cypto error", e);
+            }
+        }
+
+        /**
+         * Finish the hash as a hexadecimal string
+         * @return the hash
+         */
+        public String hex() {
+            return toHex(digest());
+        }
+
+        private MessageDigest hashing() {
+            if(digest == null) {
+                throw new IllegalStateException("a counter has no digest");
+            }
+            return digest;
+        }
+
+        /**
+         * The length of a string encoded as UTF-8, the way getBytes encodes it,
+         * where a surrogate without its pair is replaced by a single '?'
+         */
+        private static int utf8Length(String value) {
+            int bytes = 0;
+            for(int i = 0; i < value.length(); i++) {
+                char c = value.charAt(i);
+                if(c < 0x80) {
+                    bytes += 1;
+                } else if(c < 0x800) {
+                    bytes += 2;
+                } else if(!Character.isSurrogate(c)) {
+                    bytes += 3;
+                } else if(Character.isHighSurrogate(c) && i + 1 < value.length()
+                        && Character.isLowSurrogate(value.charAt(i + 1))) {
+                    bytes += 4;
+                    i++;
+                } else {
+                    bytes += 1;
+                }
+            }
+            return bytes;
+        }
     }
 }
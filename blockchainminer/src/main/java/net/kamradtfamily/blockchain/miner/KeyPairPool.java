@@ -0,0 +1,117 @@
+package net.kamradtfamily.blockchain.miner;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+import reactor.core.Disposable;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+import reactor.core.scheduler.Scheduler;
+import reactor.core.scheduler.Schedulers;
+
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.NoSuchAlgorithmException;
+import java.security.SecureRandom;
+import java.time.Duration;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+/**
+ * Key pairs for new users. Generating a key pair takes long enough that it
+ * must not run on a web server thread, so it runs on a small pool of threads
+ * of its own. A number of key pairs can be generated ahead of time and kept
+ * ready, refilled in the background at a fixed rate, so a burst of new users
+ * is served from the pool without waiting for generation.
+ */
+@Slf4j
+@Component
+public class KeyPairPool implements DisposableBean {
+    private static final String METRIC = "blockchain.miner.keypair";
+    private final Scheduler generators;
+    private final BlockingQueue<KeyPair> ready;
+    private final Disposable refill;
+    private final Timer generation;
+    private final Counter fromPool;
+    private final Counter generated;
+
+    public KeyPairPool(@Value("${keypair.pool.size:32}") int size,
+                       @Value("${keypair.pool.refill-rate:10}") int refillRate,
+                       @Value("${keypair.threads:2}") int threads,
+                       @Value("${keypair.queue:1000}") int queue,
+                       MeterRegistry registry) {
+        this.generators = Schedulers.newBoundedElastic(threads, queue, "keygen");
+        this.ready = new ArrayBlockingQueue<>(Math.max(1, size));
+        this.generation = Timer.builder(METRIC + ".generate")
+                .description("time to generate a key pair")
+                .register(registry);
+        this.fromPool = requests(registry, "pool");
+        this.generated = requests(registry, "generated");
+        Gauge.builder(METRIC + ".pool.size", ready, BlockingQueue::size)
+                .description("key pairs generated ahead and ready to use")
+                .register(registry);
+        if(size > 0 && refillRate > 0) {
+            this.refill = Flux.interval(Duration.ofMillis(Math.max(1, 1000 / refillRate)))
+                    // skip ticks while a key pair is still being generated
+                    .onBackpressureDrop()
+                    .filter(tick -> ready.remainingCapacity() > 0)
+                    .concatMap(tick -> generate(), 1)
+                    .subscribe(ready::offer,
+                            e -> log.error("error filling the key pair pool", e));
+        } else {
+            this.refill = null;
+        }
+    }
+
+    /**
+     *
+     * Get a key pair for a new user, from the pool if there is one ready
+     *
+     * @return A Mono of the key pair
+     */
+    public Mono<KeyPair> next() {
+        return Mono.defer(() -> {
+            KeyPair pair = ready.poll();
+            if(pair != null) {
+                fromPool.increment();
+                return Mono.just(pair);
+            }
+            generated.increment();
+            return generate();
+        });
+    }
+
+    private Mono<KeyPair> generate() {
+        return Mono.fromCallable(() -> {
+                    long started = System.nanoTime();
+                    KeyPairGenerator keyGen = KeyPairGenerator.getInstance("DSA");
+                    SecureRandom random = SecureRandom.getInstance("SHA1PRNG");
+                    keyGen.initialize(1024, random);
+                    KeyPair pair = keyGen.generateKeyPair();
+                    generation.record(Duration.ofNanos(System.nanoTime() - started));
+                    return pair;
+                })
+                .onErrorMap(NoSuchAlgorithmException.class, e -> new RuntimeException("cypto error", e))
+                .subscribeOn(generators);
+    }
+
+    @Override
+    public void destroy() {
+        if(refill != null) {
+            refill.dispose();
+        }
+        generators.dispose();
+    }
+
+    private static Counter requests(MeterRegistry registry, String source) {
+        return Counter.builder(METRIC + ".requests")
+                .description("key pairs handed out for new users by where they came from")
+                .tag("source", source)
+                .register(registry);
+    }
+}
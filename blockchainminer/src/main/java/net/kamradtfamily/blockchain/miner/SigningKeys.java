@@ -0,0 +1,144 @@
+package net.kamradtfamily.blockchain.miner;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.mongodb.core.mapping.event.AbstractMongoEventListener;
+import org.springframework.data.mongodb.core.mapping.event.AfterDeleteEvent;
+import org.springframework.data.mongodb.core.mapping.event.AfterSaveEvent;
+import org.springframework.stereotype.Component;
+
+import java.security.KeyFactory;
+import java.security.PrivateKey;
+import java.security.spec.PKCS8EncodedKeySpec;
+import java.util.Base64;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * The decoded private keys of users, so a user sending many transactions
+ * doesn't pay for decoding the key and looking up a KeyFactory every time.
+ * Keys are held by user id, the least recently used are dropped when the
+ * cache is full and any key older than the maximum age is decoded again.
+ * A key is dropped when its user is saved or deleted, and a cached key is
+ * only used if the user still has the same encoded key, so a key changed
+ * by another process is picked up too.
+ */
+@Slf4j
+@Component
+public class SigningKeys extends AbstractMongoEventListener<User> {
+    private static final String METRIC = "blockchain.miner.key.cache";
+    private final long maximumAge;
+    private final Map<String, Entry> keys;
+    private final Counter hits;
+    private final Counter misses;
+
+    public SigningKeys(@Value("${signing.key.cache.size:10000}") int capacity,
+                       @Value("${signing.key.cache.max-age:600}") long maximumAge,
+                       MeterRegistry registry) {
+        this.maximumAge = maximumAge * 1000;
+        this.keys = new LinkedHashMap<String, Entry>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Entry> eldest) {
+                return size() > capacity;
+            }
+        };
+        this.hits = lookups(registry, "hit");
+        this.misses = lookups(registry, "miss");
+        Gauge.builder(METRIC + ".size", this, SigningKeys::size)
+                .description("decoded private keys held in memory")
+                .register(registry);
+        Gauge.builder(METRIC + ".hit.ratio", this, SigningKeys::hitRatio)
+                .description("fraction of signing key lookups answered without decoding")
+                .register(registry);
+    }
+
+    /**
+     *
+     * Get the private key of a user
+     *
+     * @param user the user
+     * @return the decoded key
+     */
+    public PrivateKey get(User user) {
+        long now = System.currentTimeMillis();
+        synchronized(keys) {
+            Entry entry = keys.get(user.getId());
+            if(entry != null && entry.encoded.equals(user.getPrivateKey()) && now - entry.loaded < maximumAge) {
+                hits.increment();
+                return entry.key;
+            }
+        }
+        misses.increment();
+        PrivateKey key = decode(user.getPrivateKey());
+        if(user.getId() != null) {
+            synchronized(keys) {
+                keys.put(user.getId(), new Entry(key, user.getPrivateKey(), now));
+            }
+        }
+        return key;
+    }
+
+    public void invalidate(String userId) {
+        if(userId != null) {
+            synchronized(keys) {
+                keys.remove(userId);
+            }
+        }
+    }
+
+    public int size() {
+        synchronized(keys) {
+            return keys.size();
+        }
+    }
+
+    @Override
+    public void onAfterSave(AfterSaveEvent<User> event) {
+        invalidate(event.getSource().getId());
+    }
+
+    @Override
+    public void onAfterDelete(AfterDeleteEvent<User> event) {
+        Object id = event.getSource().get("_id");
+        invalidate(id == null ? null : id.toString());
+    }
+
+    double hitRatio() {
+        double total = hits.count() + misses.count();
+        return total == 0.0 ? 0.0 : hits.count() / total;
+    }
+
+    private static PrivateKey decode(String encoded) {
+        try {
+            PKCS8EncodedKeySpec privateKeySpec = new PKCS8EncodedKeySpec(
+                    Base64.getDecoder().decode(encoded)
+            );
+            KeyFactory keyFactory = KeyFactory.getInstance("DSA");
+            return keyFactory.generatePrivate(privateKeySpec);
+        } catch (Exception e) {
+            throw new RuntimeException("error reading key", e);
+        }
+    }
+
+    private static Counter lookups(MeterRegistry registry, String result) {
+        return Counter.builder(METRIC + ".lookups")
+                .description("signing key lookups by result")
+                .tag("result", result)
+                .register(registry);
+    }
+
+    private static class Entry {
+        final PrivateKey key;
+        final String encoded;
+        final long loaded;
+
+        Entry(PrivateKey key, String encoded, long loaded) {
+            this.key = key;
+            this.encoded = encoded;
+            this.loaded = loaded;
+        }
+    }
+}
@@ -1,6 +1,7 @@
 package net.kamradtfamily.blockchain.miner;
 
 import com.fasterxml.jackson.annotation.JsonIgnoreProperties;
+import com.fasterxml.jackson.annotation.JsonInclude;
 import com.fasterxml.jackson.core.JsonProcessingException;
 import com.fasterxml.jackson.databind.ObjectMapper;
 import lombok.AllArgsConstructor;
@@ -29,9 +30,18 @@ import java.util.List;
 @NoArgsConstructor
 @JsonIgnoreProperties(ignoreUnknown = true)
 public class Transaction {
+    /**
+     * Version 0 hashes the transaction id concatenated with the JSON of the data,
+     * version 1 hashes the canonical binary encoding of the id and data.
+     */
+    public static final int LEGACY_VERSION = 0;
+    public static final int CANONICAL_VERSION = 1;
     static ObjectMapper mapper = new ObjectMapper();
     private long transactionId;
     private String hash;
+    // left out of the JSON when 0 so legacy block hashes, which include the transaction JSON, don't change
+    @JsonInclude(JsonInclude.Include.NON_DEFAULT)
+    private int version;
     public Data data;
 
     /**
@@ -52,12 +62,54 @@ public class Transaction {
      * @return the hash value
      */
     public String toHash() {
-        try {
-            return CryptoUtil.hash(transactionId + mapper.writeValueAsString(this.data));
-        } catch (JsonProcessingException e) {
-            throw new RuntimeException("json error", e);
+        if(version == LEGACY_VERSION) {
+            try {
+                return CryptoUtil.hash(transactionId + mapper.writeValueAsString(this.data));
+            } catch (JsonProcessingException e) {
+                throw new RuntimeException("json error", e);
+            }
+        } else if(version == CANONICAL_VERSION) {
+            return encode(CryptoUtil.hasher()).hex();
         }
+        throw new IllegalStateException("unknown transaction version " + version);
     }
+
+    /**
+     *
+     * Write the canonical encoding of the transaction to a hasher. This must
+     * match the encoding in the blockchainapi Transaction exactly.
+     *
+     * @param hasher the hasher to write to
+     * @return the hasher
+     */
+    public CryptoUtil.Hasher encode(CryptoUtil.Hasher hasher) {
+        hasher.update(version)
+                .update(transactionId);
+        if(data == null) {
+            return hasher.update(-1);
+        }
+        hasher.update(0);
+        Input input = data.getInput();
+        if(input == null) {
+            hasher.update(-1);
+        } else {
+            hasher.update(0)
+                    .update(input.getContract())
+                    .update(input.getAddress())
+                    .update(input.getSignature());
+        }
+        List<Output> outputs = data.getOutputs();
+        if(outputs == null) {
+            return hasher.update(-1);
+        }
+        hasher.update(outputs.size());
+        for(Output output : outputs) {
+            hasher.update(output.getContract())
+                    .update(output.getAddress());
+        }
+        return hasher;
+    }
+
     public void check(Transaction transaction) {
 
     }
@@ -74,6 +126,14 @@ public class Transaction {
     @AllArgsConstructor
     @NoArgsConstructor
     public static class Input {
+        // Signature objects aren't thread safe and are costly to look up, so each thread keeps its own
+        private static final ThreadLocal<Signature> SIGNATURES = ThreadLocal.withInitial(() -> {
+            try {
+                return Signature.getInstance("SHA1withDSA");
+            } catch (NoSuchAlgorithmException e) {
+                throw new RuntimeException("cypto error", e);
+            }
+        });
         private String contract;
         private String address;
         private String signature;
@@ -83,7 +143,7 @@ public class Transaction {
         }
         String sign(PrivateKey privateKey) {
             try {
-                Signature dsa = Signature.getInstance("SHA1withDSA");
+                Signature dsa = SIGNATURES.get();
                 dsa.initSign(privateKey);
                 String contents = "{ contract: \""
                         + contract
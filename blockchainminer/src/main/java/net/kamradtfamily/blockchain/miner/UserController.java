@@ -8,7 +8,6 @@ import org.springframework.web.server.ResponseStatusException;
 import reactor.core.publisher.Flux;
 import reactor.core.publisher.Mono;
 
-import java.security.NoSuchAlgorithmException;
 import java.util.Base64;
 import java.util.List;
 
@@ -48,7 +47,7 @@ public class UserController {
     @PostMapping(path = "",
             produces = MediaType.APPLICATION_JSON_VALUE)
     @ResponseStatus(code = HttpStatus.CREATED, reason = "User created")
-    Mono<User> addUser(@RequestBody AddUserRequest addUserRequest) throws NoSuchAlgorithmException {
+    Mono<User> addUser(@RequestBody AddUserRequest addUserRequest) {
         return userService.getUserByName(addUserRequest.getName())
                 .flatMap(u -> Mono.<User>error(() -> new ResponseStatusException(
                         HttpStatus.BAD_REQUEST, "User already exists")
@@ -1,5 +1,7 @@
 package net.kamradtfamily.blockchain.miner;
 
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
 import lombok.extern.slf4j.Slf4j;
 import org.springframework.beans.factory.annotation.Value;
 import org.springframework.stereotype.Component;
@@ -8,11 +10,11 @@ import reactor.core.publisher.Flux;
 import reactor.core.publisher.Mono;
 
 import java.security.*;
-import java.security.spec.PKCS8EncodedKeySpec;
 import java.util.Base64;
 import java.util.List;
 import java.util.Random;
 import java.util.UUID;
+import java.util.concurrent.TimeUnit;
 
 @Slf4j
 @Component
@@ -21,15 +23,29 @@ public class UserService {
     final private WebClient client = WebClient.create();
     final private String transactionUrl;
     final private String miningUrl;
+    final private int transactionVersion;
+    final private SigningKeys signingKeys;
+    final private KeyPairPool keyPairs;
+    final private Timer signing;
     final Random random = new Random();
 
 
     public UserService(@Value("${transaction.url}") String transactionUrl,
                        @Value("${mining.url}") String miningUrl,
-                       UserRepository userRepository) {
+                       @Value("${transaction.version:1}") int transactionVersion,
+                       UserRepository userRepository,
+                       SigningKeys signingKeys,
+                       KeyPairPool keyPairs,
+                       MeterRegistry registry) {
         this.userRepository = userRepository;
+        this.signingKeys = signingKeys;
+        this.keyPairs = keyPairs;
+        this.signing = Timer.builder("blockchain.miner.sign")
+                .description("time to build and sign a transaction")
+                .register(registry);
         this.transactionUrl = transactionUrl;
         this.miningUrl = miningUrl;
+        this.transactionVersion = transactionVersion;
         userRepository.findByName("admin")
                 .switchIfEmpty(userRepository.save(User.builder()
                         .name("admin")
@@ -45,19 +61,14 @@ public class UserService {
         return userRepository.findById(userId);
     }
 
-    public Mono<User> addUser(String name) throws NoSuchAlgorithmException {
-        KeyPairGenerator keyGen = KeyPairGenerator.getInstance("DSA");
-        SecureRandom random = SecureRandom.getInstance("SHA1PRNG");
-        keyGen.initialize(1024, random);
-        KeyPair pair = keyGen.generateKeyPair();
-        PrivateKey privateKey = pair.getPrivate();
-        PublicKey publicKey = pair.getPublic();
-        return userRepository.save(User.builder()
-                .name(name)
-                .address(UUID.randomUUID().toString())
-                .privateKey(Base64.getEncoder().encodeToString(privateKey.getEncoded()))
-                .publicKey(Base64.getEncoder().encodeToString(publicKey.getEncoded()))
-                .build());
+    public Mono<User> addUser(String name) {
+        return keyPairs.next()
+                .flatMap(pair -> userRepository.save(User.builder()
+                        .name(name)
+                        .address(UUID.randomUUID().toString())
+                        .privateKey(Base64.getEncoder().encodeToString(pair.getPrivate().getEncoded()))
+                        .publicKey(Base64.getEncoder().encodeToString(pair.getPublic().getEncoded()))
+                        .build()));
     }
 
     public Mono<User> getUserByName(String userName) {
@@ -69,18 +80,11 @@ public class UserService {
                                        String outputContract,
                                        String outputAddress)
     {
-        PrivateKey privateKey;
-        try {
-            PKCS8EncodedKeySpec privateKeySpec = new PKCS8EncodedKeySpec(
-                    Base64.getDecoder().decode(user.getPrivateKey())
-            );
-            KeyFactory keyFactory = KeyFactory.getInstance("DSA");
-            privateKey = keyFactory.generatePrivate(privateKeySpec);
-        } catch (Exception e) {
-            throw new RuntimeException("error reading key", e);
-        }
+        long started = System.nanoTime();
+        PrivateKey privateKey = signingKeys.get(user);
         Transaction transaction = Transaction.builder()
                 .transactionId(random.nextLong())
+                .version(transactionVersion)
                 .data(Transaction.Data.builder()
                         .input(Transaction.Input.builder()
                                 .address(user.getAddress())
@@ -94,6 +98,7 @@ public class UserService {
                         .build())
                 .build()
                 .withHash();
+        signing.record(System.nanoTime() - started, TimeUnit.NANOSECONDS);
         return client
                 .post()
                 .uri(transactionUrl + "/" + transaction.getTransactionId())
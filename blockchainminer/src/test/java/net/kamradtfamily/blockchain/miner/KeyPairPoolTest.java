@@ -0,0 +1,68 @@
+package net.kamradtfamily.blockchain.miner;
+
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.Test;
+
+import java.time.Duration;
+import java.util.function.BooleanSupplier;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class KeyPairPoolTest {
+    private static final Duration TIMEOUT = Duration.ofSeconds(20);
+    private final MeterRegistry registry = new SimpleMeterRegistry();
+
+    @Test
+    void readyKeyPairsAreServedOnTheCallingThread() {
+        KeyPairPool pool = new KeyPairPool(2, 100, 1, 10, registry);
+        waitFor(() -> poolSize() == 2);
+        String caller = Thread.currentThread().getName();
+        assertEquals(caller, pool.next()
+                .map(pair -> Thread.currentThread().getName())
+                .block(TIMEOUT));
+        assertEquals(1, requests("pool"));
+        assertEquals(0, requests("generated"));
+        pool.destroy();
+    }
+
+    @Test
+    void poolIsRefilledAfterUse() {
+        KeyPairPool pool = new KeyPairPool(2, 100, 1, 10, registry);
+        waitFor(() -> poolSize() == 2);
+        pool.next().block(TIMEOUT);
+        pool.next().block(TIMEOUT);
+        waitFor(() -> poolSize() == 2);
+        assertEquals(2, requests("pool"));
+        pool.destroy();
+    }
+
+    @Test
+    void keyPairsAreGeneratedOffTheCallingThread() {
+        KeyPairPool pool = new KeyPairPool(0, 0, 1, 10, registry);
+        String thread = pool.next()
+                .map(pair -> Thread.currentThread().getName())
+                .block(TIMEOUT);
+        assertTrue(thread.startsWith("keygen"), thread);
+        assertEquals(1, requests("generated"));
+        assertEquals(0, poolSize());
+        pool.destroy();
+    }
+
+    private double poolSize() {
+        return registry.get("blockchain.miner.keypair.pool.size").gauge().value();
+    }
+
+    private double requests(String source) {
+        return registry.get("blockchain.miner.keypair.requests").tag("source", source).counter().count();
+    }
+
+    private static void waitFor(BooleanSupplier condition) {
+        long deadline = System.nanoTime() + TIMEOUT.toNanos();
+        while(!condition.getAsBoolean()) {
+            assertTrue(System.nanoTime() < deadline, "timed out");
+            Thread.onSpinWait();
+        }
+    }
+}
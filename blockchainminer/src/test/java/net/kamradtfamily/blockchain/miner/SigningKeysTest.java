@@ -0,0 +1,90 @@
+package net.kamradtfamily.blockchain.miner;
+
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.bson.Document;
+import org.junit.jupiter.api.Test;
+import org.springframework.data.mongodb.core.mapping.event.AfterDeleteEvent;
+import org.springframework.data.mongodb.core.mapping.event.AfterSaveEvent;
+
+import java.security.KeyPairGenerator;
+import java.security.NoSuchAlgorithmException;
+import java.security.PrivateKey;
+import java.util.Base64;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotSame;
+import static org.junit.jupiter.api.Assertions.assertSame;
+
+class SigningKeysTest {
+    private final MeterRegistry registry = new SimpleMeterRegistry();
+
+    @Test
+    void keyIsDecodedOnce() throws NoSuchAlgorithmException {
+        SigningKeys keys = new SigningKeys(10, 600, registry);
+        User user = user("1");
+        PrivateKey key = keys.get(user);
+        assertSame(key, keys.get(user));
+        assertEquals(0.5, keys.hitRatio());
+    }
+
+    @Test
+    void savedUserDropsItsKey() throws NoSuchAlgorithmException {
+        SigningKeys keys = new SigningKeys(10, 600, registry);
+        User user = user("1");
+        PrivateKey key = keys.get(user);
+        keys.get(user("2"));
+        keys.onApplicationEvent(new AfterSaveEvent<>(user, new Document("_id", "1"), "user"));
+        assertEquals(1, keys.size());
+        assertNotSame(key, keys.get(user));
+    }
+
+    @Test
+    void deletedUserDropsItsKey() throws NoSuchAlgorithmException {
+        SigningKeys keys = new SigningKeys(10, 600, registry);
+        keys.get(user("1"));
+        keys.get(user("2"));
+        keys.onApplicationEvent(new AfterDeleteEvent<>(new Document("_id", "1"), User.class, "user"));
+        assertEquals(1, keys.size());
+    }
+
+    @Test
+    void changedKeyIsDecodedAgain() throws NoSuchAlgorithmException {
+        SigningKeys keys = new SigningKeys(10, 600, registry);
+        User user = user("1");
+        PrivateKey key = keys.get(user);
+        User changed = user("1");
+        PrivateKey other = keys.get(changed);
+        assertNotSame(key, other);
+        assertEquals(changed.getPrivateKey(), Base64.getEncoder().encodeToString(other.getEncoded()));
+    }
+
+    @Test
+    void oldKeysAreDecodedAgain() throws NoSuchAlgorithmException {
+        SigningKeys keys = new SigningKeys(10, 0, registry);
+        User user = user("1");
+        PrivateKey key = keys.get(user);
+        assertNotSame(key, keys.get(user));
+    }
+
+    @Test
+    void leastRecentlyUsedKeyIsDroppedWhenFull() throws NoSuchAlgorithmException {
+        SigningKeys keys = new SigningKeys(2, 600, registry);
+        User first = user("1");
+        PrivateKey key = keys.get(first);
+        keys.get(user("2"));
+        keys.get(first);
+        keys.get(user("3"));
+        assertEquals(2, keys.size());
+        assertSame(key, keys.get(first));
+    }
+
+    private static User user(String id) throws NoSuchAlgorithmException {
+        KeyPairGenerator generator = KeyPairGenerator.getInstance("DSA");
+        generator.initialize(1024);
+        return User.builder()
+                .id(id)
+                .privateKey(Base64.getEncoder().encodeToString(generator.generateKeyPair().getPrivate().getEncoded()))
+                .build();
+    }
+}
@@ -0,0 +1,251 @@
+package net.kamradtfamily.blockchainnode;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import lombok.extern.slf4j.Slf4j;
+import net.kamradtfamily.blockchain.api.Block;
+import net.kamradtfamily.blockchain.api.BlockAssertionError;
+import net.kamradtfamily.blockchain.api.Blockchain;
+import net.kamradtfamily.blockchain.api.Broadcaster;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.http.MediaType;
+import org.springframework.stereotype.Component;
+import org.springframework.web.reactive.function.client.WebClient;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Headers first synchronization with a peer that has a longer chain. The
+ * headers are small, so they are fetched first to find the last block both
+ * chains share and to check the peer's chain links up. The bodies of the
+ * missing blocks are then downloaded in batches from all the peers at once,
+ * and handed in order to the chain like any other block from a peer. If the
+ * peer's chain split from ours below our tip, its blocks build up a side
+ * branch and the chain switches over once the branch has more work.
+ * The blocks are stored without being announced one by one, the new tip is
+ * announced once at the end so other processes sharing the store catch up.
+ */
+@Slf4j
+@Component
+public class ChainSync {
+    final private Blockchain blockchain;
+    final private Broadcaster broadcaster;
+    final private NodeRepository peers;
+    final private WebClient client = WebClient.create();
+    final private int headerPage;
+    final private int batchSize;
+    final private int parallelism;
+    final private AtomicBoolean syncing = new AtomicBoolean();
+    final private Counter synced;
+    final private AtomicLong height = new AtomicLong();
+    final private AtomicLong target = new AtomicLong();
+    final private AtomicLong rate = new AtomicLong();
+
+    public ChainSync(Blockchain blockchain,
+                     Broadcaster broadcaster,
+                     NodeRepository peers,
+                     @Value("${blockchain.sync.header.page:1000}") int headerPage,
+                     @Value("${blockchain.sync.batch.size:100}") int batchSize,
+                     @Value("${blockchain.sync.parallelism:4}") int parallelism,
+                     MeterRegistry registry) {
+        this.blockchain = blockchain;
+        this.broadcaster = broadcaster;
+        this.peers = peers;
+        this.headerPage = headerPage;
+        this.batchSize = batchSize;
+        this.parallelism = parallelism;
+        this.synced = Counter.builder("blockchain.sync.blocks")
+                .description("blocks appended by synchronizing with peers")
+                .register(registry);
+        Gauge.builder("blockchain.sync.height", height, AtomicLong::get)
+                .description("index of the last block appended by the current or last sync")
+                .register(registry);
+        Gauge.builder("blockchain.sync.target", target, AtomicLong::get)
+                .description("index of the peer tip the current or last sync is working toward")
+                .register(registry);
+        Gauge.builder("blockchain.sync.rate", rate, AtomicLong::get)
+                .description("blocks per second appended by the current or last sync")
+                .baseUnit("blocks/s")
+                .register(registry);
+    }
+
+    /**
+     *
+     * Bring our chain up to the tip of a peer. Only one sync runs at a time,
+     * a request while one is running is dropped since the running one will
+     * get us to the same place.
+     *
+     * @param peer the peer to sync with
+     * @return A Mono of our last block when the sync is done
+     */
+    public Mono<Block> sync(Node peer) {
+        return Mono.defer(() -> {
+            if(!syncing.compareAndSet(false, true)) {
+                log.info("sync already running, not syncing with {}", peer);
+                return blockchain.getLastBlock();
+            }
+            return getPeerTip(peer)
+                    .zipWith(blockchain.getLastBlock())
+                    .flatMap(tips -> {
+                        Block theirs = tips.getT1();
+                        Block ours = tips.getT2();
+                        if(theirs.getIndex() <= ours.getIndex()) {
+                            log.info("peer {} is at {}, not ahead of our {}", peer, theirs.getIndex(), ours.getIndex());
+                            return Mono.just(ours);
+                        }
+                        log.info("peer {} is at {}, we are at {}", peer, theirs.getIndex(), ours.getIndex());
+                        return findForkPoint(peer, ours.getIndex(), 1)
+                                .flatMap(fork -> {
+                                    if(fork.getIndex() != ours.getIndex()) {
+                                        log.info("chain of peer {} splits from ours at {}, below our tip {}",
+                                                peer, fork.getIndex(), ours.getIndex());
+                                    }
+                                    return download(peer, fork, theirs.getIndex());
+                                });
+                    })
+                    .switchIfEmpty(blockchain.getLastBlock())
+                    .doFinally(s -> syncing.set(false));
+        });
+    }
+
+    /**
+     *
+     * Find the highest block both chains have, looking at a window of headers
+     * below a point and doubling the window each time nothing matches.
+     * The chains are linked by hash, so every block below a match matches too.
+     *
+     * @param peer the peer to compare with
+     * @param top the highest index to look at
+     * @param span the number of headers to look at
+     * @return A Mono of our header of the last block in common
+     */
+    Mono<Block> findForkPoint(Node peer, long top, long span) {
+        long from = Math.max(0, top - span + 1);
+        return getPeerHeaders(peer, from, top)
+                .collectMap(Block::getIndex, Block::getHash)
+                .flatMap(theirs -> blockchain.getHeaders(from, top)
+                        .filter(ours -> ours.getHash().equals(theirs.get(ours.getIndex())))
+                        .takeLast(1)
+                        .next())
+                .switchIfEmpty(Mono.defer(() -> from == 0
+                        ? Mono.error(() -> new BlockAssertionError("No block in common with peer " + peer.getUrl()))
+                        : findForkPoint(peer, from - 1, Math.min(span * 2, headerPage))));
+    }
+
+    private Mono<Block> download(Node peer, Block fork, long peerTip) {
+        long started = System.nanoTime();
+        AtomicReference<Block> previous = new AtomicReference<>(fork);
+        target.set(peerTip);
+        height.set(fork.getIndex());
+        return peers.findAll()
+                .filter(p -> !p.getUrl().equals(peer.getUrl()))
+                .collectList()
+                .flatMap(others -> {
+                    List<Node> sources = new ArrayList<>();
+                    sources.add(peer);
+                    sources.addAll(others);
+                    return getPeerHeaders(peer, fork.getIndex() + 1, peerTip)
+                            .<Block>handle((header, sink) -> {
+                                Block last = previous.get();
+                                if(header.getIndex() != last.getIndex() + 1
+                                        || !last.getHash().equals(header.getPreviousHash())) {
+                                    sink.error(new BlockAssertionError("Header " + header.getIndex()
+                                            + " from " + peer.getUrl() + " doesn't link to " + last.getIndex()));
+                                } else {
+                                    previous.set(header);
+                                    sink.next(header);
+                                }
+                            })
+                            .buffer(batchSize)
+                            .flatMapSequential(batch -> fetchBodies(batch, sources, 0), parallelism)
+                            .concatMapIterable(bodies -> bodies)
+                            .concatMap(b -> blockchain.checkReceivedBlock(b, false), 1)
+                            .doOnNext(b -> progress(b, fork.getIndex(), started))
+                            .then(Mono.defer(blockchain::getLastBlock));
+                })
+                .flatMap(b -> b.getHash().equals(fork.getHash()) ? Mono.just(b) : broadcaster.addedBlock(b))
+                .doOnNext(b -> log.info("synced with {} up to {} in {} ms", peer, b.getIndex(),
+                        TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - started)));
+    }
+
+    private Mono<List<Block>> fetchBodies(List<Block> headers, List<Node> sources, int attempt) {
+        long from = headers.get(0).getIndex();
+        long to = headers.get(headers.size() - 1).getIndex();
+        // spread the batches over the peers, moving on to the next peer if one fails
+        Node source = sources.get((int) ((from / batchSize + attempt) % sources.size()));
+        log.info("getting blocks {} to {} from {}", from, to, source);
+        return client
+                .get()
+                .uri(source.getUrl() + "/block?fromIndex={from}&toIndex={to}&limit={limit}", from, to, headers.size())
+                .accept(MediaType.APPLICATION_STREAM_JSON)
+                .retrieve()
+                .bodyToFlux(Block.class)
+                .collectList()
+                .flatMap(bodies -> matches(headers, bodies)
+                        ? Mono.just(bodies)
+                        : Mono.<List<Block>>error(() -> new BlockAssertionError("Blocks " + from + " to " + to
+                                + " from " + source.getUrl() + " don't match the headers")))
+                .onErrorResume(e -> {
+                    if(attempt + 1 >= sources.size()) {
+                        return Mono.error(e);
+                    }
+                    log.warn("failed to get blocks {} to {} from {}", from, to, source, e);
+                    return fetchBodies(headers, sources, attempt + 1);
+                });
+    }
+
+    private static boolean matches(List<Block> headers, List<Block> bodies) {
+        if(headers.size() != bodies.size()) {
+            return false;
+        }
+        for(int i = 0; i < headers.size(); i++) {
+            if(headers.get(i).getIndex() != bodies.get(i).getIndex()
+                    || !headers.get(i).getHash().equals(bodies.get(i).getHash())) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private void progress(Block block, long startIndex, long started) {
+        synced.increment();
+        height.set(block.getIndex());
+        long elapsed = System.nanoTime() - started;
+        if(elapsed > 0) {
+            rate.set((block.getIndex() - startIndex) * TimeUnit.SECONDS.toNanos(1) / elapsed);
+        }
+    }
+
+    private Mono<Block> getPeerTip(Node peer) {
+        return client
+                .get()
+                .uri(peer.getUrl() + "/block/last")
+                .retrieve()
+                .bodyToMono(Block.class);
+    }
+
+    private Flux<Block> getPeerHeaders(Node peer, long fromIndex, long toIndex) {
+        return Flux.<Long, Long>generate(() -> fromIndex, (start, sink) -> {
+                    if(start > toIndex) {
+                        sink.complete();
+                    } else {
+                        sink.next(start);
+                    }
+                    return start + headerPage;
+                })
+                .concatMap(start -> client
+                        .get()
+                        .uri(peer.getUrl() + "/block/headers?fromIndex={from}&toIndex={to}&limit={limit}",
+                                start, Math.min(toIndex, start + headerPage - 1), headerPage)
+                        .retrieve()
+                        .bodyToFlux(Block.class), 1);
+    }
+}
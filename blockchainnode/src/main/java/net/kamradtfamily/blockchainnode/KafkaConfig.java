@@ -1,6 +1,7 @@
 package net.kamradtfamily.blockchainnode;
 
 import net.kamradtfamily.blockchain.api.Message;
+import org.apache.kafka.common.TopicPartition;
 import org.springframework.beans.factory.annotation.Value;
 import org.springframework.boot.autoconfigure.kafka.KafkaProperties;
 import org.springframework.context.annotation.Bean;
@@ -8,10 +9,15 @@ import org.springframework.context.annotation.Configuration;
 import org.springframework.kafka.core.reactive.ReactiveKafkaConsumerTemplate;
 import org.springframework.kafka.core.reactive.ReactiveKafkaProducerTemplate;
 import reactor.kafka.receiver.ReceiverOptions;
+import reactor.kafka.receiver.ReceiverPartition;
 import reactor.kafka.sender.SenderOptions;
 
+import java.time.Duration;
+import java.util.Collection;
 import java.util.Collections;
+import java.util.List;
 import java.util.Map;
+import java.util.stream.Collectors;
 
 @Configuration
 public class KafkaConfig {
@@ -24,9 +30,24 @@ public class KafkaConfig {
     }
 
     @Bean
-    public ReceiverOptions<String, Message> kafkaReceiverOptions(KafkaProperties kafkaProperties) {
+    public ReceiverOptions<String, Message> kafkaReceiverOptions(KafkaProperties kafkaProperties,
+            @Value("${blockchain.consumer.commit.interval:1000}") long commitInterval,
+            @Value("${blockchain.consumer.commit.batch:100}") int commitBatch,
+            OffsetTracker offsets) {
         ReceiverOptions<String, Message> basicReceiverOptions = ReceiverOptions.create(kafkaProperties.buildConsumerProperties());
-        return basicReceiverOptions.subscription(Collections.singletonList(TOPIC));
+        // offsets are acknowledged once handled and committed in the background
+        return basicReceiverOptions
+                .commitInterval(Duration.ofMillis(commitInterval))
+                .commitBatchSize(commitBatch)
+                .addAssignListener(partitions -> offsets.forget(topicPartitions(partitions)))
+                .addRevokeListener(partitions -> offsets.forget(topicPartitions(partitions)))
+                .subscription(Collections.singletonList(TOPIC));
+    }
+
+    private static List<TopicPartition> topicPartitions(Collection<ReceiverPartition> partitions) {
+        return partitions.stream()
+                .map(ReceiverPartition::topicPartition)
+                .collect(Collectors.toList());
     }
 
     @Bean
@@ -1,63 +1,180 @@
 package net.kamradtfamily.blockchainnode;
 
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
 import lombok.extern.slf4j.Slf4j;
 import net.kamradtfamily.blockchain.api.Block;
 import net.kamradtfamily.blockchain.api.Blockchain;
 import net.kamradtfamily.blockchain.api.Message;
 import net.kamradtfamily.blockchain.api.Transaction;
-import org.apache.kafka.clients.consumer.ConsumerRecord;
+import net.kamradtfamily.blockchain.api.TransactionResult;
+import org.apache.kafka.clients.consumer.Consumer;
+import org.apache.kafka.common.TopicPartition;
 import org.springframework.beans.factory.annotation.Value;
+import org.springframework.core.ParameterizedTypeReference;
 import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
 import org.springframework.kafka.core.reactive.ReactiveKafkaConsumerTemplate;
 import org.springframework.stereotype.Component;
 import org.springframework.web.reactive.function.client.ClientResponse;
 import org.springframework.web.reactive.function.client.WebClient;
 import reactor.core.publisher.Flux;
 import reactor.core.publisher.Mono;
+import reactor.kafka.receiver.ReceiverRecord;
 
 import java.time.Duration;
 import java.time.temporal.ChronoUnit;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.function.BiFunction;
-import java.util.function.Consumer;
 import java.util.function.Function;
 
 @Component
 @Slf4j
 public class NodeService {
+    private static final String METRIC = "blockchain.consumer";
+    private static final int BLOCK_LANE = 0;
+    private static final int CONTROL_LANE = 1;
+    private static final int TRANSACTION_LANE = 2;
     private static Node myself;
     final private NodeRepository peers;
     final private Blockchain blockchain;
     final private ReactiveKafkaConsumerTemplate<String, Message> emitter;
+    final private ChainSync chainSync;
     final private WebClient client = WebClient.create();
+    final private OffsetTracker offsets;
+    final private AtomicLong lag = new AtomicLong();
+    final private Map<String, Timer> handleTimers = new ConcurrentHashMap<>();
+    final private int lanes;
+    final private MeterRegistry registry;
 
     public NodeService(@Value("${server.myself}") String myselfUrl,
                        Blockchain blockchain,
                        NodeRepository peers,
-                       ReactiveKafkaConsumerTemplate<String, Message> emitter) {
+                       ChainSync chainSync,
+                       ReactiveKafkaConsumerTemplate<String, Message> emitter,
+                       OffsetTracker offsets,
+                       @Value("${blockchain.consumer.lanes:16}") int lanes,
+                       @Value("${blockchain.consumer.prefetch:64}") int prefetch,
+                       @Value("${blockchain.consumer.lag.interval:10}") long lagInterval,
+                       MeterRegistry registry) {
         this.blockchain = blockchain;
+        this.chainSync = chainSync;
         this.emitter = emitter;
+        this.offsets = offsets;
         this.peers = peers;
         myself = Node.builder()
                 .url(myselfUrl)
                 .build();
         connectToPeers(peers.findAll());
-        emitter.receiveAutoAck()
-                    .doOnNext(consumerRecord -> log.info("received key={}, value={} from topic={}, offset={}",
-                            consumerRecord.key(),
-                            consumerRecord.value(),
-                            consumerRecord.topic(),
-                            consumerRecord.offset())
+        this.lanes = Math.max(1, lanes);
+        this.registry = registry;
+        Gauge.builder(METRIC + ".lag", lag, AtomicLong::get)
+                .description("records on the topic not yet handled")
+                .register(registry);
+        Gauge.builder(METRIC + ".pending", offsets, OffsetTracker::pending)
+                .description("records received and not yet acknowledged")
+                .register(registry);
+        Flux.interval(Duration.ofSeconds(Math.max(1, lagInterval)))
+                .onBackpressureDrop()
+                .concatMap(i -> emitter.doOnConsumer(NodeService::behind)
+                        .onErrorResume(e -> Mono.empty()))
+                .subscribe(behind -> lag.set(behind + offsets.pending()),
+                        e -> log.error("error measuring consumer lag", e));
+        emitter.receive()
+                    .doOnNext(receiverRecord -> log.info("received key={}, value={} from topic={}, offset={}",
+                            receiverRecord.key(),
+                            receiverRecord.value(),
+                            receiverRecord.topic(),
+                            receiverRecord.offset())
                     )
-                    .map(ConsumerRecord::value)
-                    .flatMap(m -> messageHandler(m))
+                    .doOnNext(receiverRecord -> offsets.received(receiverRecord.receiverOffset()))
+                    // tombstones have no message, they are only acknowledged
+                    .filter(this::hasMessage)
+                    .doOnNext(this::receive)
+                    // every lane is handled one record at a time in topic order. Blocks
+                    // and control messages have a lane each, transactions are spread over
+                    // lanes by key so records with the same key are handled in order.
+                    // When every lane is busy demand stops and the receiver pauses the
+                    // partitions until they catch up
+                    .groupBy(this::lane, prefetch)
+                    .flatMap(lane -> lane.concatMap(this::handle), TRANSACTION_LANE + this.lanes)
                     .subscribe(cr ->
                             log.info("message handled"),
                             e -> log.error("error handling message", e));
     }
 
+    private boolean hasMessage(ReceiverRecord<String, Message> record) {
+        if(record.value() == null) {
+            log.warn("skipping record with no message at offset {}", record.offset());
+            offsets.handled(record.receiverOffset());
+            return false;
+        }
+        return true;
+    }
+
+    private void receive(ReceiverRecord<String, Message> record) {
+        try {
+            blockchain.receive(record.value());
+        } catch (RuntimeException e) {
+            log.error("error noting message at offset {}", record.offset(), e);
+        }
+    }
+
+    private int lane(ReceiverRecord<String, Message> record) {
+        String message = record.value().getMessage();
+        if("addedBlock".equals(message)) {
+            return BLOCK_LANE;
+        } else if("addedTransaction".equals(message) || "addedTransactions".equals(message)) {
+            String key = record.key() != null ? record.key() : String.valueOf(record.offset());
+            return TRANSACTION_LANE + Math.floorMod(key.hashCode(), lanes);
+        } else {
+            return CONTROL_LANE;
+        }
+    }
+
+    private Mono<ReceiverRecord<String, Message>> handle(ReceiverRecord<String, Message> record) {
+        return Mono.defer(() -> {
+            long started = System.nanoTime();
+            Message m = record.value();
+            return messageHandler(m)
+                    .onErrorResume(e -> {
+                        log.error("error handling message at offset {}", record.offset(), e);
+                        return Mono.empty();
+                    })
+                    .then(Mono.fromRunnable(() -> {
+                        handleTimer(m.getMessage())
+                                .record(System.nanoTime() - started, TimeUnit.NANOSECONDS);
+                        offsets.handled(record.receiverOffset());
+                    }))
+                    .thenReturn(record);
+        });
+    }
+
+    private Timer handleTimer(String message) {
+        return handleTimers.computeIfAbsent(String.valueOf(message), name -> Timer.builder(METRIC + ".handle")
+                .description("time to handle a message from the topic")
+                .tag("message", name)
+                .register(registry));
+    }
+
+    private static long behind(Consumer<String, Message> consumer) {
+        Set<TopicPartition> assigned = consumer.assignment();
+        Map<TopicPartition, Long> ends = consumer.endOffsets(assigned);
+        long behind = 0;
+        for(TopicPartition partition : assigned) {
+            behind += Math.max(0, ends.getOrDefault(partition, 0L) - consumer.position(partition));
+        }
+        return behind;
+    }
+
     public Mono<? extends Object> messageHandler(Message m) {
         if("addedBlock".equals(m.getMessage())) {
             return peers.findAll()
@@ -69,6 +186,10 @@ public class NodeService {
                     .flatMap(p -> sendTransaction(p, m.getTransaction()))
                     .switchIfEmpty(Mono.just(m.getTransaction()))
                     .last();
+        } else if("addedTransactions".equals(m.getMessage())) {
+            return peers.findAll()
+                    .flatMap(p -> sendTransactions(p, m.getTransactions()))
+                    .then(Mono.just(m.getTransactions()));
         } else if("getBlocks".equals(m.getMessage())) {
             return peers.findAll()
                     .flatMap(p -> getBlocks(p))
@@ -137,14 +258,8 @@ public class NodeService {
             log.warn("avoiding get latest block request to self");
             return Mono.empty();
         }
-        String URL = peer.getUrl() + "/block/last";
-        log.info("Getting latest block from: {}", URL);
-        return client
-                .get()
-                .uri(URL)
-                .exchange()
-                .flatMap(cr -> cr.bodyToMono(Block.class))
-                .flatMap(b -> checkReceivedBlock(b, peer));
+        log.info("Syncing with latest block of: {}", peer);
+        return chainSync.sync(peer);
     }
 
     public Mono<Block> getBlocks(Node peer) {
@@ -152,15 +267,8 @@ public class NodeService {
             log.warn("avoiding get blocks request to self");
             return Mono.empty();
         }
-        String URL = peer.getUrl() + "/block/last";
-        log.info("Getting blocks from: {}", URL);
-        return client
-                .get()
-                .uri(URL)
-                .exchange()
-                .flatMap(cr -> cr.bodyToMono(Block.class))
-                .flatMap(b -> checkReceivedBlock(b, peer));
-
+        log.info("Getting blocks from: {}", peer);
+        return chainSync.sync(peer);
     }
 
     public Mono<Block> sendLatestBlock(Node peer, Block block) {
@@ -193,6 +301,22 @@ public class NodeService {
                 .flatMap(cr -> cr.bodyToMono(Transaction.class));
     }
 
+    public Flux<TransactionResult> sendTransactions(Node peer, List<Transaction> transactions) {
+        if(peer.getUrl().equals(myself.getUrl())) {
+            log.warn("avoiding post transactions request to self");
+            return Flux.empty();
+        }
+        String URL = peer.getUrl() + "/transaction/batch?emit=false";
+        log.info("Sending {} transactions to: {}", transactions.size(), URL);
+        return client
+                .post()
+                .uri(URL)
+                .contentType(MediaType.APPLICATION_JSON)
+                .body(Mono.just(transactions), new ParameterizedTypeReference<List<Transaction>>() {})
+                .exchange()
+                .flatMapMany(cr -> cr.bodyToFlux(TransactionResult.class));
+    }
+
     public Flux<Transaction> getTransactions(Node peer) {
         if(peer.getUrl().equals(myself.getUrl())) {
             log.warn("avoiding get transaction request to self");
@@ -224,7 +348,7 @@ public class NodeService {
 
     Mono<Long> getConfirmations(long transactionId) {
         // Get count of peers with confirmations that the transaction exists
-        return blockchain.findTransactionInChain(transactionId, blockchain.getAllBlocks())
+        return blockchain.findTransactionInChain(transactionId)
                 .zipWith(peers.findAll()
                         .flatMap(peer -> getConfirmation(peer, transactionId)))
                 .count();
@@ -235,27 +359,6 @@ public class NodeService {
                 .switchIfEmpty(blockchain.addTransaction(transaction, true));
     }
 
-    private Mono<Block> checkReceivedBlock(Block block, Node peer) {
-        return this.checkReceivedBlocks(Flux.just(block), peer)
-                .last();
-    }
-    private Flux<Block> checkReceivedBlocks(Flux<Block> blocks, Node peer) {
-        return blockchain.getLastBlock()
-                .flatMapMany(last -> blocks
-                        .doOnNext(block -> log.info("checking last block {} against {}", last, block))
-                        .filter(block -> block.getPreviousHash().equals("0")) // eat the genesis block
-                        .sort((b1, b2) -> b1.getIndex() - b2.getIndex() > 0 ? 1 :
-                                b1.getIndex() - b2.getIndex() == 0 ? 0 : -1)
-                        .filter(block -> block.getIndex() > last.getIndex()
-                                && block.getPreviousHash().equals(last.getHash())))
-                .doOnNext(b -> log.info("adding block {} from peer {}", b, peer))
-                .flatMap(b -> blockchain.addBlock(b, true))
-                .switchIfEmpty(peers.findAll()
-                        .filter(p -> !p.getUrl().equals(peer.getUrl()))
-                        .flatMap(p -> getBlocks(p)))
-                .switchIfEmpty(blockchain.getLastBlock());
-    }
-
     public Flux<Node> getPeers() {
         return peers.findAll();
     }
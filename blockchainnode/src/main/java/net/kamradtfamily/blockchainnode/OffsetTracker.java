@@ -0,0 +1,105 @@
+package net.kamradtfamily.blockchainnode;
+
+import org.apache.kafka.common.TopicPartition;
+import org.springframework.stereotype.Component;
+import reactor.kafka.receiver.ReceiverOffset;
+
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Acknowledges the records of each partition in offset order. Records are
+ * handled concurrently and finish out of order, but a committed offset means
+ * every record before it is done, so a record is only acknowledged once all
+ * the records received before it on its partition are handled.
+ *
+ * The state of a partition is dropped when the partition is assigned or
+ * revoked, the next owner starts from the committed offset. A record from a
+ * revoked partition that finishes afterwards isn't acknowledged.
+ */
+@Component
+class OffsetTracker {
+    private final Map<TopicPartition, Partition> partitions = new ConcurrentHashMap<>();
+
+    /**
+     *
+     * Note a record as received and not yet handled
+     *
+     * @param offset the offset of the record
+     */
+    void received(ReceiverOffset offset) {
+        partition(offset).received(offset);
+    }
+
+    /**
+     *
+     * Note a record as handled, acknowledging it and any handled records
+     * after it if nothing before it is still being handled
+     *
+     * @param offset the offset of the record
+     */
+    void handled(ReceiverOffset offset) {
+        Partition partition = partitions.get(offset.topicPartition());
+        if(partition != null) {
+            partition.handled(offset);
+        }
+    }
+
+    /**
+     *
+     * Forget the records of partitions that were assigned or revoked
+     *
+     * @param topicPartitions the partitions
+     */
+    void forget(Collection<TopicPartition> topicPartitions) {
+        topicPartitions.forEach(partitions::remove);
+    }
+
+    /**
+     *
+     * The records received and not yet acknowledged, over all partitions
+     *
+     * @return the number of records
+     */
+    long pending() {
+        return partitions.values().stream()
+                .mapToLong(Partition::size)
+                .sum();
+    }
+
+    private Partition partition(ReceiverOffset offset) {
+        return partitions.computeIfAbsent(offset.topicPartition(), tp -> new Partition());
+    }
+
+    private static class Partition {
+        final TreeMap<Long, ReceiverOffset> pending = new TreeMap<>();
+        final Set<Long> done = new HashSet<>();
+
+        synchronized void received(ReceiverOffset offset) {
+            pending.put(offset.offset(), offset);
+        }
+
+        synchronized void handled(ReceiverOffset offset) {
+            if(pending.get(offset.offset()) != offset) {
+                // received before the partition was forgotten
+                return;
+            }
+            done.add(offset.offset());
+            ReceiverOffset last = null;
+            while(!pending.isEmpty() && done.remove(pending.firstKey())) {
+                last = pending.pollFirstEntry().getValue();
+            }
+            if(last != null) {
+                last.acknowledge();
+            }
+        }
+
+        synchronized int size() {
+            return pending.size();
+        }
+    }
+}
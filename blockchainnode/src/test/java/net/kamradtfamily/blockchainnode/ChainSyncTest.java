@@ -0,0 +1,191 @@
+package net.kamradtfamily.blockchainnode;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import net.kamradtfamily.blockchain.api.Block;
+import net.kamradtfamily.blockchain.api.BlockAssertionError;
+import net.kamradtfamily.blockchain.api.Stubs;
+import net.kamradtfamily.blockchain.api.TestChain;
+import org.junit.jupiter.api.Test;
+import reactor.core.publisher.Flux;
+import reactor.test.StepVerifier;
+
+import java.lang.reflect.Proxy;
+import java.util.List;
+
+import static net.kamradtfamily.blockchain.api.TestChain.TIMEOUT;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class ChainSyncTest {
+    private static final int HEADER_PAGE = 4;
+    private static final int BATCH_SIZE = 3;
+
+    @Test
+    void peerBlocksAreAppended() throws Exception {
+        TestChain peerChain = chain(12);
+        TestChain ours = new TestChain();
+        try(StubPeer peer = new StubPeer(peerChain.store.all())) {
+            StepVerifier.create(sync(ours).sync(peer.node()))
+                    .expectNextMatches(b -> b.getHash().equals(peerChain.tip().getHash()))
+                    .expectComplete()
+                    .verify(TIMEOUT);
+        }
+        assertEquals(12, ours.tip().getIndex());
+        assertEquals(1, ours.topic.sent.size());
+    }
+
+    @Test
+    void forkPointWindowDoublesUpToTheHeaderPage() throws Exception {
+        TestChain peerChain = chain(20);
+        TestChain ours = forkOf(peerChain, 3, 10);
+        try(StubPeer peer = new StubPeer(peerChain.store.all())) {
+            StepVerifier.create(sync(ours).findForkPoint(peer.node(), 10, 1))
+                    .expectNextMatches(b -> b.getIndex() == 3
+                            && b.getHash().equals(peerChain.store.all().get(3).getHash()))
+                    .expectComplete()
+                    .verify(TIMEOUT);
+            assertEquals(List.of("10-10", "8-9", "4-7", "0-3"), peer.headerRanges);
+        }
+    }
+
+    @Test
+    void forkedChainIsReorganizedOntoThePeers() throws Exception {
+        TestChain peerChain = chain(20);
+        TestChain ours = forkOf(peerChain, 3, 10);
+        try(StubPeer peer = new StubPeer(peerChain.store.all())) {
+            StepVerifier.create(sync(ours).sync(peer.node()))
+                    .expectNextMatches(b -> b.getHash().equals(peerChain.tip().getHash()))
+                    .expectComplete()
+                    .verify(TIMEOUT);
+        }
+        assertEquals(peerChain.store.all(), ours.store.all());
+    }
+
+    @Test
+    void noBlockInCommonIsAnError() throws Exception {
+        TestChain peerChain = chain(6);
+        TestChain ours = chain(2);
+        try(StubPeer peer = new StubPeer(peerChain.store.all())) {
+            peer.headers = b -> {
+                Block other = StubPeer.copy(b);
+                other.setHash("0" + b.getHash().substring(1).replace('0', '1'));
+                return other;
+            };
+            StepVerifier.create(sync(ours).findForkPoint(peer.node(), 2, 1))
+                    .expectErrorMatches(e -> e instanceof BlockAssertionError
+                            && e.getMessage().startsWith("No block in common"))
+                    .verify(TIMEOUT);
+        }
+    }
+
+    @Test
+    void headersThatDoNotLinkStopTheSync() throws Exception {
+        TestChain peerChain = chain(12);
+        TestChain ours = new TestChain();
+        try(StubPeer peer = new StubPeer(peerChain.store.all())) {
+            peer.headers = b -> {
+                if(b.getIndex() != 7) {
+                    return b;
+                }
+                Block other = StubPeer.copy(b);
+                other.setPreviousHash(peerChain.store.all().get(5).getHash());
+                return other;
+            };
+            StepVerifier.create(sync(ours).sync(peer.node()))
+                    .expectErrorMatches(e -> e instanceof BlockAssertionError
+                            && e.getMessage().contains("doesn't link to 6"))
+                    .verify(TIMEOUT);
+        }
+        assertTrue(ours.tip().getIndex() < 7, "synced up to " + ours.tip().getIndex());
+    }
+
+    @Test
+    void mismatchedBodiesAreFetchedFromTheNextPeer() throws Exception {
+        TestChain peerChain = chain(12);
+        TestChain ours = new TestChain();
+        try(StubPeer liar = new StubPeer(peerChain.store.all());
+            StubPeer honest = new StubPeer(peerChain.store.all())) {
+            liar.bodies = b -> {
+                Block other = StubPeer.copy(b);
+                other.setNonce(b.getNonce() + 1);
+                return other.withHash();
+            };
+            StepVerifier.create(sync(ours, liar.node(), honest.node()).sync(liar.node()))
+                    .expectNextMatches(b -> b.getHash().equals(peerChain.tip().getHash()))
+                    .expectComplete()
+                    .verify(TIMEOUT);
+            assertTrue(honest.bodyRequests.get() >= 4, honest.bodyRequests + " requests");
+        }
+        assertEquals(peerChain.store.all(), ours.store.all());
+    }
+
+    @Test
+    void mismatchedBodiesFromEveryPeerFailTheSync() throws Exception {
+        TestChain peerChain = chain(12);
+        TestChain ours = new TestChain();
+        try(StubPeer liar = new StubPeer(peerChain.store.all())) {
+            liar.bodies = b -> {
+                Block other = StubPeer.copy(b);
+                other.setNonce(b.getNonce() + 1);
+                return other.withHash();
+            };
+            StepVerifier.create(sync(ours, liar.node()).sync(liar.node()))
+                    .expectErrorMatches(e -> e instanceof BlockAssertionError
+                            && e.getMessage().contains("don't match the headers"))
+                    .verify(TIMEOUT);
+        }
+        assertEquals(0, ours.tip().getIndex());
+    }
+
+    private static ChainSync sync(TestChain chain, Node... peers) {
+        return new ChainSync(chain.blockchain, chain.broadcaster, peers(peers),
+                HEADER_PAGE, BATCH_SIZE, 2, new SimpleMeterRegistry());
+    }
+
+    /**
+     *
+     * A peer list that only knows the given peers
+     *
+     * @param nodes the peers
+     * @return the repository
+     */
+    private static NodeRepository peers(Node... nodes) {
+        NodeRepository empty = Stubs.empty(NodeRepository.class);
+        return (NodeRepository) Proxy.newProxyInstance(NodeRepository.class.getClassLoader(),
+                new Class<?>[] {NodeRepository.class},
+                (proxy, method, args) -> method.getName().equals("findAll") && method.getParameterCount() == 0
+                        ? Flux.fromArray(nodes)
+                        : method.invoke(empty, args));
+    }
+
+    private static TestChain chain(int length) {
+        TestChain chain = new TestChain();
+        for(int i = 0; i < length; i++) {
+            chain.add(chain.mineNext(Block.HEADER_VERSION));
+        }
+        return chain;
+    }
+
+    /**
+     *
+     * A chain that shares the first blocks of another and then goes its own
+     * way, its blocks stamped an hour later so they can't match the other's
+     *
+     * @param other the chain to share blocks with
+     * @param shared the index of the last shared block
+     * @param length the index of the tip
+     * @return the chain
+     */
+    private static TestChain forkOf(TestChain other, int shared, int length) {
+        TestChain chain = new TestChain();
+        other.store.all().stream()
+                .filter(b -> b.getIndex() > 0 && b.getIndex() <= shared)
+                .forEach(chain::add);
+        for(int i = shared; i < length; i++) {
+            Block template = chain.blockchain.getBlockTemplate(Block.HEADER_VERSION).block(TIMEOUT);
+            template.setTimestamp(template.getTimestamp() + 3600);
+            chain.add(TestChain.mine(template));
+        }
+        return chain;
+    }
+}
@@ -0,0 +1,126 @@
+package net.kamradtfamily.blockchainnode;
+
+import org.apache.kafka.common.TopicPartition;
+import org.junit.jupiter.api.Test;
+import reactor.core.publisher.Mono;
+import reactor.kafka.receiver.ReceiverOffset;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+class OffsetTrackerTest {
+    private static final TopicPartition P0 = new TopicPartition("blockchain", 0);
+    private static final TopicPartition P1 = new TopicPartition("blockchain", 1);
+
+    private final List<String> acknowledged = new ArrayList<>();
+    private final OffsetTracker offsets = new OffsetTracker();
+
+    @Test
+    void onlyTheHandledPrefixIsAcknowledged() {
+        ReceiverOffset o0 = receive(P0, 0);
+        ReceiverOffset o1 = receive(P0, 1);
+        ReceiverOffset o2 = receive(P0, 2);
+        ReceiverOffset o3 = receive(P0, 3);
+
+        offsets.handled(o2);
+        offsets.handled(o1);
+        assertEquals(List.of(), acknowledged);
+        assertEquals(4, offsets.pending());
+
+        offsets.handled(o0);
+        assertEquals(List.of("0-2"), acknowledged);
+        assertEquals(1, offsets.pending());
+
+        offsets.handled(o3);
+        assertEquals(List.of("0-2", "0-3"), acknowledged);
+        assertEquals(0, offsets.pending());
+    }
+
+    @Test
+    void gapsInTheOffsetsDontHoldBackAcknowledgement() {
+        ReceiverOffset o10 = receive(P0, 10);
+        ReceiverOffset o12 = receive(P0, 12);
+        ReceiverOffset o15 = receive(P0, 15);
+
+        offsets.handled(o15);
+        offsets.handled(o10);
+        assertEquals(List.of("0-10"), acknowledged);
+
+        offsets.handled(o12);
+        assertEquals(List.of("0-10", "0-15"), acknowledged);
+        assertEquals(0, offsets.pending());
+    }
+
+    @Test
+    void partitionsAreAcknowledgedIndependently() {
+        ReceiverOffset a0 = receive(P0, 0);
+        ReceiverOffset a1 = receive(P0, 1);
+        ReceiverOffset b0 = receive(P1, 0);
+
+        offsets.handled(a1);
+        offsets.handled(b0);
+        assertEquals(List.of("1-0"), acknowledged);
+
+        offsets.handled(a0);
+        assertEquals(List.of("1-0", "0-1"), acknowledged);
+    }
+
+    @Test
+    void revokedPartitionIsForgotten() {
+        ReceiverOffset a0 = receive(P0, 0);
+        ReceiverOffset a1 = receive(P0, 1);
+        ReceiverOffset b0 = receive(P1, 0);
+
+        offsets.forget(List.of(P0));
+        assertEquals(1, offsets.pending());
+
+        offsets.handled(a1);
+        offsets.handled(a0);
+        assertEquals(List.of(), acknowledged);
+        assertEquals(1, offsets.pending());
+
+        offsets.handled(b0);
+        assertEquals(List.of("1-0"), acknowledged);
+        assertEquals(0, offsets.pending());
+    }
+
+    @Test
+    void reassignedPartitionStartsOver() {
+        ReceiverOffset stale = receive(P0, 0);
+        offsets.forget(List.of(P0));
+
+        ReceiverOffset o5 = receive(P0, 5);
+        offsets.handled(stale);
+        offsets.handled(o5);
+        assertEquals(List.of("0-5"), acknowledged);
+        assertEquals(0, offsets.pending());
+    }
+
+    private ReceiverOffset receive(TopicPartition topicPartition, long offset) {
+        ReceiverOffset receiverOffset = new ReceiverOffset() {
+            @Override
+            public TopicPartition topicPartition() {
+                return topicPartition;
+            }
+
+            @Override
+            public long offset() {
+                return offset;
+            }
+
+            @Override
+            public void acknowledge() {
+                acknowledged.add(topicPartition.partition() + "-" + offset);
+            }
+
+            @Override
+            public Mono<Void> commit() {
+                return Mono.empty();
+            }
+        };
+        offsets.received(receiverOffset);
+        return receiverOffset;
+    }
+}
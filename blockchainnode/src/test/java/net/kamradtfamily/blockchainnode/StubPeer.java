@@ -0,0 +1,106 @@
+package net.kamradtfamily.blockchainnode;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import net.kamradtfamily.blockchain.api.Block;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.net.InetSocketAddress;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.UnaryOperator;
+
+/**
+ * A peer serving a fixed chain over the same endpoints a node serves it on,
+ * that can change the headers or bodies it hands out on the way
+ */
+class StubPeer implements AutoCloseable {
+    private static final ObjectMapper mapper = new ObjectMapper();
+    private final HttpServer server;
+    private final List<Block> blocks;
+    final List<String> headerRanges = new CopyOnWriteArrayList<>();
+    final AtomicInteger bodyRequests = new AtomicInteger();
+    volatile UnaryOperator<Block> headers = UnaryOperator.identity();
+    volatile UnaryOperator<Block> bodies = UnaryOperator.identity();
+
+    StubPeer(List<Block> blocks) throws IOException {
+        this.blocks = blocks;
+        this.server = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+        server.createContext("/block", this::handle);
+        server.start();
+    }
+
+    Node node() {
+        String url = "http://localhost:" + server.getAddress().getPort();
+        return Node.builder().id(url).url(url).build();
+    }
+
+    /**
+     *
+     * A copy of a block that can be changed without changing the chain
+     *
+     * @param block the block
+     * @return the copy
+     */
+    static Block copy(Block block) {
+        try {
+            return mapper.readValue(block.toJson(), Block.class);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private void handle(HttpExchange exchange) throws IOException {
+        String path = exchange.getRequestURI().getPath();
+        Map<String, String> query = query(exchange.getRequestURI().getRawQuery());
+        ByteArrayOutputStream body = new ByteArrayOutputStream();
+        String type = "application/stream+json";
+        if(path.equals("/block/last")) {
+            type = "application/json";
+            body.write(blocks.get(blocks.size() - 1).toJson());
+        } else {
+            long from = Long.parseLong(query.get("fromIndex"));
+            long to = Long.parseLong(query.get("toIndex"));
+            UnaryOperator<Block> change;
+            if(path.equals("/block/headers")) {
+                headerRanges.add(from + "-" + to);
+                change = headers;
+            } else {
+                bodyRequests.incrementAndGet();
+                change = bodies;
+            }
+            for(long i = from; i <= to && i < blocks.size(); i++) {
+                body.write(change.apply(blocks.get((int) i)).toJson());
+                body.write('\n');
+            }
+        }
+        exchange.getResponseHeaders().add("Content-Type", type);
+        exchange.sendResponseHeaders(200, body.size());
+        try(OutputStream out = exchange.getResponseBody()) {
+            body.writeTo(out);
+        }
+    }
+
+    private static Map<String, String> query(String raw) {
+        Map<String, String> params = new HashMap<>();
+        if(raw != null) {
+            for(String param : raw.split("&")) {
+                String[] pair = param.split("=", 2);
+                params.put(pair[0], pair.length > 1 ? pair[1] : "");
+            }
+        }
+        return params;
+    }
+
+    @Override
+    public void close() {
+        server.stop(0);
+    }
+}